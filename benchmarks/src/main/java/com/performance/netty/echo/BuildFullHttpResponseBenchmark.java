@@ -0,0 +1,94 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link EchoHttpServerHandler#buildFullHttpResponse} on its own, for echoed bodies of different sizes
+ * and for the empty body case where the request headers are written back as JSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildFullHttpResponseBenchmark {
+
+    @Param({"0", "1024", "20480", "1048576"})
+    private int bodySize;
+
+    @Param({"4", "16", "32"})
+    private int headerCount;
+
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private FullHttpRequest request;
+
+    @Setup
+    public void setup() {
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ctx = channel.pipeline().firstContext();
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, bodySize == 0 ? HttpMethod.GET : HttpMethod.POST,
+                "/echo", randomBody(bodySize));
+        addHeaders(request.headers(), headerCount);
+        if (bodySize > 0) {
+            request.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, bodySize);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        request.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void buildFullHttpResponse(Blackhole bh) {
+        FullHttpResponse response = EchoHttpServerHandler.buildFullHttpResponse(ctx, request);
+        bh.consume(response);
+        response.release();
+    }
+
+    static ByteBuf randomBody(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return Unpooled.directBuffer(size).writeBytes(bytes);
+    }
+
+    /**
+     * Adds the headers a typical client sends, padded with custom headers up to the given count.
+     */
+    static void addHeaders(HttpHeaders headers, int count) {
+        String[][] common = {
+                {"Host", "localhost:8688"},
+                {"User-Agent", "Apache-HttpClient/4.5.13 (Java/1.8.0_292)"},
+                {"Accept", "*/*"},
+                {"Content-Type", "application/json"},
+                {"Accept-Encoding", "gzip,deflate"},
+                {"Connection", "keep-alive"},
+        };
+        for (int i = 0; i < count; i++) {
+            if (i < common.length) {
+                headers.add(common[i][0], common[i][1]);
+            } else {
+                headers.add("X-Benchmark-Header-" + i, "value-" + i + "-\"quoted\"");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Netty HTTP/1.1 codec with the {@link LeanHttpRequestDecoder lean codec} on the same requests, through
+ * the pipeline set up by {@link HttpServerInitializer}: raw request bytes in, encoded response bytes out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Http1CodecBenchmark {
+
+    private static final int PIPELINED_REQUESTS = 16;
+
+    @Param({"0", "1024", "20480"})
+    private int bodySize;
+
+    @Param({"16"})
+    private int headerCount;
+
+    @Param({"netty", "lean"})
+    private String codec;
+
+    private byte[] request;
+    private byte[] pipelinedRequests;
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        request = Http1PipelineBenchmark.encodeRequest(bodySize, headerCount);
+        pipelinedRequests = new byte[request.length * PIPELINED_REQUESTS];
+        for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+            System.arraycopy(request, 0, pipelinedRequests, i * request.length, request.length);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupChannel() {
+        channel = new EmbeddedChannel(new HttpServerInitializer(null, ResponseDelay.NONE, FlushPolicy.DEFAULT,
+                FixedResponses.NONE, ConnectionLimits.DEFAULT, null, null, false, "lean".equals(codec),
+                null, null));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownChannel() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * One request and response on a kept alive connection.
+     */
+    @Benchmark
+    public void http1(Blackhole bh) {
+        channel.writeInbound(Unpooled.wrappedBuffer(request));
+        Http1PipelineBenchmark.drainOutbound(channel, bh);
+    }
+
+    /**
+     * {@value #PIPELINED_REQUESTS} pipelined requests read at once.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED_REQUESTS)
+    public void http1Pipelined(Blackhole bh) {
+        channel.writeInbound(Unpooled.wrappedBuffer(pipelinedRequests));
+        Http1PipelineBenchmark.drainOutbound(channel, bh);
+    }
+}
@@ -0,0 +1,110 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the HTTP/1.1 server pipeline set up by {@link HttpServerInitializer} through an {@link EmbeddedChannel}:
+ * raw request bytes in, encoded response bytes out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Http1PipelineBenchmark {
+
+    @Param({"0", "1024", "20480"})
+    private int bodySize;
+
+    @Param({"16"})
+    private int headerCount;
+
+    @Param({"false", "true"})
+    private boolean streamContent;
+
+    private static final FixedResponses FIXED_RESPONSES = new FixedResponses(null, 1024);
+
+    private byte[] request;
+    private EmbeddedChannel channel;
+    private EmbeddedChannel fixedResponseChannel;
+
+    @Setup
+    public void setup() {
+        request = encodeRequest(bodySize, headerCount);
+    }
+
+    /**
+     * Encodes a GET request, or a POST request with a random body, with the given number of common headers.
+     */
+    static byte[] encodeRequest(int bodySize, int headerCount) {
+        HttpHeaders headers = new DefaultHttpHeaders(false);
+        BuildFullHttpResponseBenchmark.addHeaders(headers, headerCount);
+        StringBuilder head = new StringBuilder(bodySize == 0 ? "GET" : "POST").append(" /echo HTTP/1.1\r\n");
+        for (Map.Entry<String, String> header : headers) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (bodySize > 0) {
+            head.append("Content-Length: ").append(bodySize).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(CharsetUtil.US_ASCII);
+        byte[] request = new byte[headBytes.length + bodySize];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        BuildFullHttpResponseBenchmark.randomBody(bodySize).readBytes(request, headBytes.length, bodySize);
+        return request;
+    }
+
+    @Setup(Level.Iteration)
+    public void setupChannel() {
+        channel = new EmbeddedChannel(new HttpServerInitializer(null, ResponseDelay.NONE, FlushPolicy.DEFAULT,
+                FixedResponses.NONE, ConnectionLimits.DEFAULT, null, null, streamContent, false, null, null));
+        fixedResponseChannel = new EmbeddedChannel(new HttpServerInitializer(null, ResponseDelay.NONE,
+                FlushPolicy.DEFAULT, FIXED_RESPONSES, ConnectionLimits.DEFAULT, null, null, streamContent, false, null,
+                null));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownChannel() {
+        channel.finishAndReleaseAll();
+        fixedResponseChannel.finishAndReleaseAll();
+    }
+
+    /**
+     * One request and response on a kept alive connection.
+     */
+    @Benchmark
+    public void http1(Blackhole bh) {
+        channel.writeInbound(Unpooled.wrappedBuffer(request));
+        drainOutbound(channel, bh);
+    }
+
+    /**
+     * One request answered with a pre-encoded 1KB {@link FixedResponses fixed response}.
+     */
+    @Benchmark
+    public void http1FixedResponse(Blackhole bh) {
+        fixedResponseChannel.writeInbound(Unpooled.wrappedBuffer(request));
+        drainOutbound(fixedResponseChannel, bh);
+    }
+
+    static void drainOutbound(EmbeddedChannel channel, Blackhole bh) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (bh != null) {
+                bh.consume(msg);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
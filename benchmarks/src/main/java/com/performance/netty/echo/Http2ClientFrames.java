@@ -0,0 +1,69 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Flags;
+import io.netty.handler.codec.http2.Http2FrameTypes;
+import io.netty.handler.codec.http2.Http2Headers;
+
+/**
+ * Pre-encodes the frames an HTTP/2 client sends, so that benchmarks only measure the server side.
+ */
+final class Http2ClientFrames {
+
+    private final byte[] headerBlock;
+    private final byte[] body;
+
+    /**
+     * @param bodySize size of the request body, a request without body is a GET with END_STREAM on its HEADERS
+     */
+    Http2ClientFrames(int bodySize) throws Http2Exception {
+        Http2Headers headers = new DefaultHttp2Headers()
+                .method(bodySize == 0 ? "GET" : "POST")
+                .scheme("http")
+                .authority("localhost:8688")
+                .path("/echo");
+        headers.add("user-agent", "Apache-HttpClient/4.5.13 (Java/1.8.0_292)");
+        headers.add("content-type", "application/json");
+        // The block only uses literals and the static table, so it can be replayed on any stream
+        ByteBuf buf = Unpooled.buffer();
+        new DefaultHttp2HeadersEncoder().encodeHeaders(1, headers, buf);
+        headerBlock = ByteBufUtil.getBytes(buf);
+        buf.release();
+        body = ByteBufUtil.getBytes(BuildFullHttpResponseBenchmark.randomBody(bodySize));
+    }
+
+    /**
+     * Returns the client connection preface followed by an empty SETTINGS frame.
+     */
+    static ByteBuf preface() {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(Http2CodecUtil.connectionPrefaceBuf());
+        Http2CodecUtil.writeFrameHeader(buf, 0, Http2FrameTypes.SETTINGS, new Http2Flags(), 0);
+        return buf;
+    }
+
+    /**
+     * Writes a complete request on the given stream. The request is preceded by a connection WINDOW_UPDATE
+     * returning the bytes the echoed response will use, as a client reading the response would.
+     */
+    void writeRequest(ByteBuf out, int streamId) {
+        if (body.length > 0) {
+            Http2CodecUtil.writeFrameHeader(out, 4, Http2FrameTypes.WINDOW_UPDATE, new Http2Flags(), 0);
+            out.writeInt(body.length);
+        }
+        Http2CodecUtil.writeFrameHeader(out, headerBlock.length, Http2FrameTypes.HEADERS,
+                new Http2Flags().endOfHeaders(true).endOfStream(body.length == 0), streamId);
+        out.writeBytes(headerBlock);
+        if (body.length > 0) {
+            Http2CodecUtil.writeFrameHeader(out, body.length, Http2FrameTypes.DATA,
+                    new Http2Flags().endOfStream(true), streamId);
+            out.writeBytes(body);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.performance.netty.echo.Http1PipelineBenchmark.drainOutbound;
+
+/**
+ * Drives the HTTP/2 server pipelines through an {@link EmbeddedChannel}: the cleartext upgrade set up by
+ * {@link Http2ServerInitializer}, and streams handled by {@link EchoHttp2ServerHandler} or
+ * {@link EchoHttp2AggregatingServerHandler} on an established connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Http2PipelineBenchmark {
+
+    private static final String H2C_UPGRADE_REQUEST = "GET / HTTP/1.1\r\n" +
+            "Host: localhost:8688\r\n" +
+            "Connection: Upgrade, HTTP2-Settings\r\n" +
+            "Upgrade: h2c\r\n" +
+            "HTTP2-Settings: AAMAAABkAAQCAAAAAAIAAAAA\r\n" +
+            "\r\n";
+
+    @Param({"0", "1024", "16384"})
+    private int bodySize;
+
+    @Param({"false", "true"})
+    private boolean aggregateContent;
+
+    private byte[] h2cUpgradeRequest;
+    private Http2ClientFrames http2Frames;
+
+    private EmbeddedChannel channel;
+    private int nextStreamId;
+
+    @Setup
+    public void setup() throws Http2Exception {
+        h2cUpgradeRequest = H2C_UPGRADE_REQUEST.getBytes(CharsetUtil.US_ASCII);
+        http2Frames = new Http2ClientFrames(bodySize);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupChannel() {
+        channel = new EmbeddedChannel(Http2Config.DEFAULT.newFrameCodec(),
+                Http2OrHttpHandler.newHttp2Handler(ResponseDelay.NONE, FlushPolicy.DEFAULT, FixedResponses.NONE,
+                        aggregateContent));
+        channel.writeInbound(Http2ClientFrames.preface());
+        drainOutbound(channel, null);
+        nextStreamId = 1;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownChannel() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * A new cleartext connection upgraded to HTTP/2, followed by one request.
+     */
+    @Benchmark
+    public void h2cUpgrade(Blackhole bh) {
+        EmbeddedChannel upgradeChannel =
+                new EmbeddedChannel(new Http2ServerInitializer(null, ResponseDelay.NONE, FlushPolicy.DEFAULT,
+                        FixedResponses.NONE, Http2Config.DEFAULT, ConnectionLimits.DEFAULT, null, null,
+                        aggregateContent, false, null, null));
+        upgradeChannel.writeInbound(Unpooled.wrappedBuffer(h2cUpgradeRequest));
+        ByteBuf frames = Http2ClientFrames.preface();
+        http2Frames.writeRequest(frames, 3);
+        upgradeChannel.writeInbound(frames);
+        drainOutbound(upgradeChannel, bh);
+        upgradeChannel.finishAndReleaseAll();
+    }
+
+    /**
+     * One request on a new stream of an established connection.
+     */
+    @Benchmark
+    public void http2Stream(Blackhole bh) {
+        ByteBuf frames = channel.alloc().buffer();
+        http2Frames.writeRequest(frames, nextStreamId);
+        nextStreamId += 2;
+        channel.writeInbound(frames);
+        drainOutbound(channel, bh);
+    }
+}
@@ -0,0 +1,506 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary access log with a record per request. The event loops never write to a file or take a lock: every event
+ * loop adds fixed size records to its own ring buffer, and a single background thread drains the rings into a
+ * memory-mapped segment file. When a ring is full its records are dropped and counted instead of slowing the event
+ * loop down.
+ * <p>
+ * The segments, see {@link MappedSegments}, have the magic {@code EACL} and the record count is updated after every
+ * drain. The records follow the segment header, all numbers are big-endian:
+ * <pre>
+ *  0 long  time the response was written, milliseconds since the epoch
+ *  8 int   time from reading the request to writing its response, microseconds
+ * 12 int   request body bytes
+ * 16 int   response body bytes, or the whole response for pre-encoded fixed responses
+ * 20 short status
+ * 22 byte  method, see {@link #METHODS}, 0 for others
+ * 23 byte  protocol: 1 HTTP/1.0, 2 HTTP/1.1, 3 HTTP/2
+ * 24 int   IPv4 address of the client, 0 for other addresses
+ * 28 short port of the client
+ * 30 short reserved
+ * </pre>
+ * The segments are converted to text or CSV with the {@code access-log} command, see {@link AccessLogDecoder}.
+ */
+final class AccessLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    static final int MAGIC = 0x4541434c;
+    static final short VERSION = 1;
+    static final int RECORD_SIZE = 32;
+    static final String SEGMENT_PREFIX = "access";
+
+    static final byte PROTOCOL_HTTP_1_0 = 1;
+    static final byte PROTOCOL_HTTP_1_1 = 2;
+    static final byte PROTOCOL_HTTP_2 = 3;
+
+    /**
+     * The methods with a code, which is their index. Index 0 stands for any other method.
+     */
+    static final AsciiString[] METHODS = {null, HttpMethod.GET.asciiName(), HttpMethod.HEAD.asciiName(),
+            HttpMethod.POST.asciiName(), HttpMethod.PUT.asciiName(), HttpMethod.DELETE.asciiName(),
+            HttpMethod.OPTIONS.asciiName(), HttpMethod.PATCH.asciiName(), HttpMethod.TRACE.asciiName(),
+            HttpMethod.CONNECT.asciiName()};
+
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final File directory;
+    private final double sampleRate;
+    private final int ringCapacity;
+    private final long segmentSize;
+    private final int maxSegments;
+    // Only accessed by the drain thread
+    private final MappedSegments segments;
+
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Ring> current = new FastThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(ringCapacity);
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    private final Thread drainThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param directory    directory of the segment files
+     * @param sampleRate   fraction of the requests logged, between 0 and 1
+     * @param ringCapacity records buffered for every event loop, a power of two
+     * @param segmentSize  size of a segment file in bytes
+     * @param maxSegments  segment files kept, the oldest ones are deleted
+     * @throws IllegalArgumentException when a size is invalid
+     */
+    AccessLog(File directory, double sampleRate, int ringCapacity, long segmentSize, int maxSegments) {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate (expected > 0 and <= 1): " + sampleRate);
+        }
+        if (ringCapacity <= 0 || Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("ringCapacity (expected a power of two): " + ringCapacity);
+        }
+        int minSegmentSize = MappedSegments.HEADER_SIZE + RECORD_SIZE;
+        if (segmentSize < minSegmentSize || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize (expected >= " + minSegmentSize + " and <= " +
+                    Integer.MAX_VALUE + "): " + segmentSize);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments (expected >= 1): " + maxSegments);
+        }
+        this.directory = directory;
+        this.sampleRate = sampleRate;
+        this.ringCapacity = ringCapacity;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.segments = new MappedSegments(directory, SEGMENT_PREFIX, MAGIC, VERSION, RECORD_SIZE, segmentSize,
+                maxSegments);
+        this.drainThread = new Thread(this::drainLoop, "access-log");
+        this.drainThread.setDaemon(true);
+    }
+
+    /**
+     * Starts draining the rings into the segment files.
+     *
+     * @throws IOException when the directory cannot be created
+     */
+    void start() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the access log directory " + directory);
+        }
+        drainThread.start();
+    }
+
+    /**
+     * Stops the drain thread once it has written out the records buffered so far.
+     */
+    void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainThread);
+        drainThread.join();
+    }
+
+    /**
+     * Returns a new handler logging the requests of a connection, added after the HTTP/1.1 decoder or the HTTP/2
+     * frame codec.
+     */
+    Handler newHandler() {
+        return new Handler(this);
+    }
+
+    long records() {
+        long records = 0;
+        for (Ring ring : rings) {
+            records += ring.tail;
+        }
+        return records;
+    }
+
+    long dropped() {
+        long dropped = 0;
+        for (Ring ring : rings) {
+            dropped += ring.dropped;
+        }
+        return dropped;
+    }
+
+    private boolean sample() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "directory=" + directory + ", sampleRate=" + sampleRate + ", ringCapacity=" + ringCapacity +
+                ", segmentSize=" + segmentSize + ", maxSegments=" + maxSegments;
+    }
+
+    private void drainLoop() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                }
+            }
+            drain();
+            segments.close();
+        } catch (IOException e) {
+            logger.error("Failed to write the access log, no more requests are logged", e);
+            running = false;
+        }
+    }
+
+    /**
+     * Copies the records of all rings to the segment.
+     *
+     * @return the number of records copied
+     */
+    private int drain() throws IOException {
+        int drained = 0;
+        for (Ring ring : rings) {
+            long head = ring.head;
+            long tail = ring.tail;
+            while (head < tail) {
+                ByteBuffer segment = segments.reserve(RECORD_SIZE);
+                int index = (int) (head & (ring.capacity - 1));
+                int count = (int) Math.min(Math.min(tail - head, ring.capacity - index),
+                        segment.remaining() / RECORD_SIZE);
+                ring.view.limit((index + count) * RECORD_SIZE).position(index * RECORD_SIZE);
+                segment.put(ring.view);
+                segments.added(count);
+                head += count;
+                drained += count;
+            }
+            Ring.HEAD.lazySet(ring, head);
+        }
+        if (drained > 0) {
+            segments.sync();
+        }
+        return drained;
+    }
+
+    /**
+     * Ring of records with a single producer, the event loop, and a single consumer, the drain thread. The producer
+     * only moves the tail and the consumer only the head, both with ordered stores.
+     */
+    private static final class Ring {
+        static final AtomicLongFieldUpdater<Ring> HEAD = AtomicLongFieldUpdater.newUpdater(Ring.class, "head");
+        static final AtomicLongFieldUpdater<Ring> TAIL = AtomicLongFieldUpdater.newUpdater(Ring.class, "tail");
+        static final AtomicLongFieldUpdater<Ring> DROPPED = AtomicLongFieldUpdater.newUpdater(Ring.class, "dropped");
+
+        final int capacity;
+        final ByteBuffer buffer;
+        // Used by the drain thread only
+        final ByteBuffer view;
+        volatile long head;
+        volatile long tail;
+        volatile long dropped;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+            this.view = buffer.duplicate();
+        }
+
+        void add(long timeMillis, long latencyNanos, long requestBytes, long responseBytes, int status, int method,
+                 int protocol, int address, int port) {
+            long t = tail;
+            if (t - head >= capacity) {
+                DROPPED.lazySet(this, dropped + 1);
+                return;
+            }
+            int offset = (int) (t & (capacity - 1)) * RECORD_SIZE;
+            buffer.putLong(offset, timeMillis)
+                    .putInt(offset + 8, (int) Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), Integer.MAX_VALUE))
+                    .putInt(offset + 12, (int) Math.min(requestBytes, Integer.MAX_VALUE))
+                    .putInt(offset + 16, (int) Math.min(responseBytes, Integer.MAX_VALUE))
+                    .putShort(offset + 20, (short) status)
+                    .put(offset + 22, (byte) method)
+                    .put(offset + 23, (byte) protocol)
+                    .putInt(offset + 24, address)
+                    .putShort(offset + 28, (short) port)
+                    .putShort(offset + 30, (short) 0);
+            TAIL.lazySet(this, t + 1);
+        }
+    }
+
+    /**
+     * Follows the requests of a connection and logs each of them once the last part of its response was written.
+     * HTTP/1.1 responses are matched to the requests in order, HTTP/2 responses by their stream. Informational
+     * responses other than a WebSocket upgrade are not logged, and neither are reset streams. A pre-encoded response
+     * buffer written after a request was read completely is logged as a {@code 200} response.
+     */
+    static final class Handler extends ChannelDuplexHandler {
+
+        private final AccessLog accessLog;
+        // Pipelined HTTP/1.1 requests in order, including the ones which are not sampled
+        private final Deque<Exchange> http1Exchanges = new ArrayDeque<>();
+        // HTTP/2 streams, created on the first one
+        private IntObjectMap<Exchange> http2Exchanges;
+        private int address;
+        private int port;
+
+        private Handler(AccessLog accessLog) {
+            this.accessLog = accessLog;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            SocketAddress remoteAddress = ctx.channel().remoteAddress();
+            if (remoteAddress instanceof InetSocketAddress) {
+                InetSocketAddress inetAddress = (InetSocketAddress) remoteAddress;
+                if (inetAddress.getAddress() instanceof Inet4Address) {
+                    address = ByteBuffer.wrap(inetAddress.getAddress().getAddress()).getInt();
+                }
+                port = inetAddress.getPort();
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof LeanHttpRequest) {
+                // Complete already, with its body aggregated
+                LeanHttpRequest request = (LeanHttpRequest) msg;
+                Exchange exchange = new Exchange(this, accessLog.sample(), methodCode(request.method().asciiName()),
+                        request.isHttp10() ? PROTOCOL_HTTP_1_0 : PROTOCOL_HTTP_1_1);
+                exchange.requestBytes = request.content().readableBytes();
+                exchange.requestEnded = true;
+                http1Exchanges.addLast(exchange);
+            }
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                int protocol = HttpVersion.HTTP_1_0.equals(request.protocolVersion()) ? PROTOCOL_HTTP_1_0 :
+                        PROTOCOL_HTTP_1_1;
+                http1Exchanges.addLast(new Exchange(this, accessLog.sample(), methodCode(request.method().asciiName()),
+                        protocol));
+            }
+            if (msg instanceof HttpContent) {
+                Exchange exchange = http1Exchanges.peekLast();
+                if (exchange != null) {
+                    exchange.requestBytes += ((HttpContent) msg).content().readableBytes();
+                    exchange.requestEnded = msg instanceof LastHttpContent;
+                }
+            } else if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) msg;
+                if (http2Exchanges == null) {
+                    http2Exchanges = new IntObjectHashMap<>();
+                }
+                int streamId = headersFrame.stream().id();
+                // Trailers belong to the exchange created for the headers
+                if (!http2Exchanges.containsKey(streamId) && accessLog.sample()) {
+                    http2Exchanges.put(streamId, new Exchange(this, true,
+                            methodCode(headersFrame.headers().method()), PROTOCOL_HTTP_2));
+                }
+            } else if (msg instanceof Http2DataFrame) {
+                Exchange exchange = http2Exchange((Http2StreamFrame) msg);
+                if (exchange != null) {
+                    exchange.requestBytes += ((Http2DataFrame) msg).content().readableBytes();
+                }
+            } else if (msg instanceof Http2ResetFrame && http2Exchanges != null) {
+                http2Exchanges.remove(((Http2ResetFrame) msg).stream().id());
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            Exchange done = null;
+            if (msg instanceof HttpResponse || msg instanceof HttpContent) {
+                done = http1Write(msg);
+            } else if (msg instanceof FileRegion) {
+                Exchange exchange = http1Exchanges.peekFirst();
+                if (exchange != null) {
+                    exchange.responseBytes += ((FileRegion) msg).count();
+                }
+            } else if (msg instanceof ByteBuf) {
+                Exchange exchange = http1Exchanges.peekFirst();
+                if (exchange != null && exchange.requestEnded) {
+                    http1Exchanges.removeFirst();
+                    exchange.status = encodedStatus((ByteBuf) msg);
+                    exchange.responseBytes = ((ByteBuf) msg).readableBytes();
+                    done = exchange;
+                }
+            } else if (msg instanceof Http2StreamFrame) {
+                done = http2Write((Http2StreamFrame) msg);
+            }
+            if (done != null && done.sampled) {
+                promise = promise.unvoid();
+                promise.addListener(done);
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        /**
+         * Returns the status of a pre-encoded HTTP/1.1 response, from the status line it starts with.
+         */
+        private static int encodedStatus(ByteBuf response) {
+            int i = response.readerIndex() + "HTTP/1.1 ".length();
+            if (response.readableBytes() < "HTTP/1.1 200".length()) {
+                return HttpResponseStatus.OK.code();
+            }
+            return (response.getByte(i) - '0') * 100 + (response.getByte(i + 1) - '0') * 10 +
+                    response.getByte(i + 2) - '0';
+        }
+
+        private Exchange http1Write(Object msg) {
+            Exchange exchange = http1Exchanges.peekFirst();
+            if (exchange == null) {
+                return null;
+            }
+            if (msg instanceof HttpResponse) {
+                HttpResponseStatus status = ((HttpResponse) msg).status();
+                // Except for 101 Switching Protocols, which ends the exchange
+                if (status.codeClass() == HttpStatusClass.INFORMATIONAL &&
+                        !HttpResponseStatus.SWITCHING_PROTOCOLS.equals(status)) {
+                    return null;
+                }
+                exchange.status = status.code();
+            }
+            if (msg instanceof HttpContent) {
+                exchange.responseBytes += ((HttpContent) msg).content().readableBytes();
+                if (msg instanceof LastHttpContent) {
+                    return http1Exchanges.removeFirst();
+                }
+            }
+            return null;
+        }
+
+        private Exchange http2Write(Http2StreamFrame frame) {
+            Exchange exchange = http2Exchange(frame);
+            if (exchange == null) {
+                return null;
+            }
+            boolean endStream;
+            if (frame instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) frame;
+                CharSequence status = headersFrame.headers().status();
+                if (status != null) {
+                    int code = HttpResponseStatus.parseLine(status).code();
+                    if (HttpStatusClass.valueOf(code) == HttpStatusClass.INFORMATIONAL) {
+                        return null;
+                    }
+                    exchange.status = code;
+                }
+                endStream = headersFrame.isEndStream();
+            } else if (frame instanceof Http2DataFrame) {
+                exchange.responseBytes += ((Http2DataFrame) frame).content().readableBytes();
+                endStream = ((Http2DataFrame) frame).isEndStream();
+            } else {
+                // A reset stream is not logged
+                endStream = frame instanceof Http2ResetFrame;
+                exchange = null;
+            }
+            if (endStream) {
+                http2Exchanges.remove(frame.stream().id());
+            }
+            return endStream ? exchange : null;
+        }
+
+        private Exchange http2Exchange(Http2StreamFrame frame) {
+            return http2Exchanges == null || frame.stream() == null ? null :
+                    http2Exchanges.get(frame.stream().id());
+        }
+
+        private static int methodCode(CharSequence method) {
+            if (method != null) {
+                for (int i = 1; i < METHODS.length; i++) {
+                    if (METHODS[i].contentEquals(method)) {
+                        return i;
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A request and its response, logged by the write future of the last part of the response.
+     */
+    private static final class Exchange implements ChannelFutureListener {
+        final Handler handler;
+        final boolean sampled;
+        final long startNanos = System.nanoTime();
+        final int method;
+        final int protocol;
+        long requestBytes;
+        long responseBytes;
+        int status;
+        boolean requestEnded;
+
+        Exchange(Handler handler, boolean sampled, int method, int protocol) {
+            this.handler = handler;
+            this.sampled = sampled;
+            this.method = method;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess()) {
+                handler.accessLog.current.get().add(System.currentTimeMillis(), System.nanoTime() - startNanos,
+                        requestBytes, responseBytes, status, method, protocol, handler.address, handler.port);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.performance.netty.echo;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts the segments of the binary {@link AccessLog} to text or CSV. Started with
+ * {@code EchoHttpServer access-log [options] <files or directories>}, the records of a directory's segments are
+ * written in the order the segments were created.
+ */
+public final class AccessLogDecoder {
+
+    private static final PrintStream consoleOut = System.out;
+
+    private static final PrintStream consoleErr = System.err;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    enum Format {
+        TEXT, CSV
+    }
+
+    @Parameter(description = "Segment files or directories of segment files")
+    private List<String> paths = new ArrayList<>();
+
+    @Parameter(names = "--format", description = "Output format: text or csv")
+    private Format format = Format.TEXT;
+
+    @Parameter(names = {"-h", "--help"}, description = "Display Help", help = true)
+    private boolean help = false;
+
+    public static void main(String[] args) throws IOException {
+        AccessLogDecoder decoder = new AccessLogDecoder();
+        final JCommander jcmdr = new JCommander(decoder);
+        jcmdr.setProgramName(EchoHttpServer.class.getSimpleName() + " access-log");
+        try {
+            jcmdr.parse(args);
+        } catch (ParameterException ex) {
+            consoleErr.println(ex.getMessage());
+            return;
+        }
+
+        if (decoder.help || decoder.paths.isEmpty()) {
+            jcmdr.usage();
+            return;
+        }
+
+        decoder.run();
+    }
+
+    private void run() throws IOException {
+        if (format == Format.CSV) {
+            consoleOut.println("time,latency_us,method,protocol,status,request_bytes,response_bytes,client");
+        }
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.exists()) {
+                consoleErr.println("No such file or directory: " + file);
+                continue;
+            }
+            for (File segment : MappedSegments.list(file, AccessLog.SEGMENT_PREFIX)) {
+                decode(segment);
+            }
+        }
+        consoleOut.flush();
+    }
+
+    private void decode(File segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment),
+                64 * 1024))) {
+            if (in.readInt() != AccessLog.MAGIC) {
+                throw new IOException(segment + " is not an access log segment");
+            }
+            short version = in.readShort();
+            short recordSize = in.readShort();
+            if (version != AccessLog.VERSION || recordSize != AccessLog.RECORD_SIZE) {
+                throw new IOException("Unsupported access log version " + version + " of " + segment);
+            }
+            in.readLong();
+            long records = in.readLong();
+            in.readLong();
+            StringBuilder line = new StringBuilder(128);
+            char separator = format == Format.CSV ? ',' : ' ';
+            for (long i = 0; i < records; i++) {
+                long timeMillis = in.readLong();
+                int latencyMicros = in.readInt();
+                long requestBytes = in.readInt() & 0xffffffffL;
+                long responseBytes = in.readInt() & 0xffffffffL;
+                int status = in.readUnsignedShort();
+                int method = in.readUnsignedByte();
+                int protocol = in.readUnsignedByte();
+                int address = in.readInt();
+                int port = in.readUnsignedShort();
+                in.readShort();
+
+                line.setLength(0);
+                TIME_FORMAT.formatTo(Instant.ofEpochMilli(timeMillis), line);
+                line.append(separator)
+                        .append(latencyMicros).append(separator)
+                        .append(method > 0 && method < AccessLog.METHODS.length ? AccessLog.METHODS[method] : "OTHER")
+                        .append(separator).append(protocolName(protocol)).append(separator)
+                        .append(status).append(separator)
+                        .append(requestBytes).append(separator)
+                        .append(responseBytes).append(separator);
+                if (address != 0) {
+                    line.append(address >>> 24).append('.').append(address >> 16 & 0xff).append('.')
+                            .append(address >> 8 & 0xff).append('.').append(address & 0xff).append(':').append(port);
+                } else {
+                    line.append('-');
+                }
+                consoleOut.println(line);
+            }
+        } catch (EOFException e) {
+            consoleErr.println(segment + " is truncated");
+        }
+    }
+
+    static String protocolName(int protocol) {
+        switch (protocol) {
+            case AccessLog.PROTOCOL_HTTP_1_0:
+                return "HTTP/1.0";
+            case AccessLog.PROTOCOL_HTTP_1_1:
+                return "HTTP/1.1";
+            case AccessLog.PROTOCOL_HTTP_2:
+                return "HTTP/2";
+            default:
+                return "-";
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.performance.netty.echo;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Small HTTP server on a separate port for operating the echo server. It is kept off the echo port so that
+ * scraping it never competes with, or shows up in, the traffic being measured.
+ * <p>
+ * Endpoints:
+ * <ul>
+ * <li>{@code GET /metrics} - server metrics in the Prometheus text format</li>
+ * <li>{@code GET /allocator} - memory held by the buffer allocator, per arena</li>
+ * <li>{@code GET /config} - the current {@link RuntimeConfig}, one {@code name=value} line per setting</li>
+ * <li>{@code POST /config} - changes the settings given as query or form parameters, e.g.
+ * {@code POST /config?delay=exponential:20&error-rate=0.01}, and returns the new config</li>
+ * <li>{@code GET /stats} - a short summary of the live traffic</li>
+ * </ul>
+ */
+final class AdminServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private AdminServer() {
+    }
+
+    /**
+     * Binds the admin server. The endpoints are not authenticated, so it should only be reachable from the host
+     * itself or a trusted network.
+     *
+     * @param host the address to bind, e.g. the loopback address
+     */
+    static Channel start(EventLoopGroup group, Class<? extends ServerChannel> channelClass, String host, int port)
+            throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group)
+                .channel(channelClass)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(),
+                                new HttpObjectAggregator(64 * 1024),
+                                new AdminHandler());
+                    }
+                });
+        Channel channel = b.bind(host, port).sync().channel();
+        logger.info("Admin Server. Host: {}, Port: {}", host, port);
+        return channel;
+    }
+
+    private static final class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+            final FullHttpResponse response;
+            if (HttpMethod.GET.equals(request.method()) && "/metrics".equals(decoder.path())) {
+                StringBuilder body = new StringBuilder(4096);
+                ServerMetrics.writePrometheus(body);
+                response = newResponse(ctx, OK, PROMETHEUS_CONTENT_TYPE, body);
+            } else if (HttpMethod.GET.equals(request.method()) && "/allocator".equals(decoder.path())) {
+                StringBuilder body = new StringBuilder(4096);
+                AllocatorConfig.writeReport(body, ServerMetrics.allocator());
+                response = newResponse(ctx, OK, "text/plain; charset=utf-8", body);
+            } else if (HttpMethod.GET.equals(request.method()) && "/config".equals(decoder.path())) {
+                StringBuilder body = new StringBuilder(256);
+                RuntimeConfig.current().write(body);
+                response = newResponse(ctx, OK, "text/plain; charset=utf-8", body);
+            } else if (HttpMethod.POST.equals(request.method()) && "/config".equals(decoder.path())) {
+                response = updateConfig(ctx, request, decoder);
+            } else if (HttpMethod.GET.equals(request.method()) && "/stats".equals(decoder.path())) {
+                StringBuilder body = new StringBuilder(512);
+                ServerMetrics.writeStats(body);
+                response = newResponse(ctx, OK, "text/plain; charset=utf-8", body);
+            } else {
+                response = newResponse(ctx, NOT_FOUND, "text/plain; charset=utf-8", "Not Found\n");
+            }
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private static FullHttpResponse updateConfig(ChannelHandlerContext ctx, FullHttpRequest request,
+                                                     QueryStringDecoder decoder) {
+            Map<String, List<String>> changes = new LinkedHashMap<>(decoder.parameters());
+            if (request.content().isReadable()) {
+                // Form parameters
+                changes.putAll(new QueryStringDecoder(request.content().toString(CharsetUtil.UTF_8), false)
+                        .parameters());
+            }
+            try {
+                RuntimeConfig config = RuntimeConfig.update(changes);
+                logger.info("Runtime Config: {}", config);
+                StringBuilder body = new StringBuilder(256);
+                config.write(body);
+                return newResponse(ctx, OK, "text/plain; charset=utf-8", body);
+            } catch (IllegalArgumentException e) {
+                return newResponse(ctx, BAD_REQUEST, "text/plain; charset=utf-8", e.getMessage() + "\n");
+            }
+        }
+
+        private static FullHttpResponse newResponse(ChannelHandlerContext ctx, HttpResponseStatus status,
+                                                    String contentType, CharSequence body) {
+            ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), body);
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, content);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            HttpUtil.setContentLength(response, content.readableBytes());
+            return response;
+        }
+    }
+}
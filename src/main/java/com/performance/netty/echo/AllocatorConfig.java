@@ -0,0 +1,156 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The buffer allocator of the server channels. Echoed request bodies are held in its buffers until their response is
+ * written, so with large payloads the pooled allocator's direct memory is what runs out first. Its size is driven by
+ * the number of arenas (one per event loop avoids contention), the chunk size (every arena grows one chunk at a
+ * time) and the buffers each thread keeps cached.
+ */
+final class AllocatorConfig {
+
+    enum Type {
+        POOLED, UNPOOLED
+    }
+
+    private final Type type;
+    private final boolean preferDirect;
+    private final int directArenas;
+    private final int heapArenas;
+    private final int pageSize;
+    private final int maxOrder;
+    private final int smallCacheSize;
+    private final int normalCacheSize;
+    private final boolean useCacheForAllThreads;
+    private final ResourceLeakDetector.Level leakDetection;
+
+    /**
+     * Sizes left at -1 keep Netty's default, which can also be set with the {@code io.netty.allocator.*} system
+     * properties.
+     *
+     * @param type                  pooled or unpooled buffers
+     * @param preferDirect          whether buffers for I/O are allocated off-heap
+     * @param directArenas          arenas of direct memory
+     * @param heapArenas            arenas of heap memory
+     * @param pageSize              smallest unit allocated from a chunk, a power of two of at least 4096
+     * @param chunkSize             memory an arena allocates at once, the page size times a power of two
+     * @param smallCacheSize        buffers of a small size class each thread caches
+     * @param normalCacheSize       buffers of a normal size class each thread caches
+     * @param useCacheForAllThreads whether threads other than event loops cache buffers as well
+     * @param leakDetection         sampling of the buffer leak detection, {@code null} to leave it as is
+     * @throws IllegalArgumentException when a size is invalid
+     */
+    AllocatorConfig(Type type, boolean preferDirect, int directArenas, int heapArenas, int pageSize, int chunkSize,
+                    int smallCacheSize, int normalCacheSize, boolean useCacheForAllThreads,
+                    ResourceLeakDetector.Level leakDetection) {
+        this.type = type;
+        this.preferDirect = preferDirect;
+        this.directArenas = directArenas >= 0 ? directArenas : PooledByteBufAllocator.defaultNumDirectArena();
+        this.heapArenas = heapArenas >= 0 ? heapArenas : PooledByteBufAllocator.defaultNumHeapArena();
+        this.pageSize = pageSize > 0 ? pageSize : PooledByteBufAllocator.defaultPageSize();
+        if (chunkSize > 0) {
+            int order = Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(this.pageSize);
+            if (Integer.bitCount(chunkSize) != 1 || order < 0 || order > 14) {
+                throw new IllegalArgumentException("Chunk size must be the page size " + this.pageSize +
+                        " times a power of two up to 16384: " + chunkSize);
+            }
+            this.maxOrder = order;
+        } else {
+            this.maxOrder = PooledByteBufAllocator.defaultMaxOrder();
+        }
+        this.smallCacheSize = smallCacheSize >= 0 ? smallCacheSize : PooledByteBufAllocator.defaultSmallCacheSize();
+        this.normalCacheSize = normalCacheSize >= 0 ? normalCacheSize :
+                PooledByteBufAllocator.defaultNormalCacheSize();
+        this.useCacheForAllThreads = useCacheForAllThreads;
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Returns a new allocator with this configuration, and sets the leak detection level.
+     *
+     * @throws IllegalArgumentException when the pooled allocator rejects a size
+     */
+    ByteBufAllocator newAllocator() {
+        if (leakDetection != null) {
+            ResourceLeakDetector.setLevel(leakDetection);
+        }
+        if (type == Type.UNPOOLED) {
+            return new UnpooledByteBufAllocator(preferDirect);
+        }
+        return new PooledByteBufAllocator(preferDirect, heapArenas, directArenas, pageSize, maxOrder,
+                smallCacheSize, normalCacheSize, useCacheForAllThreads);
+    }
+
+    @Override
+    public String toString() {
+        String leakDetectionLevel =
+                "leakDetection=" + ResourceLeakDetector.getLevel().name().toLowerCase(Locale.ROOT);
+        if (type == Type.UNPOOLED) {
+            return "unpooled, preferDirect=" + preferDirect + ", " + leakDetectionLevel;
+        }
+        return "pooled, preferDirect=" + preferDirect + ", directArenas=" + directArenas + ", heapArenas=" +
+                heapArenas + ", pageSize=" + pageSize + ", chunkSize=" + (pageSize << maxOrder) +
+                ", smallCacheSize=" + smallCacheSize + ", normalCacheSize=" + normalCacheSize +
+                ", useCacheForAllThreads=" + useCacheForAllThreads + ", " + leakDetectionLevel;
+    }
+
+    /**
+     * Writes a report of the memory held by the allocator. For the pooled allocator it lists how full the chunks of
+     * every arena are: many chunks with a low usage mean memory is held by a few long lived buffers.
+     */
+    static void writeReport(StringBuilder out, ByteBufAllocator allocator) {
+        if (!(allocator instanceof ByteBufAllocatorMetricProvider)) {
+            out.append("No metrics for ").append(allocator.getClass().getSimpleName()).append('\n');
+            return;
+        }
+        ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+        out.append("Used direct memory: ").append(metric.usedDirectMemory())
+                .append(", used heap memory: ").append(metric.usedHeapMemory()).append('\n');
+        if (!(metric instanceof PooledByteBufAllocatorMetric)) {
+            return;
+        }
+        PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+        out.append("Chunk size: ").append(pooled.chunkSize())
+                .append(", thread local caches: ").append(pooled.numThreadLocalCaches()).append('\n');
+        writeArenas(out, "Direct", pooled.directArenas());
+        writeArenas(out, "Heap", pooled.heapArenas());
+    }
+
+    private static void writeArenas(StringBuilder out, String kind, List<PoolArenaMetric> arenas) {
+        for (int i = 0; i < arenas.size(); i++) {
+            PoolArenaMetric arena = arenas.get(i);
+            out.append(kind).append(" arena ").append(i)
+                    .append(": active allocations ").append(arena.numActiveAllocations())
+                    .append(", active bytes ").append(arena.numActiveBytes())
+                    .append(", thread caches ").append(arena.numThreadCaches())
+                    .append(", chunks by usage");
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                int chunks = 0;
+                long freeBytes = 0;
+                for (PoolChunkMetric chunk : chunkList) {
+                    chunks++;
+                    freeBytes += chunk.freeBytes();
+                }
+                out.append(' ').append(Math.max(chunkList.minUsage(), 0)).append('-')
+                        .append(chunkList.maxUsage()).append("%: ").append(chunks);
+                if (chunks > 0) {
+                    out.append(" (").append(freeBytes).append(" free)");
+                }
+            }
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated thread-per-request backend. Instead of waiting in the event loop's {@link DelayTimer}, every response is
+ * handed to a thread of this executor, which blocks for the response's delay before the response is written back on
+ * the connection's event loop. The event loops never block, but responses queue up once all the backend threads are
+ * busy and the queueing adds to their delay, the same way it does in front of a saturated blocking backend.
+ * <p>
+ * The executor is either a fixed pool of platform threads, or a virtual thread per request on JDK 21 and later.
+ */
+final class BlockingBackend {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockingBackend.class);
+
+    enum Mode {
+        /**
+         * No blocking backend, responses are delayed by the event loops' timers.
+         */
+        NONE,
+        /**
+         * A fixed pool of platform threads.
+         */
+        PLATFORM,
+        /**
+         * A new virtual thread per response, available on JDK 21 and later.
+         */
+        VIRTUAL
+    }
+
+    private final ExecutorService executor;
+    private final String description;
+    // Responses handed to the backend and not yet handed back
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private BlockingBackend(ExecutorService executor, String description) {
+        this.executor = executor;
+        this.description = description;
+    }
+
+    /**
+     * Creates the backend for a mode, or returns {@code null} for {@link Mode#NONE}. Falls back to platform threads
+     * when virtual threads are not supported by the running JDK.
+     *
+     * @param threads the size of the platform thread pool
+     */
+    static BlockingBackend create(Mode mode, int threads) {
+        if (mode == Mode.NONE) {
+            return null;
+        }
+        if (mode == Mode.VIRTUAL) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return new BlockingBackend(executor, "virtual threads");
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads are not supported by this JDK, falling back to {} platform threads",
+                        threads);
+            }
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads (expected > 0): " + threads);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new DefaultThreadFactory("blocking-backend", true));
+        return new BlockingBackend(executor, threads + " platform threads");
+    }
+
+    /**
+     * Blocks a backend thread for the given time, then runs the task on the channel's event loop. The time only
+     * starts once a thread has picked the response up.
+     */
+    void execute(ChannelHandlerContext ctx, long blockNanos, Runnable task) {
+        EventExecutor eventLoop = ctx.executor();
+        pending.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                long deadlineNanos = System.nanoTime() + blockNanos;
+                long remainingNanos = blockNanos;
+                while (remainingNanos > 0) {
+                    LockSupport.parkNanos(remainingNanos);
+                    remainingNanos = deadlineNanos - System.nanoTime();
+                }
+                pending.decrementAndGet();
+                eventLoop.execute(task);
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            pending.decrementAndGet();
+            eventLoop.execute(task);
+        }
+    }
+
+    /**
+     * Returns the number of responses currently held by the backend, running or queued.
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops accepting responses. The backend threads are daemon threads, responses still held by them are dropped
+     * when the JVM exits.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,536 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2FrameStreamEvent;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Responses of any size for requests to {@code /bytes/<size>}, generated by the server so that bandwidth can be
+ * tested without the client uploading anything. The body is the content of a payload file, repeated as often as
+ * needed.
+ * <p>
+ * Over cleartext HTTP/1.1 the file is sent with {@link DefaultFileRegion}s, which the NIO and epoll transports
+ * write with {@code sendfile}, so the payload is never copied into the JVM. A {@link SendfileWriter}, added to the
+ * pipeline on the first such response, writes the next region only once the previous one has been sent, since
+ * regions do not count towards the channel's writability. With TLS, on io_uring, and on HTTP/2 the
+ * body is written in chunks sliced from a read-only memory mapping of the file: HTTP/1.1 responses through a
+ * {@link ChunkedWriteHandler}, which is added to the pipeline on the first such response, and HTTP/2 streams by an
+ * {@link Http2Writer}, which writes as much as the stream's flow-control window allows.
+ */
+final class BulkPayload {
+
+    static final BulkPayload NONE = new BulkPayload(null, null, null, 0);
+
+    /**
+     * Returned by {@link #select} for a request larger than the maximum size, which is answered with a
+     * {@code 400 Bad Request}.
+     */
+    static final long TOO_LARGE = Long.MAX_VALUE;
+
+    static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024 * 1024;
+
+    private static final String PATH_PREFIX = "/bytes/";
+    private static final AsciiString CONTENT_TYPE = AsciiString.cached("application/octet-stream");
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Regions written in a row before the event loop gets to run other tasks
+    private static final int MAX_REGIONS_PER_TASK = 16;
+
+    private final File file;
+    // Read-only mapping of the whole file, not releasable
+    private final ByteBuf content;
+    // Open as long as the server runs, shared by all the file regions
+    private final FileChannel fileChannel;
+    private final long maxSize;
+
+    private BulkPayload(File file, ByteBuf content, FileChannel fileChannel, long maxSize) {
+        this.file = file;
+        this.content = content;
+        this.fileChannel = fileChannel;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Maps a payload file, which is created with random content when it does not exist yet.
+     *
+     * @param file    the payload file, or {@code null} for a temporary file deleted on exit
+     * @param size    the size of the payload file to create
+     * @param maxSize the largest response body served, larger requests are rejected
+     * @throws IOException when the file cannot be created or mapped
+     */
+    static BulkPayload create(File file, int size, long maxSize) throws IOException {
+        if (maxSize < 0 || maxSize >= TOO_LARGE) {
+            throw new IllegalArgumentException("The maximum payload size must be between 0 and " + (TOO_LARGE - 1) +
+                    ": " + maxSize);
+        }
+        if (file == null) {
+            file = File.createTempFile("echo-payload-", ".bin");
+            file.deleteOnExit();
+        } else if (file.exists()) {
+            size = -1;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            if (size >= 0) {
+                fill(channel, size);
+            }
+            long length = channel.size();
+            if (length == 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Payload file " + file + " must not be empty or larger than 2GB: " + length);
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+            return new BulkPayload(file, Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(mapped)), fileChannel,
+                    maxSize);
+        }
+    }
+
+    private static void fill(FileChannel channel, int size) throws IOException {
+        byte[] bytes = new byte[Math.min(size, 1024 * 1024)];
+        channel.truncate(0);
+        for (int written = 0; written < size; ) {
+            ThreadLocalRandom.current().nextBytes(bytes);
+            ByteBuffer block = ByteBuffer.wrap(bytes, 0, Math.min(bytes.length, size - written));
+            while (block.hasRemaining()) {
+                written += channel.write(block);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the response for a request URI, {@link #TOO_LARGE} when it is larger than the maximum
+     * size, or -1 when the request is not for a bulk payload.
+     */
+    long select(CharSequence uri) {
+        if (content == null || uri == null || !AsciiString.regionMatches(uri, false, 0, PATH_PREFIX, 0,
+                PATH_PREFIX.length())) {
+            return -1;
+        }
+        long size = 0;
+        int i = PATH_PREFIX.length();
+        for (; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            // Saturates, so that any number of digits is too large rather than not a size
+            size = size > maxSize ? size : size * 10 + (c - '0');
+        }
+        if (i == PATH_PREFIX.length() || (i < uri.length() && uri.charAt(i) != '?')) {
+            return -1;
+        }
+        return size > maxSize ? TOO_LARGE : size;
+    }
+
+    /**
+     * Writes a complete HTTP/1.1 response with a body of the given size, and flushes it.
+     *
+     * @return the future of the end of the response
+     */
+    ChannelFuture writeHttp1(ChannelHandlerContext ctx, long size, boolean keepAlive) {
+        if (size == TOO_LARGE) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST);
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+                    .set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+            return ctx.writeAndFlush(response);
+        }
+        HttpHeaders headers = new DefaultHttpHeaders(false)
+                .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE)
+                .set(HttpHeaderNames.CONTENT_LENGTH, size)
+                .set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK, headers);
+        if (isSendfileSupported(ctx)) {
+            if (ctx.pipeline().get(SendfileWriter.class) == null) {
+                ctx.pipeline().addBefore(ctx.name(), null, new SendfileWriter());
+            }
+            ctx.write(response);
+            ctx.write(new Sendfile(size));
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        if (ctx.pipeline().get(ChunkedWriteHandler.class) == null) {
+            ctx.pipeline().addBefore(ctx.name(), null, new ChunkedWriteHandler());
+        }
+        ctx.write(response);
+        return ctx.writeAndFlush(new HttpChunkedInput(new Chunks(size)));
+    }
+
+    /**
+     * Writes a complete HTTP/1.1 response with a body of the given size to a pipeline without an HTTP encoder, with
+     * an encoded head, and flushes it. The {@link ChunkedWriteHandler} or {@link SendfileWriter} is added right
+     * after the {@link LeanHttpRequestDecoder}, so that the handlers in between only see the head as a response.
+     *
+     * @return the future of the end of the response
+     */
+    ChannelFuture writeEncodedHttp1(ChannelHandlerContext ctx, long size, boolean keepAlive) {
+        if (size == TOO_LARGE) {
+            return ctx.writeAndFlush(ByteBufUtil.writeAscii(ctx.alloc(), "HTTP/1.1 400 Bad Request\r\n" +
+                    HttpHeaderNames.CONTENT_LENGTH + ": 0\r\n" +
+                    HttpHeaderNames.CONNECTION + ": " + (keepAlive ? HttpHeaderValues.KEEP_ALIVE :
+                    HttpHeaderValues.CLOSE) + "\r\n\r\n"));
+        }
+        ChannelFuture f = ctx.write(ByteBufUtil.writeAscii(ctx.alloc(), "HTTP/1.1 200 OK\r\n" +
+                HttpHeaderNames.CONTENT_TYPE + ": " + CONTENT_TYPE + "\r\n" +
+                HttpHeaderNames.CONTENT_LENGTH + ": " + size + "\r\n" +
+                HttpHeaderNames.CONNECTION + ": " + (keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE) +
+                "\r\n\r\n"));
+        if (size == 0) {
+            ctx.flush();
+            return f;
+        }
+        if (isSendfileSupported(ctx)) {
+            if (ctx.pipeline().get(SendfileWriter.class) == null) {
+                ctx.pipeline().addAfter(ctx.pipeline().context(LeanHttpRequestDecoder.class).name(), null,
+                        new SendfileWriter());
+            }
+            return ctx.writeAndFlush(new Sendfile(size));
+        }
+        if (ctx.pipeline().get(ChunkedWriteHandler.class) == null) {
+            ctx.pipeline().addAfter(ctx.pipeline().context(LeanHttpRequestDecoder.class).name(), null,
+                    new ChunkedWriteHandler());
+        }
+        return ctx.writeAndFlush(new Chunks(size));
+    }
+
+    private static boolean isSendfileSupported(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        return (channel instanceof NioSocketChannel || channel instanceof AbstractEpollStreamChannel) &&
+                ctx.pipeline().get(SslHandler.class) == null;
+    }
+
+    /**
+     * Returns the next chunk of the body, starting at the position in the repeated file.
+     */
+    private ByteBuf chunk(long position, long remaining) {
+        int index = (int) (position % content.capacity());
+        return content.slice(index, (int) Math.min(remaining, Math.min(CHUNK_SIZE, content.capacity() - index)));
+    }
+
+    Http2Writer newHttp2Writer() {
+        return new Http2Writer();
+    }
+
+    @Override
+    public String toString() {
+        return content == null ? "none" : PATH_PREFIX + "<size> from " + file + " (" + content.capacity() +
+                " bytes), maxSize=" + maxSize;
+    }
+
+    /**
+     * The body of an HTTP/1.1 response, which the {@link SendfileWriter} turns into file regions.
+     */
+    private static final class Sendfile {
+        final long size;
+
+        Sendfile(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Writes the {@link Sendfile} bodies as file regions of the shared file channel, the next region only once the
+     * previous one has been sent. The writes which come after a body wait until it is complete, so that pipelined
+     * responses stay in order.
+     */
+    private final class SendfileWriter extends ChannelOutboundHandlerAdapter implements ChannelFutureListener {
+        // Alternating messages and their promises
+        private final Queue<Object> pendingWrites = new ArrayDeque<>();
+        private ChannelHandlerContext ctx;
+        private ChannelPromise promise;
+        private long size;
+        private long position;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (this.promise != null) {
+                pendingWrites.add(msg);
+                pendingWrites.add(promise);
+            } else if (msg instanceof Sendfile) {
+                this.promise = promise;
+                size = ((Sendfile) msg).size;
+                position = 0;
+                writeRegions();
+            } else {
+                ctx.write(msg, promise);
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            // The pending writes are flushed once the body is complete
+            if (promise == null) {
+                ctx.flush();
+            }
+        }
+
+        private void writeRegions() {
+            if (promise == null) {
+                return;
+            }
+            for (int regions = 0; position < size; regions++) {
+                if (regions == MAX_REGIONS_PER_TASK) {
+                    ctx.executor().execute(this::writeRegions);
+                    return;
+                }
+                long fileOffset = position % content.capacity();
+                long count = Math.min(size - position, content.capacity() - fileOffset);
+                position += count;
+                // Retained, so that the transport's release does not close the shared file channel
+                ChannelFuture f = ctx.writeAndFlush(new DefaultFileRegion(fileChannel, fileOffset, count).retain());
+                if (!f.isDone()) {
+                    f.addListener(this);
+                    return;
+                }
+                if (!f.isSuccess()) {
+                    fail(f.cause());
+                    return;
+                }
+            }
+            ChannelPromise done = promise;
+            promise = null;
+            done.trySuccess();
+            while (promise == null && !pendingWrites.isEmpty()) {
+                write(ctx, pendingWrites.remove(), (ChannelPromise) pendingWrites.remove());
+            }
+            flush(ctx);
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess()) {
+                writeRegions();
+            } else {
+                fail(future.cause());
+            }
+        }
+
+        private void fail(Throwable cause) {
+            if (promise == null) {
+                return;
+            }
+            promise.tryFailure(cause);
+            promise = null;
+            while (!pendingWrites.isEmpty()) {
+                ReferenceCountUtil.release(pendingWrites.remove());
+                ((ChannelPromise) pendingWrites.remove()).tryFailure(cause);
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            fail(new ClosedChannelException());
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+            fail(new ClosedChannelException());
+            ctx.close(promise);
+        }
+    }
+
+    /**
+     * The body of an HTTP/1.1 response, sliced from the mapped file.
+     */
+    private final class Chunks implements ChunkedInput<ByteBuf> {
+        private final long length;
+        private long progress;
+
+        Chunks(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return progress == length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) {
+            if (isEndOfInput()) {
+                return null;
+            }
+            ByteBuf chunk = chunk(progress, length - progress);
+            progress += chunk.readableBytes();
+            return chunk;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return progress;
+        }
+    }
+
+    /**
+     * Writes the bulk payloads of the streams of an HTTP/2 connection. A stream's DATA frames are only written while
+     * the flow controller considers the stream writable, that is while its window is not used up by the frames
+     * pending already and the connection is writable. The writer resumes after the stream's writability events,
+     * which its handler passes on to {@link #userEventTriggered}.
+     */
+    final class Http2Writer {
+        private final IntObjectMap<Transfer> transfers = new IntObjectHashMap<>();
+        private Http2FrameCodec codec;
+
+        /**
+         * Writes the headers and the body of a response with the given size. The last frame records the processing
+         * time of the request.
+         */
+        void write(ChannelHandlerContext ctx, Http2FrameStream stream, long size, long startNanos) {
+            if (size == TOO_LARGE) {
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                        .status(BAD_REQUEST.codeAsText()).setInt(HttpHeaderNames.CONTENT_LENGTH, 0), true)
+                        .stream(stream)).addListener(ServerMetrics.processingTimeListener(startNanos));
+                return;
+            }
+            Http2Headers headers = new DefaultHttp2Headers().status(OK.codeAsText())
+                    .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE)
+                    .setLong(HttpHeaderNames.CONTENT_LENGTH, size);
+            if (size == 0) {
+                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true).stream(stream))
+                        .addListener(ServerMetrics.processingTimeListener(startNanos));
+                return;
+            }
+            ctx.write(new DefaultHttp2HeadersFrame(headers).stream(stream));
+            if (codec == null) {
+                codec = ctx.pipeline().get(Http2FrameCodec.class);
+            }
+            Transfer transfer = new Transfer(stream, size, startNanos);
+            transfers.put(stream.id(), transfer);
+            resume(ctx, transfer);
+        }
+
+        void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (!(evt instanceof Http2FrameStreamEvent) || transfers.isEmpty()) {
+                return;
+            }
+            Http2FrameStream stream = ((Http2FrameStreamEvent) evt).stream();
+            Transfer transfer = transfers.get(stream.id());
+            if (transfer == null) {
+                return;
+            }
+            if (stream.state() == Http2Stream.State.CLOSED) {
+                transfers.remove(stream.id());
+            } else if (((Http2FrameStreamEvent) evt).type() == Http2FrameStreamEvent.Type.Writability &&
+                    !transfer.resumeScheduled) {
+                // The event is fired while the flow controller applies a WINDOW_UPDATE, the stream must not be
+                // closed by its last frame before the codec is done with the update
+                transfer.resumeScheduled = true;
+                ctx.executor().execute(() -> {
+                    transfer.resumeScheduled = false;
+                    resume(ctx, transfer);
+                });
+            }
+        }
+
+        private void resume(ChannelHandlerContext ctx, Transfer transfer) {
+            if (transfers.get(transfer.stream.id()) != transfer) {
+                return;
+            }
+            Http2Stream stream = codec.connection().stream(transfer.stream.id());
+            if (stream == null) {
+                transfers.remove(transfer.stream.id());
+                return;
+            }
+            Http2RemoteFlowController flowController = codec.connection().remote().flowController();
+            boolean written = false;
+            while (transfer.position < transfer.size && flowController.isWritable(stream)) {
+                ByteBuf chunk = chunk(transfer.position, transfer.size - transfer.position);
+                transfer.position += chunk.readableBytes();
+                boolean endStream = transfer.position == transfer.size;
+                ChannelFuture f = ctx.write(new DefaultHttp2DataFrame(chunk, endStream).stream(transfer.stream));
+                if (endStream) {
+                    transfers.remove(transfer.stream.id());
+                    f.addListener(ServerMetrics.processingTimeListener(transfer.startNanos));
+                }
+                written = true;
+            }
+            if (written) {
+                ctx.flush();
+            }
+        }
+
+        void clear() {
+            transfers.clear();
+        }
+    }
+
+    private static final class Transfer {
+        final Http2FrameStream stream;
+        final long size;
+        final long startNanos;
+        long position;
+        boolean resumeScheduled;
+
+        Transfer(Http2FrameStream stream, long size, long startNanos) {
+            this.stream = stream;
+            this.size = size;
+            this.startNanos = startNanos;
+        }
+    }
+}
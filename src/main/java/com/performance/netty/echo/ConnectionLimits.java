@@ -0,0 +1,218 @@
+package com.performance.netty.echo;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how much work clients can pile up on the server. Connections above the maximum are closed as soon as they
+ * are accepted. A connection stops being read from while its outbound buffer is above the high water mark, so slow
+ * readers cannot make the server buffer their responses without bounds, and while it has the maximum number of
+ * requests in flight. Reading resumes once the buffer drained below the low water mark and the responses caught up.
+ */
+final class ConnectionLimits {
+
+    static final ConnectionLimits DEFAULT = new ConnectionLimits(0, 0, WriteBufferWaterMark.DEFAULT.low(),
+            WriteBufferWaterMark.DEFAULT.high());
+
+    private final int maxConnections;
+    private final int maxInFlightRequests;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * @param maxConnections       connections open at once, 0 for no limit
+     * @param maxInFlightRequests  requests of a connection read but not completely answered, 0 for no limit
+     * @param lowWaterMark         outbound bytes below which a paused connection is read from again
+     * @param highWaterMark        outbound bytes above which a connection is not read from
+     */
+    ConnectionLimits(int maxConnections, int maxInFlightRequests, int lowWaterMark, int highWaterMark) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+        this.maxInFlightRequests = maxInFlightRequests > 0 ? maxInFlightRequests : Integer.MAX_VALUE;
+        this.writeBufferWaterMark = new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * Sets the water marks of the accepted connections.
+     */
+    ServerBootstrap configure(ServerBootstrap b) {
+        return b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+    }
+
+    /**
+     * Counts a newly accepted connection, or closes it when the maximum is reached already.
+     *
+     * @return whether the connection is admitted
+     */
+    boolean admit(Channel ch) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            ServerMetrics.current().connectionRejected();
+            ch.close();
+            return false;
+        }
+        ch.closeFuture().addListener(future -> connections.decrementAndGet());
+        return true;
+    }
+
+    /**
+     * Returns a new handler pausing the reads of a connection. It counts the requests in flight when it is added
+     * after the HTTP/1.1 or HTTP/2 codec, otherwise it only watches the writability of the connection.
+     */
+    BackpressureHandler newBackpressureHandler() {
+        return new BackpressureHandler(maxInFlightRequests);
+    }
+
+    @Override
+    public String toString() {
+        return "maxConnections=" + (maxConnections == Integer.MAX_VALUE ? "unlimited" : maxConnections) +
+                ", maxInFlightRequests=" +
+                (maxInFlightRequests == Integer.MAX_VALUE ? "unlimited" : maxInFlightRequests) +
+                ", writeBufferWaterMark=" + writeBufferWaterMark.low() + "-" + writeBufferWaterMark.high();
+    }
+
+    /**
+     * Turns off auto read of a connection while it is not writable or has too many requests in flight. A request
+     * is in flight from reading its end until the end of its response is written, an informational response does
+     * not end it, except for a {@code 101 Switching Protocols} after which there is no more HTTP/1.1. HTTP/2 streams
+     * are also done when they are reset. Counting from the end of a request lets a partially read request always be
+     * completed.
+     * <p>
+     * While auto read is off, the reads requested by the handlers after this one are dropped as well. The
+     * {@link io.netty.handler.codec.http.HttpObjectAggregator} requests one for every part of a request body, which
+     * would otherwise keep reading a client sending large requests.
+     * <p>
+     * This handler is the only one changing auto read. The handlers after it ask it to pause with
+     * {@link #pauseReads}, and reading resumes once none of the reasons to pause is left.
+     */
+    static final class BackpressureHandler extends ChannelDuplexHandler {
+        private final int maxInFlightRequests;
+        private int http1InFlightRequests;
+        // HTTP/2 streams in flight, created on the first one
+        private IntObjectMap<Boolean> http2InFlightStreams;
+        // Asked for by a handler after this one
+        private boolean pauseRequested;
+        private boolean paused;
+        private ChannelHandlerContext ctx;
+
+        private BackpressureHandler(int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        /**
+         * Pauses reading on behalf of a handler after this one, e.g. while it holds back a delayed response which the
+         * responses to pipelined requests must not overtake, or lets it resume when there is no other reason to
+         * pause.
+         */
+        void pauseReads(boolean pause) {
+            pauseRequested = pause;
+            updateAutoRead(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof LastHttpContent) {
+                http1InFlightRequests++;
+                updateAutoRead(ctx);
+            } else if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream() ||
+                    msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream()) {
+                if (http2InFlightStreams == null) {
+                    http2InFlightStreams = new IntObjectHashMap<>();
+                }
+                http2InFlightStreams.put(((Http2StreamFrame) msg).stream().id(), Boolean.TRUE);
+                updateAutoRead(ctx);
+            } else if (msg instanceof Http2ResetFrame) {
+                streamDone(ctx, (Http2ResetFrame) msg);
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void read(ChannelHandlerContext ctx) {
+            if (!paused) {
+                ctx.read();
+            }
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof LastHttpContent) {
+                if (http1InFlightRequests > 0 && (!(msg instanceof HttpResponse) || !isInformational(
+                        ((HttpResponse) msg).status()))) {
+                    http1InFlightRequests--;
+                    updateAutoRead(ctx);
+                }
+            } else if (msg instanceof Http2ResetFrame) {
+                streamDone(ctx, (Http2StreamFrame) msg);
+            } else if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream() ||
+                    msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).isEndStream()) {
+                streamDone(ctx, (Http2StreamFrame) msg);
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        private static boolean isInformational(HttpResponseStatus status) {
+            return status.codeClass() == HttpStatusClass.INFORMATIONAL &&
+                    !HttpResponseStatus.SWITCHING_PROTOCOLS.equals(status);
+        }
+
+        private void streamDone(ChannelHandlerContext ctx, Http2StreamFrame frame) {
+            if (http2InFlightStreams != null && frame.stream() != null &&
+                    http2InFlightStreams.remove(frame.stream().id()) != null) {
+                updateAutoRead(ctx);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            updateAutoRead(ctx);
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (paused) {
+                paused = false;
+                ServerMetrics.current().connectionResumed();
+            }
+            super.channelInactive(ctx);
+        }
+
+        private void updateAutoRead(ChannelHandlerContext ctx) {
+            int inFlightRequests = http1InFlightRequests +
+                    (http2InFlightStreams == null ? 0 : http2InFlightStreams.size());
+            boolean pause = pauseRequested || !ctx.channel().isWritable() || inFlightRequests >= maxInFlightRequests;
+            if (pause == paused || !ctx.channel().isActive()) {
+                return;
+            }
+            paused = pause;
+            if (pause) {
+                ServerMetrics.current().connectionPaused();
+            } else {
+                ServerMetrics.current().connectionResumed();
+            }
+            ctx.channel().config().setAutoRead(!pause);
+        }
+    }
+}
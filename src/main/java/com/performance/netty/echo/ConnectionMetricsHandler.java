@@ -0,0 +1,54 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * Counts connections and the bytes read from and written to them. Added as the first handler of every client
+ * pipeline, so the byte counts are what goes over the wire (before TLS decryption and after encryption).
+ */
+@Sharable
+final class ConnectionMetricsHandler extends ChannelDuplexHandler {
+
+    static final ConnectionMetricsHandler INSTANCE = new ConnectionMetricsHandler();
+
+    private ConnectionMetricsHandler() {
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ServerMetrics.current().connectionOpened();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ServerMetrics.current().connectionClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ServerMetrics.current().addBytesIn(((ByteBuf) msg).readableBytes());
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ServerMetrics.current().addBytesOut(((ByteBuf) msg).readableBytes());
+        } else if (msg instanceof ByteBufHolder) {
+            ServerMetrics.current().addBytesOut(((ByteBufHolder) msg).content().readableBytes());
+        } else if (msg instanceof FileRegion) {
+            ServerMetrics.current().addBytesOut(((FileRegion) msg).count());
+        }
+        super.write(ctx, msg, promise);
+    }
+}
@@ -0,0 +1,54 @@
+package com.performance.netty.echo;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import net.openhft.affinity.Affinity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates event loop threads pinned to CPUs. The n-th thread is pinned to the n-th CPU of the list, wrapping around
+ * when there are more threads than CPUs. Pinning keeps an event loop and the connections it owns on one core, so
+ * their data stays in that core's caches.
+ * <p>
+ * Pinning needs the native affinity support of Linux; elsewhere the threads are created unpinned.
+ */
+final class CpuAffinityThreadFactory implements ThreadFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(CpuAffinityThreadFactory.class);
+
+    private final ThreadFactory delegate;
+    private final int[] cpus;
+    private final AtomicInteger nextCpu = new AtomicInteger();
+
+    /**
+     * @param poolName the prefix of the thread names
+     * @param cpus     the CPUs to pin the threads to, in order
+     */
+    CpuAffinityThreadFactory(String poolName, List<Integer> cpus) {
+        if (cpus.isEmpty()) {
+            throw new IllegalArgumentException("No CPUs to pin " + poolName + " threads to");
+        }
+        this.delegate = new DefaultThreadFactory(poolName);
+        this.cpus = new int[cpus.size()];
+        for (int i = 0; i < this.cpus.length; i++) {
+            this.cpus[i] = cpus.get(i);
+        }
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        int cpu = cpus[Math.floorMod(nextCpu.getAndIncrement(), cpus.length)];
+        return delegate.newThread(() -> {
+            try {
+                Affinity.setAffinity(cpu);
+            } catch (RuntimeException | LinkageError e) {
+                logger.warn("Failed to pin thread {} to CPU {}", Thread.currentThread().getName(), cpu, e);
+            }
+            r.run();
+        });
+    }
+}
@@ -0,0 +1,236 @@
+package com.performance.netty.echo;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution the response delays are drawn from. Specs are written as {@code <type>:<arguments>} with all times
+ * in milliseconds:
+ * <ul>
+ * <li>{@code 250} or {@code fixed:250} - always 250ms</li>
+ * <li>{@code uniform:10,100} - uniformly between 10ms and 100ms</li>
+ * <li>{@code exponential:20} - exponentially distributed with a mean of 20ms</li>
+ * <li>{@code lognormal:20,0.5} - log-normally distributed with a median of 20ms and a shape (sigma) of 0.5</li>
+ * <li>{@code empirical:50=10,90=40,99=200,100=500} - percentile table, interpolated linearly between the given
+ * points. The 0th percentile is 0ms unless given</li>
+ * </ul>
+ * Delays are capped at a day, so that a deadline computed from {@link System#nanoTime()} cannot overflow.
+ */
+abstract class DelayDistribution {
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long MAX_DELAY_NANOS = TimeUnit.DAYS.toNanos(1);
+
+    private final String spec;
+
+    private DelayDistribution(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Draws the next delay in nanoseconds.
+     */
+    abstract long nextDelayNanos(Random random);
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    /**
+     * Parses a distribution spec.
+     *
+     * @throws IllegalArgumentException when the spec is not valid
+     */
+    static DelayDistribution parse(String spec) {
+        String trimmed = spec.trim();
+        int colon = trimmed.indexOf(':');
+        String type = colon < 0 ? "fixed" : trimmed.substring(0, colon).toLowerCase(Locale.ROOT);
+        String[] args = colon < 0 ? new String[]{trimmed} : trimmed.substring(colon + 1).split(",");
+        switch (type) {
+            case "fixed":
+                checkArgs(spec, args, 1);
+                return new Fixed(spec, millis(args[0]));
+            case "uniform":
+                checkArgs(spec, args, 2);
+                return new Uniform(spec, millis(args[0]), millis(args[1]));
+            case "exponential":
+                checkArgs(spec, args, 1);
+                return new Exponential(spec, millis(args[0]));
+            case "lognormal":
+                checkArgs(spec, args, 2);
+                return new LogNormal(spec, millis(args[0]), number(args[1]));
+            case "empirical":
+                return new Empirical(spec, args);
+            default:
+                throw new IllegalArgumentException("Unknown delay distribution: " + spec);
+        }
+    }
+
+    private static void checkArgs(String spec, String[] args, int expected) {
+        if (args.length != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " argument(s) in delay distribution: " + spec);
+        }
+    }
+
+    private static double millis(String value) {
+        double millis = number(value);
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative delay: " + value);
+        }
+        return millis;
+    }
+
+    private static double number(String value) {
+        double number = Double.parseDouble(value.trim());
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            throw new IllegalArgumentException("Not a finite number: " + value);
+        }
+        return number;
+    }
+
+    private static long toNanos(double millis) {
+        // Also caps the tails of the exponential and log-normal distributions
+        return (long) Math.min(millis * NANOS_PER_MILLI, MAX_DELAY_NANOS);
+    }
+
+    private static final class Fixed extends DelayDistribution {
+        private final long delayNanos;
+
+        Fixed(String spec, double millis) {
+            super(spec);
+            this.delayNanos = toNanos(millis);
+        }
+
+        @Override
+        long nextDelayNanos(Random random) {
+            return delayNanos;
+        }
+    }
+
+    private static final class Uniform extends DelayDistribution {
+        private final double minMillis;
+        private final double rangeMillis;
+
+        Uniform(String spec, double minMillis, double maxMillis) {
+            super(spec);
+            if (maxMillis < minMillis) {
+                throw new IllegalArgumentException("Maximum below minimum in delay distribution: " + spec);
+            }
+            this.minMillis = minMillis;
+            this.rangeMillis = maxMillis - minMillis;
+        }
+
+        @Override
+        long nextDelayNanos(Random random) {
+            return toNanos(minMillis + random.nextDouble() * rangeMillis);
+        }
+    }
+
+    private static final class Exponential extends DelayDistribution {
+        private final double meanMillis;
+
+        Exponential(String spec, double meanMillis) {
+            super(spec);
+            this.meanMillis = meanMillis;
+        }
+
+        @Override
+        long nextDelayNanos(Random random) {
+            // 1 - nextDouble() is in (0, 1], so the logarithm is finite
+            return toNanos(-meanMillis * Math.log(1 - random.nextDouble()));
+        }
+    }
+
+    private static final class LogNormal extends DelayDistribution {
+        private final double mu;
+        private final double sigma;
+
+        LogNormal(String spec, double medianMillis, double sigma) {
+            super(spec);
+            if (medianMillis <= 0 || sigma < 0) {
+                throw new IllegalArgumentException("Expected a positive median and shape in delay distribution: "
+                        + spec);
+            }
+            this.mu = Math.log(medianMillis);
+            this.sigma = sigma;
+        }
+
+        @Override
+        long nextDelayNanos(Random random) {
+            return toNanos(Math.exp(mu + sigma * random.nextGaussian()));
+        }
+    }
+
+    private static final class Empirical extends DelayDistribution {
+        // Cumulative probabilities in [0, 1] and the delays at them, both ascending
+        private final double[] probabilities;
+        private final double[] millis;
+
+        Empirical(String spec, String[] points) {
+            super(spec);
+            double[] probabilities = new double[points.length + 1];
+            double[] millis = new double[points.length + 1];
+            int count = 0;
+            for (String point : points) {
+                int eq = point.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Expected <percentile>=<millis> in delay distribution: "
+                            + spec);
+                }
+                double probability = number(point.substring(0, eq)) / 100;
+                double value = millis(point.substring(eq + 1));
+                if (count == 0 && probability > 0) {
+                    // Start at 0ms for the 0th percentile
+                    count++;
+                }
+                if (probability > 1 || (count > 0 && (probability < probabilities[count - 1]
+                        || value < millis[count - 1]))) {
+                    throw new IllegalArgumentException("Percentiles and delays must be ascending and at most 100 " +
+                            "in delay distribution: " + spec);
+                }
+                probabilities[count] = probability;
+                millis[count] = value;
+                count++;
+            }
+            if (probabilities[count - 1] != 1) {
+                throw new IllegalArgumentException("Missing the 100th percentile in delay distribution: " + spec);
+            }
+            this.probabilities = Arrays.copyOf(probabilities, count);
+            this.millis = Arrays.copyOf(millis, count);
+        }
+
+        @Override
+        long nextDelayNanos(Random random) {
+            double p = random.nextDouble();
+            int i = Arrays.binarySearch(probabilities, p);
+            if (i >= 0) {
+                return toNanos(millis[i]);
+            }
+            int upper = -i - 1;
+            int lower = upper - 1;
+            double fraction = (p - probabilities[lower]) / (probabilities[upper] - probabilities[lower]);
+            return toNanos(millis[lower] + fraction * (millis[upper] - millis[lower]));
+        }
+    }
+
+    /**
+     * Converts {@code --delay-distribution} values.
+     */
+    public static class Converter implements IStringConverter<DelayDistribution> {
+
+        @Override
+        public DelayDistribution convert(String value) {
+            try {
+                return parse(value);
+            } catch (IllegalArgumentException e) {
+                throw new ParameterException(e.getMessage());
+            }
+        }
+    }
+}
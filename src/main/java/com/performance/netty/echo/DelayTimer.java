@@ -0,0 +1,140 @@
+package com.performance.netty.echo;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing wheel holding the delayed responses of one event loop. Adding a delayed task is O(1) and only allocates a
+ * small entry, unlike {@link EventExecutor#schedule}, which keeps every task in a priority queue, so millions of
+ * responses can be pending at once. The wheel has millisecond ticks and is only advanced, by a single scheduled
+ * task, while it holds entries.
+ * <p>
+ * Tasks which become due in the same tick run in the order they were added. All methods must be called from the
+ * event loop which owns the wheel.
+ */
+final class DelayTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DelayTimer.class);
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // One revolution is a bit over a second, longer delays go around the wheel more than once
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final FastThreadLocal<DelayTimer> timers = new FastThreadLocal<DelayTimer>() {
+        @Override
+        protected DelayTimer initialValue() {
+            return new DelayTimer();
+        }
+    };
+
+    private final Entry[] heads = new Entry[WHEEL_SIZE];
+    private final Entry[] tails = new Entry[WHEEL_SIZE];
+    private final long originNanos = System.nanoTime();
+    // Next tick to expire
+    private long tick;
+    private int pending;
+    private ScheduledFuture<?> ticker;
+
+    private DelayTimer() {
+    }
+
+    /**
+     * Runs the task on the given event loop once the {@link System#nanoTime()} deadline has passed, rounded up to the
+     * next millisecond. Must be called from that event loop.
+     */
+    static void schedule(EventExecutor executor, long deadlineNanos, Runnable task) {
+        assert executor.inEventLoop();
+        timers.get().add(executor, deadlineNanos, task);
+    }
+
+    private void add(EventExecutor executor, long deadlineNanos, Runnable task) {
+        if (ticker == null) {
+            // The wheel was idle and empty, skip the ticks which passed meanwhile, and expire right at the tick
+            // boundaries
+            long elapsedNanos = System.nanoTime() - originNanos;
+            tick = elapsedNanos / TICK_NANOS;
+            ticker = executor.scheduleAtFixedRate(this::expire, TICK_NANOS - elapsedNanos % TICK_NANOS, TICK_NANOS,
+                    TimeUnit.NANOSECONDS);
+        }
+        long deadlineTick = Math.max((deadlineNanos - originNanos + TICK_NANOS - 1) / TICK_NANOS, tick);
+        Entry entry = new Entry(deadlineTick, task);
+        int bucket = (int) (deadlineTick & WHEEL_MASK);
+        if (heads[bucket] == null) {
+            heads[bucket] = entry;
+        } else {
+            tails[bucket].next = entry;
+        }
+        tails[bucket] = entry;
+        pending++;
+    }
+
+    private void expire() {
+        long nowTick = (System.nanoTime() - originNanos) / TICK_NANOS;
+        // Every bucket needs to be visited at most once, even when the event loop fell far behind
+        long lastTick = Math.min(nowTick, tick + WHEEL_SIZE - 1);
+        while (tick <= lastTick) {
+            int bucket = (int) (tick++ & WHEEL_MASK);
+            // Detach the bucket, tasks may add new entries while it is processed
+            Entry entry = heads[bucket];
+            heads[bucket] = null;
+            tails[bucket] = null;
+            Entry keptHead = null;
+            Entry keptTail = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.next = null;
+                if (entry.deadlineTick <= nowTick) {
+                    pending--;
+                    run(entry.task);
+                } else {
+                    // Due in a later revolution
+                    if (keptHead == null) {
+                        keptHead = entry;
+                    } else {
+                        keptTail.next = entry;
+                    }
+                    keptTail = entry;
+                }
+                entry = next;
+            }
+            if (keptHead != null) {
+                // Keep the entries ahead of the ones added meanwhile, which cannot be due earlier
+                keptTail.next = heads[bucket];
+                heads[bucket] = keptHead;
+                if (tails[bucket] == null) {
+                    tails[bucket] = keptTail;
+                }
+            }
+        }
+        tick = Math.max(tick, nowTick + 1);
+        if (pending == 0) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            logger.warn("A delayed task raised an exception", t);
+        }
+    }
+
+    private static final class Entry {
+        final long deadlineTick;
+        final Runnable task;
+        Entry next;
+
+        Entry(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+    }
+}
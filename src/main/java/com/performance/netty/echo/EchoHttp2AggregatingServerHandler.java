@@ -0,0 +1,236 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.AsciiString;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+
+/**
+ * Handler implementation for the http/2 echo server with content aggregation. It works on the frames of the
+ * {@link Http2FrameCodec} directly: the data frames of every stream are collected into a composite buffer, without
+ * copying them, and the whole request body is echoed back in one headers and one data frame once the stream ends.
+ * Like the http/1.1 echo, a request without a body gets its headers back as JSON.
+ * <p>
+ * Requests with a body larger than the limit get a {@code 413} response and their stream is reset. Requests for a
+ * {@link BulkPayload bulk payload} get it once their body has been read and discarded.
+ */
+public class EchoHttp2AggregatingServerHandler extends ChannelDuplexHandler {
+
+    private static final AsciiString OPERATION_ID_NAME = AsciiString.cached("syy-operation-id");
+    private static final AsciiString OPERATION_ID_VALUE = AsciiString.cached("getNettyEchoResponse");
+
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy.Batcher flushBatcher;
+    private final Http2WindowUpdates windowUpdates = new Http2WindowUpdates();
+    private final FixedResponses fixedResponses;
+    private final BulkPayload.Http2Writer bulkWriter;
+    private final int maxContentLength;
+    // Every stream whose request has not been fully read yet
+    private final IntObjectMap<StreamRequest> requests = new IntObjectHashMap<>();
+
+    EchoHttp2AggregatingServerHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                                      FixedResponses fixedResponses, int maxContentLength) {
+        this.responseDelay = responseDelay;
+        this.flushBatcher = flushPolicy.newBatcher();
+        this.fixedResponses = fixedResponses;
+        this.bulkWriter = fixedResponses.bulkPayload().newHttp2Writer();
+        this.maxContentLength = maxContentLength;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Http2HeadersFrame) {
+            onHeadersRead(ctx, (Http2HeadersFrame) msg);
+        } else if (msg instanceof Http2DataFrame) {
+            onDataRead(ctx, (Http2DataFrame) msg);
+        } else if (msg instanceof Http2ResetFrame) {
+            StreamRequest request = requests.remove(((Http2ResetFrame) msg).stream().id());
+            if (request != null) {
+                request.release();
+            }
+        } else {
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        windowUpdates.write(ctx);
+        flushBatcher.flush(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        bulkWriter.userEventTriggered(ctx, evt);
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (StreamRequest request : requests.values()) {
+            request.release();
+        }
+        requests.clear();
+        bulkWriter.clear();
+        super.channelInactive(ctx);
+    }
+
+    private void onHeadersRead(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame) {
+        Http2FrameStream stream = headersFrame.stream();
+        StreamRequest request = requests.get(stream.id());
+        if (request == null) {
+            long startNanos = System.nanoTime();
+            Http2Headers headers = headersFrame.headers();
+            RuntimeConfig config = RuntimeConfig.current();
+            FixedResponses.Response fixed = config.select(fixedResponses, headers.path());
+            request = new StreamRequest(stream, headers, startNanos,
+                    responseDelay.nextDelayNanos(config, headers.get(ResponseDelay.HEADER_NAME)), fixed,
+                    fixed == null ? fixedResponses.bulkPayload().select(headers.path()) : -1);
+            if (!headersFrame.isEndStream()) {
+                requests.put(stream.id(), request);
+                return;
+            }
+        } else if (headersFrame.isEndStream()) {
+            // Trailers end the request, they are not echoed
+            requests.remove(stream.id());
+        } else {
+            return;
+        }
+        respond(ctx, request);
+    }
+
+    private void onDataRead(ChannelHandlerContext ctx, Http2DataFrame data) {
+        Http2FrameStream stream = data.stream();
+        // Update the flow-controller once the read completes, the content is held at most up to the limit
+        windowUpdates.consumed(stream, data.initialFlowControlledBytes());
+        StreamRequest request = requests.get(stream.id());
+        if (request == null) {
+            data.release();
+            return;
+        }
+        if (request.fixed != null || request.bulkSize >= 0 || !data.content().isReadable()) {
+            data.release();
+        } else if (request.contentLength() + data.content().readableBytes() > maxContentLength) {
+            data.release();
+            requests.remove(stream.id());
+            request.release();
+            Http2Headers headers = new DefaultHttp2Headers().status(REQUEST_ENTITY_TOO_LARGE.codeAsText());
+            ctx.write(new DefaultHttp2HeadersFrame(headers, true).stream(stream));
+            // NO_ERROR asks the client to stop sending the body but keep the response, RFC 7540 section 8.1
+            ctx.write(new DefaultHttp2ResetFrame(Http2Error.NO_ERROR).stream(stream));
+            return;
+        } else {
+            request.addContent(ctx, data.content());
+        }
+        if (data.isEndStream()) {
+            requests.remove(stream.id());
+            respond(ctx, request);
+        }
+    }
+
+    private void respond(ChannelHandlerContext ctx, StreamRequest request) {
+        if (request.bulkSize >= 0) {
+            if (responseDelay.isDeferred(request.delayNanos)) {
+                responseDelay.schedule(ctx, request.startNanos + request.delayNanos,
+                        () -> bulkWriter.write(ctx, request.stream, request.bulkSize, request.startNanos));
+            } else {
+                bulkWriter.write(ctx, request.stream, request.bulkSize, request.startNanos);
+            }
+            return;
+        }
+        Http2Headers headers;
+        ByteBuf content;
+        if (request.fixed != null) {
+            headers = request.fixed.http2Headers();
+            content = request.fixed.body();
+        } else {
+            content = request.content != null ? request.content : HeadersJsonEncoder.encode(ctx.alloc(),
+                    request.headers, EchoHttpServerHandler.remoteHost(ctx));
+            headers = new DefaultHttp2Headers().status(OK.codeAsText());
+            headers.set(OPERATION_ID_NAME, OPERATION_ID_VALUE);
+            CharSequence contentType = request.headers.get(HttpHeaderNames.CONTENT_TYPE);
+            headers.set(HttpHeaderNames.CONTENT_TYPE,
+                    contentType != null ? contentType : HttpHeaderValues.APPLICATION_JSON);
+            headers.setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        }
+        Http2HeadersFrame headersFrame = new DefaultHttp2HeadersFrame(headers).stream(request.stream);
+        Http2DataFrame dataFrame = new DefaultHttp2DataFrame(content, true).stream(request.stream);
+        long startNanos = request.startNanos;
+        if (responseDelay.isDeferred(request.delayNanos)) {
+            // Every stream is independent, no ordering needed
+            responseDelay.schedule(ctx, startNanos + request.delayNanos, () -> {
+                ctx.write(headersFrame);
+                ctx.writeAndFlush(dataFrame).addListener(ServerMetrics.processingTimeListener(startNanos));
+            });
+        } else {
+            // Flushed in channelReadComplete
+            flushBatcher.write(ctx, headersFrame, 0, false);
+            flushBatcher.write(ctx, dataFrame, content.readableBytes(), true)
+                    .addListener(ServerMetrics.processingTimeListener(startNanos));
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        super.exceptionCaught(ctx, cause);
+        ctx.close();
+    }
+
+    private static final class StreamRequest {
+        final Http2FrameStream stream;
+        final Http2Headers headers;
+        final long startNanos;
+        final long delayNanos;
+        // Response sent instead of the echo, or null
+        final FixedResponses.Response fixed;
+        // Size of the bulk payload sent instead of the echo, or -1
+        final long bulkSize;
+        // The body read so far, a single buffer until a second data frame arrives
+        ByteBuf content;
+
+        StreamRequest(Http2FrameStream stream, Http2Headers headers, long startNanos, long delayNanos,
+                      FixedResponses.Response fixed, long bulkSize) {
+            this.stream = stream;
+            this.headers = headers;
+            this.startNanos = startNanos;
+            this.delayNanos = delayNanos;
+            this.fixed = fixed;
+            this.bulkSize = bulkSize;
+        }
+
+        int contentLength() {
+            return content == null ? 0 : content.readableBytes();
+        }
+
+        void addContent(ChannelHandlerContext ctx, ByteBuf buf) {
+            if (content == null) {
+                content = buf;
+            } else {
+                CompositeByteBuf composite;
+                if (content instanceof CompositeByteBuf) {
+                    composite = (CompositeByteBuf) content;
+                } else {
+                    composite = ctx.alloc().compositeBuffer().addComponent(true, content);
+                    content = composite;
+                }
+                composite.addComponent(true, buf);
+            }
+        }
+
+        void release() {
+            if (content != null) {
+                content.release();
+                content = null;
+            }
+        }
+    }
+}
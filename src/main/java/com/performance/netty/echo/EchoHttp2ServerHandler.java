@@ -1,24 +1,50 @@
 package com.performance.netty.echo;
 
-import io.netty.buffer.EmptyByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http2.*;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 
 /**
  * Handler implementation for the http/2 echo server without content aggregation. This echo backs the header/data
- * frames as soon as they arrive without any content aggregation against stream id.
+ * frames as soon as they arrive without any content aggregation against stream id. When a request is delayed, only
+ * the frame ending its response stream is held back.
+ * <p>
+ * Requests for a {@link FixedResponses fixed response} get its shared headers right away, and its shared body once
+ * the request's own data frames have been read and discarded. Requests for a {@link BulkPayload bulk payload} get
+ * it once their data frames have been discarded.
  */
 public class EchoHttp2ServerHandler extends ChannelDuplexHandler {
 
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy.Batcher flushBatcher;
+    private final Http2WindowUpdates windowUpdates = new Http2WindowUpdates();
+    private final FixedResponses fixedResponses;
+    private final BulkPayload.Http2Writer bulkWriter;
+    // Every stream whose request has not been fully echoed yet
+    private final IntObjectMap<StreamRequest> requests = new IntObjectHashMap<>();
+
+    EchoHttp2ServerHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy, FixedResponses fixedResponses) {
+        this.responseDelay = responseDelay;
+        this.flushBatcher = flushPolicy.newBatcher();
+        this.fixedResponses = fixedResponses;
+        this.bulkWriter = fixedResponses.bulkPayload().newHttp2Writer();
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof Http2HeadersFrame) {
             onHeadersRead(ctx, (Http2HeadersFrame) msg);
         } else if (msg instanceof Http2DataFrame) {
             onDataRead(ctx, (Http2DataFrame) msg);
+        } else if (msg instanceof Http2ResetFrame) {
+            // The request will not be completed
+            requests.remove(((Http2ResetFrame) msg).stream().id());
+            super.channelRead(ctx, msg);
         } else {
             super.channelRead(ctx, msg);
         }
@@ -26,22 +52,95 @@ public class EchoHttp2ServerHandler extends ChannelDuplexHandler {
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) {
-        ctx.flush();
+        windowUpdates.write(ctx);
+        flushBatcher.flush(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        bulkWriter.userEventTriggered(ctx, evt);
+        super.userEventTriggered(ctx, evt);
     }
 
-    private static void onDataRead(ChannelHandlerContext ctx, Http2DataFrame data) {
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        bulkWriter.clear();
+        requests.clear();
+        super.channelInactive(ctx);
+    }
+
+    private void onDataRead(ChannelHandlerContext ctx, Http2DataFrame data) {
         Http2FrameStream stream = data.stream();
-        ctx.write(new DefaultHttp2DataFrame(data.content(), data.isEndStream()).stream(stream));
-        // Update the flow-controller
-        ctx.write(new DefaultHttp2WindowUpdateFrame(data.initialFlowControlledBytes()).stream(stream));
+        StreamRequest request = data.isEndStream() ? requests.remove(stream.id()) : requests.get(stream.id());
+        if (request != null && (request.fixed != null || request.bulkSize >= 0)) {
+            data.release();
+            if (data.isEndStream() && request.fixed != null) {
+                writeLast(ctx, new DefaultHttp2DataFrame(request.fixed.body(), true).stream(stream),
+                        request.startNanos, request.delayNanos);
+            } else if (data.isEndStream()) {
+                writeBulk(ctx, stream, request.bulkSize, request.startNanos, request.delayNanos);
+            }
+        } else {
+            Http2DataFrame echo = new DefaultHttp2DataFrame(data.content(), data.isEndStream()).stream(stream);
+            if (request != null && data.isEndStream()) {
+                writeLast(ctx, echo, request.startNanos, request.delayNanos);
+            } else {
+                flushBatcher.write(ctx, echo, echo.content().readableBytes(), false);
+            }
+        }
+        // Update the flow-controller once the read completes
+        windowUpdates.consumed(stream, data.initialFlowControlledBytes());
     }
 
-    private static void onHeadersRead(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame) {
+    private void onHeadersRead(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame) {
+        long startNanos = System.nanoTime();
+        RuntimeConfig config = RuntimeConfig.current();
+        long delayNanos = responseDelay.nextDelayNanos(config, headersFrame.headers().get(ResponseDelay.HEADER_NAME));
         Http2FrameStream stream = headersFrame.stream();
-        Http2Headers headers = new DefaultHttp2Headers().status(OK.codeAsText());
+        FixedResponses.Response fixed = config.select(fixedResponses, headersFrame.headers().path());
+        long bulkSize = fixed == null ? fixedResponses.bulkPayload().select(headersFrame.headers().path()) : -1;
+        if (bulkSize >= 0) {
+            if (headersFrame.isEndStream()) {
+                writeBulk(ctx, stream, bulkSize, startNanos, delayNanos);
+            } else {
+                requests.put(stream.id(), new StreamRequest(startNanos, delayNanos, null, bulkSize));
+            }
+            return;
+        }
+        Http2Headers headers = fixed != null ? fixed.http2Headers() : new DefaultHttp2Headers().status(OK.codeAsText());
         ctx.write(new DefaultHttp2HeadersFrame(headers).stream(stream));
         if (headersFrame.isEndStream()) {
-            ctx.write(new DefaultHttp2DataFrame(new EmptyByteBuf(ctx.alloc()), true).stream(stream));
+            writeLast(ctx, new DefaultHttp2DataFrame(fixed != null ? fixed.body() : Unpooled.EMPTY_BUFFER,
+                    true).stream(stream), startNanos, delayNanos);
+        } else {
+            requests.put(stream.id(), new StreamRequest(startNanos, delayNanos, fixed, -1));
+        }
+    }
+
+    /**
+     * Writes the frame ending the response stream, once the request's delay has passed.
+     */
+    private void writeLast(ChannelHandlerContext ctx, Http2DataFrame last, long startNanos, long delayNanos) {
+        if (responseDelay.isDeferred(delayNanos)) {
+            responseDelay.schedule(ctx, System.nanoTime() + delayNanos, () -> ctx.writeAndFlush(last)
+                    .addListener(ServerMetrics.processingTimeListener(startNanos)));
+        } else {
+            // Flushed in channelReadComplete
+            flushBatcher.write(ctx, last, last.content().readableBytes(), true)
+                    .addListener(ServerMetrics.processingTimeListener(startNanos));
+        }
+    }
+
+    /**
+     * Writes a bulk payload, once the request's delay has passed.
+     */
+    private void writeBulk(ChannelHandlerContext ctx, Http2FrameStream stream, long size, long startNanos,
+                           long delayNanos) {
+        if (responseDelay.isDeferred(delayNanos)) {
+            responseDelay.schedule(ctx, System.nanoTime() + delayNanos,
+                    () -> bulkWriter.write(ctx, stream, size, startNanos));
+        } else {
+            bulkWriter.write(ctx, stream, size, startNanos);
         }
     }
 
@@ -50,4 +149,20 @@ public class EchoHttp2ServerHandler extends ChannelDuplexHandler {
         super.exceptionCaught(ctx, cause);
         ctx.close();
     }
+
+    private static final class StreamRequest {
+        final long startNanos;
+        final long delayNanos;
+        // Response sent instead of the echo, or null
+        final FixedResponses.Response fixed;
+        // Size of the bulk payload sent instead of the echo, or -1
+        final long bulkSize;
+
+        StreamRequest(long startNanos, long delayNanos, FixedResponses.Response fixed, long bulkSize) {
+            this.startNanos = startNanos;
+            this.delayNanos = delayNanos;
+            this.fixed = fixed;
+            this.bulkSize = bulkSize;
+        }
+    }
 }
@@ -4,16 +4,14 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.ssl.*;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.util.NettyRuntime;
+import io.netty.util.ResourceLeakDetector;
 import io.netty.util.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,11 +19,20 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLException;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Echoes back any received data from an HTTP client.
@@ -35,15 +42,32 @@ public final class EchoHttpServer {
     private static final Logger logger = LoggerFactory.getLogger(EchoHttpServer.class);
 
     private static final PrintStream consoleErr = System.err;
+    // The file type bits of a unix:mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
 
     @Parameter(names = "--port", description = "Server Port")
     private int port = 8688;
 
-    @Parameter(names = "--boss-threads", description = "Boss Threads")
-    private int bossThreads = NettyRuntime.availableProcessors();
+    @Parameter(names = "--boss-threads", description = "Boss Threads, accepting connections. A single listener " +
+            "only uses one, there are at least as many as SO_REUSEPORT listeners")
+    private int bossThreads = 1;
 
-    @Parameter(names = "--worker-threads", description = "Worker Threads")
-    private int workerThreads = NettyRuntime.availableProcessors() * 600;
+    @Parameter(names = "--worker-threads", description = "Worker Threads, the event loops handling the " +
+            "connections. Defaults to one per CPU")
+    private int workerThreads = NettyRuntime.availableProcessors();
+
+    @Parameter(names = "--worker-cpus", description = "Pin the worker threads to these CPUs, one per thread in " +
+            "order, e.g. 0,1,2,3 (Linux only)")
+    private List<Integer> workerCpus = null;
+
+    @Parameter(names = "--blocking-backend", description = "Simulate a thread-per-request backend: none, platform " +
+            "(a pool of --blocking-threads threads) or virtual (a virtual thread per request, JDK 21+). Every " +
+            "response is then handed to a backend thread which blocks for its delay")
+    private BlockingBackend.Mode blockingBackendMode = BlockingBackend.Mode.NONE;
+
+    @Parameter(names = "--blocking-threads", description = "Threads of the platform blocking backend")
+    private int blockingThreads = 200;
 
     @Parameter(names = "--http2", description = "Use HTTP/2 protocol instead of HTTP/1.1")
     private boolean http2 = false;
@@ -58,16 +82,291 @@ public final class EchoHttpServer {
     @Parameter(names = "--key-store-password", description = "Keystore password")
     private String keyStorePassword = "";
 
+    @Parameter(names = "--key-store-reload-interval", description = "Seconds between checks of the keystore " +
+            "file for changes. A changed keystore is used for new connections. 0 disables reloading")
+    private long keyStoreReloadInterval = 10;
+
+    @Parameter(names = "--tls-session-cache-size", description = "TLS sessions kept by the server for clients " +
+            "to resume")
+    private long tlsSessionCacheSize = 20480;
+
+    @Parameter(names = "--tls-session-timeout", description = "Seconds a TLS session can be resumed for, " +
+            "from the session cache or with a session ticket")
+    private long tlsSessionTimeout = 300;
+
+    @Parameter(names = "--tls-ticket-keys", description = "TLS session ticket keys kept: the current one which " +
+            "encrypts new tickets and the previous ones still accepted")
+    private int tlsTicketKeys = 2;
+
+    @Parameter(names = "--tls-ticket-key-rotation", description = "Seconds between rotations of the TLS session " +
+            "ticket key. 0 never rotates it")
+    private long tlsTicketKeyRotation = 3600;
+
     @Parameter(names = "--delay", description = "Response delay in milliseconds")
     private int sleepTime = 0;
 
+    @Parameter(names = "--delay-distribution", converter = DelayDistribution.Converter.class,
+            description = "Distribution of the response delays, overriding --delay: <millis>, fixed:<millis>, " +
+                    "uniform:<min>,<max>, exponential:<mean>, lognormal:<median>,<sigma> or " +
+                    "empirical:<percentile>=<millis>,...,100=<millis>. Requests can override it with an " +
+                    "X-Echo-Delay header in the same format")
+    private DelayDistribution delayDistribution = null;
+
+    @Parameter(names = "--max-header-delay", description = "Longest delay in milliseconds a request can ask for " +
+            "with the X-Echo-Delay header, longer delays are cut to it")
+    private long maxHeaderDelay = ResponseDelay.DEFAULT_MAX_HEADER_DELAY_MILLIS;
+
+    @Parameter(names = "--error-rate", description = "Fraction of the requests answered with an error status " +
+            "instead of an echo, between 0 and 1")
+    private double errorRate = 0;
+
+    @Parameter(names = "--error-statuses", description = "Status codes of the errors of --error-rate, picked at " +
+            "random")
+    private List<Integer> errorStatuses = new ArrayList<>(Collections.singletonList(500));
+
+    @Parameter(names = "--keep-alive", description = "Keep-alive policy of HTTP/1.1 connections: client keeps " +
+            "them open as the client asks, close closes them after every response")
+    private RuntimeConfig.KeepAlive keepAlive = RuntimeConfig.KeepAlive.CLIENT;
+
     @Parameter(names = {"-h", "--help"}, description = "Display Help", help = true)
     private boolean help = false;
 
-    @Parameter(names = "--h2-aggregate-content", description = "Enable HTTP/2 content aggregation")
+    @Parameter(names = "--h2-aggregate-content", arity = 1, description = "Aggregate HTTP/2 request bodies " +
+            "and echo them in one response, true or false. With false the frames are echoed as they arrive")
     private boolean h2AggregateContent = true;
 
+    @Parameter(names = "--stream-content", description = "Echo HTTP/1.1 request bodies chunk by chunk as they " +
+            "arrive instead of aggregating them first")
+    private boolean streamContent = false;
+
+    @Parameter(names = "--lean-codec", description = "Decode HTTP/1.1 requests into a reused flyweight instead of " +
+            "header objects, without validating them, and write the echo responses with pre-encoded headers. " +
+            "Not used with --stream-content, --http2, --websocket-path or --compression, and " +
+            "--max-in-flight-requests does not apply")
+    private boolean leanCodec = false;
+
+    @Parameter(names = "--compression", description = "Compress complete response bodies with the content coding " +
+            "negotiated with Accept-Encoding: gzip, deflate, or br when brotli4j is on the classpath. Streamed " +
+            "echoes and bulk payloads are not compressed")
+    private boolean compression = false;
+
+    @Parameter(names = "--compression-level", description = "Compression level of gzip and deflate, 1 to 9")
+    private int compressionLevel = 6;
+
+    @Parameter(names = "--compression-min-size", description = "Smallest response body compressed, in bytes")
+    private int compressionMinSize = 256;
+
+    @Parameter(names = "--compression-cache-size", description = "Bytes of compressed fixed response bodies cached " +
+            "by each event loop, so that they are compressed once. Echoed bodies are never cached. The least " +
+            "recently used are dropped first. 0 disables the cache")
+    private long compressionCacheSize = 16 * 1024 * 1024;
+
+    @Parameter(names = "--flush-max-responses", description = "Flush the responses written while handling a read " +
+            "once this many are pending, instead of waiting for the read to complete. 0 for no limit")
+    private int flushMaxResponses = 64;
+
+    @Parameter(names = "--flush-max-bytes", description = "Flush the responses written while handling a read " +
+            "once this many body bytes are pending, instead of waiting for the read to complete. 0 for no limit")
+    private long flushMaxBytes = 64 * 1024;
+
+    @Parameter(names = "--flush-consolidation", description = "Also consolidate explicit flushes, such as the ones " +
+            "of delayed responses, flushing at most after this many. 0 disables it")
+    private int flushConsolidation = 0;
+
+    @Parameter(names = "--fixed-response-sizes", description = "Sizes in bytes of the fixed responses served " +
+            "instead of an echo to requests for /fixed/<size>")
+    private List<Integer> fixedResponseSizes = new ArrayList<>(Arrays.asList(1024, 20 * 1024, 1024 * 1024));
+
+    @Parameter(names = "--fixed-response", description = "Answer every request with a pre-encoded fixed response " +
+            "of this many bytes instead of an echo. Response delays are ignored for HTTP/1.1 requests")
+    private Integer fixedResponseSize = null;
+
+    @Parameter(names = "--payload-file", description = "File whose content is repeated in the responses to " +
+            "requests for /bytes/<size>. Created with --payload-file-size random bytes when it does not exist")
+    private File payloadFile = null;
+
+    @Parameter(names = "--payload-file-size", description = "Size in bytes of the payload file created for " +
+            "/bytes/<size>, a temporary file when --payload-file is not set. /bytes/ is disabled when 0 and " +
+            "there is no payload file")
+    private int payloadFileSize = 0;
+
+    @Parameter(names = "--max-payload-size", description = "Largest body served for /bytes/<size>, in bytes. " +
+            "Requests for more get a 400 Bad Request")
+    private long maxPayloadSize = BulkPayload.DEFAULT_MAX_SIZE;
+
+    @Parameter(names = "--h2-initial-window-size", description = "Initial HTTP/2 flow-control window of the " +
+            "streams in bytes. 0 for the default of 65535")
+    private int h2InitialWindowSize = 0;
+
+    @Parameter(names = "--h2-connection-window-size", description = "HTTP/2 flow-control window of a whole " +
+            "connection in bytes, at least the one the initial stream window implies. 0 for that size")
+    private int h2ConnectionWindowSize = 0;
+
+    @Parameter(names = "--h2-max-concurrent-streams", description = "HTTP/2 streams a client may open at once. " +
+            "0 for no limit")
+    private long h2MaxConcurrentStreams = 0;
+
+    @Parameter(names = "--h2-max-frame-size", description = "Largest HTTP/2 frame payload accepted, " +
+            "16384 to 16777215. 0 for the default of 16384")
+    private int h2MaxFrameSize = 0;
+
+    @Parameter(names = "--h2-header-table-size", description = "Size of the HPACK dynamic table in bytes. " +
+            "-1 for the default of 4096")
+    private long h2HeaderTableSize = -1;
+
+    @Parameter(names = "--h2-max-header-list-size", description = "Largest HTTP/2 header list accepted in bytes. " +
+            "0 for the default of 8192")
+    private long h2MaxHeaderListSize = 0;
+
+    @Parameter(names = "--h2-window-update-ratio", description = "Ratio of an HTTP/2 flow-control window that " +
+            "has to be consumed before a WINDOW_UPDATE returns it to the client, between 0 and 1")
+    private float h2WindowUpdateRatio = 0.5f;
+
+    @Parameter(names = "--max-connections", description = "Connections open at once, further ones are closed " +
+            "right away. 0 for no limit")
+    private int maxConnections = 0;
+
+    @Parameter(names = "--max-in-flight-requests", description = "Requests of a connection read but not yet " +
+            "answered, pipelined HTTP/1.1 requests or HTTP/2 streams. The connection is not read from at the " +
+            "limit. 0 for no limit")
+    private int maxInFlightRequests = 0;
+
+    @Parameter(names = "--write-buffer-low-water-mark", description = "Outbound bytes of a connection below " +
+            "which it is read from again")
+    private int writeBufferLowWaterMark = WriteBufferWaterMark.DEFAULT.low();
+
+    @Parameter(names = "--write-buffer-high-water-mark", description = "Outbound bytes of a connection above " +
+            "which it is not read from, until its client reads the responses")
+    private int writeBufferHighWaterMark = WriteBufferWaterMark.DEFAULT.high();
+
+    @Parameter(names = "--allocator", description = "Buffer allocator: pooled or unpooled")
+    private AllocatorConfig.Type allocatorType = AllocatorConfig.Type.POOLED;
+
+    @Parameter(names = "--prefer-direct", arity = 1, description = "Allocate the buffers for I/O off-heap, " +
+            "true or false")
+    private boolean preferDirect = PooledByteBufAllocator.defaultPreferDirect();
+
+    @Parameter(names = "--direct-arenas", description = "Direct memory arenas of the pooled allocator. " +
+            "-1 for Netty's default of two per CPU, capped by the max direct memory")
+    private int directArenas = -1;
+
+    @Parameter(names = "--heap-arenas", description = "Heap memory arenas of the pooled allocator. " +
+            "-1 for Netty's default of two per CPU, capped by the max heap")
+    private int heapArenas = -1;
+
+    @Parameter(names = "--page-size", description = "Page size of the pooled allocator. -1 for the default of 8192")
+    private int pageSize = -1;
+
+    @Parameter(names = "--chunk-size", description = "Chunk size of the pooled allocator, the page size times a " +
+            "power of two. -1 for Netty's default")
+    private int chunkSize = -1;
+
+    @Parameter(names = "--small-cache-size", description = "Small buffers of each size every thread caches. " +
+            "-1 for Netty's default")
+    private int smallCacheSize = -1;
+
+    @Parameter(names = "--normal-cache-size", description = "Normal sized buffers of each size every thread " +
+            "caches. -1 for Netty's default")
+    private int normalCacheSize = -1;
+
+    @Parameter(names = "--use-cache-for-all-threads", arity = 1, description = "Cache buffers in threads " +
+            "other than the event loops as well, true or false")
+    private boolean useCacheForAllThreads = PooledByteBufAllocator.defaultUseCacheForAllThreads();
+
+    @Parameter(names = "--leak-detection", description = "Buffer leak detection level: disabled, simple, " +
+            "advanced or paranoid. Defaults to Netty's level")
+    private ResourceLeakDetector.Level leakDetection = null;
+
+    @Parameter(names = "--allocator-report-interval", description = "Seconds between logged reports of the " +
+            "memory held by the allocator. 0 disables them, the report is also served on /allocator of the " +
+            "admin server")
+    private int allocatorReportInterval = 0;
+
+    @Parameter(names = "--access-log", description = "Directory of the binary access log, which records every " +
+            "request. Decoded with the access-log command. The access log is disabled when not set")
+    private File accessLogDirectory = null;
+
+    @Parameter(names = "--access-log-sample-rate", description = "Fraction of the requests recorded in the " +
+            "access log, between 0 and 1")
+    private double accessLogSampleRate = 1;
+
+    @Parameter(names = "--access-log-buffer", description = "Access log records buffered for every event loop, " +
+            "a power of two. Records are dropped while the buffer is full")
+    private int accessLogBuffer = 65536;
+
+    @Parameter(names = "--access-log-segment-size", description = "Size of the access log files in bytes")
+    private long accessLogSegmentSize = 64 * 1024 * 1024;
+
+    @Parameter(names = "--access-log-segments", description = "Access log files kept, the oldest ones are deleted")
+    private int accessLogSegments = 10;
+
+    @Parameter(names = "--capture", description = "Directory to capture the requests to, with their headers, " +
+            "bodies and arrival times. Sent again with the replay command. The capture is disabled when not set")
+    private File captureDirectory = null;
+
+    @Parameter(names = "--capture-buffer", description = "Bytes of captured requests buffered for every event " +
+            "loop, a power of two. Requests are dropped while the buffer is full, and larger ones are not captured")
+    private int captureBuffer = 16 * 1024 * 1024;
+
+    @Parameter(names = "--capture-segment-size", description = "Size of the capture files in bytes")
+    private long captureSegmentSize = 256 * 1024 * 1024;
+
+    @Parameter(names = "--capture-segments", description = "Capture files kept, the oldest ones are deleted")
+    private int captureSegments = 16;
+
+    @Parameter(names = "--websocket-path", description = "Path of the WebSocket echo endpoint, e.g. /ws. Frames " +
+            "sent on an upgraded connection are echoed back. Not used with --fixed-response. WebSocket is disabled " +
+            "when not set")
+    private String webSocketPath = null;
+
+    @Parameter(names = "--websocket-compression", description = "Accept the permessage-deflate extension, without " +
+            "context takeover so that no compression state is kept between messages")
+    private boolean webSocketCompression = false;
+
+    @Parameter(names = "--websocket-max-frame-size", description = "Largest WebSocket frame payload accepted in " +
+            "bytes, larger frames close the connection")
+    private int webSocketMaxFrameSize = 65536;
+
+    @Parameter(names = "--websocket-idle-timeout", description = "Seconds without a WebSocket frame in either " +
+            "direction before a connection is closed. 0 keeps idle connections open")
+    private long webSocketIdleTimeout = 300;
+
+    @Parameter(names = "--websocket-report-interval", description = "Seconds between logged reports of the open " +
+            "WebSocket connections and the frames and bytes echoed per second. 0 disables them")
+    private int webSocketReportInterval = 10;
+
+    @Parameter(names = "--admin-port", description = "Port of the admin server exposing /metrics, /allocator, " +
+            "/stats and /config, which changes the delay, errors, response size and keep-alive policy at runtime. " +
+            "The admin server is disabled when not set")
+    private int adminPort = 0;
+
+    @Parameter(names = "--admin-host", description = "Address the admin server binds to. The admin endpoints are " +
+            "not authenticated, use 0.0.0.0 only on a trusted network")
+    private String adminHost = "127.0.0.1";
+
+    @Parameter(names = "--transport", description = "Socket transport: nio, epoll, io_uring or auto")
+    private Transport transport = Transport.AUTO;
+
+    @Parameter(names = "--listeners", description = "Number of SO_REUSEPORT listeners bound to the port " +
+            "when the transport supports it, each accepting on its own boss thread. Defaults to one per worker thread")
+    private int listeners = 0;
+
+    @Parameter(names = "--uds-path", description = "Also listen on this Unix domain socket path (epoll only)")
+    private String udsPath = null;
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "client".equals(args[0])) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "access-log".equals(args[0])) {
+            AccessLogDecoder.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "replay".equals(args[0])) {
+            TrafficReplay.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         EchoHttpServer echoHttpServer = new EchoHttpServer();
         final JCommander jcmdr = new JCommander(echoHttpServer);
         jcmdr.setProgramName(EchoHttpServer.class.getSimpleName());
@@ -86,92 +385,249 @@ public final class EchoHttpServer {
         echoHttpServer.startServer();
     }
 
-    private void startServer() throws SSLException, CertificateException, InterruptedException {
+    private void startServer() throws IOException, CertificateException, InterruptedException {
+        if (delayDistribution == null && sleepTime > 0) {
+            delayDistribution = DelayDistribution.parse(Integer.toString(sleepTime));
+        }
+        BlockingBackend blockingBackend = BlockingBackend.create(blockingBackendMode, blockingThreads);
+        if (blockingBackend != null) {
+            ServerMetrics.trackBlockingBackend(blockingBackend);
+        }
+        RuntimeConfig runtimeConfig;
+        ResponseCompression responseCompression;
+        ResponseDelay responseDelay;
+        BulkPayload bulkPayload;
+        try {
+            responseDelay = new ResponseDelay(blockingBackend, maxHeaderDelay);
+            runtimeConfig = new RuntimeConfig(delayDistribution, -1, errorRate, errorStatuses, keepAlive);
+            responseCompression = compression ? new ResponseCompression(compressionLevel, compressionMinSize,
+                    compressionCacheSize) : null;
+            bulkPayload = payloadFile != null && payloadFile.exists() || payloadFileSize > 0 ?
+                    BulkPayload.create(payloadFile, payloadFileSize, maxPayloadSize) : BulkPayload.NONE;
+        } catch (IllegalArgumentException e) {
+            consoleErr.println(e.getMessage());
+            if (blockingBackend != null) {
+                blockingBackend.shutdown();
+            }
+            return;
+        }
+        RuntimeConfig.set(runtimeConfig);
+        FlushPolicy flushPolicy = new FlushPolicy(flushMaxResponses, flushMaxBytes, flushConsolidation);
+        FixedResponses fixedResponses = new FixedResponses(fixedResponseSizes, fixedResponseSize, bulkPayload);
+        Http2Config http2Config = new Http2Config(h2InitialWindowSize, h2ConnectionWindowSize, h2MaxConcurrentStreams,
+                h2MaxFrameSize, h2HeaderTableSize, h2MaxHeaderListSize, h2WindowUpdateRatio);
+        ConnectionLimits connectionLimits = new ConnectionLimits(maxConnections, maxInFlightRequests,
+                writeBufferLowWaterMark, writeBufferHighWaterMark);
+        ServerSslContext sslCtx = ssl ? createSslContext() : null;
+        AllocatorConfig allocatorConfig = new AllocatorConfig(allocatorType, preferDirect, directArenas, heapArenas,
+                pageSize, chunkSize, smallCacheSize, normalCacheSize, useCacheForAllThreads, leakDetection);
+        ByteBufAllocator allocator = allocatorConfig.newAllocator();
+        ServerMetrics.trackAllocator(allocator);
+        AccessLog accessLog = accessLogDirectory != null ? new AccessLog(accessLogDirectory, accessLogSampleRate,
+                accessLogBuffer, accessLogSegmentSize, accessLogSegments) : null;
+        TrafficCapture trafficCapture = captureDirectory != null ? new TrafficCapture(captureDirectory,
+                captureBuffer, captureSegmentSize, captureSegments) : null;
+        WebSocketEcho webSocketEcho = webSocketPath != null && !fixedResponses.isForAll() ? new WebSocketEcho(
+                webSocketPath, webSocketCompression, webSocketMaxFrameSize, webSocketIdleTimeout) : null;
+        Transport activeTransport = transport.resolve();
+        if (activeTransport != transport && transport != Transport.AUTO) {
+            logger.warn("Transport {} is not available, falling back to {}", transport,
+                    activeTransport, transport.unavailabilityCause());
+        }
+        int listenerCount = activeTransport.supportsReusePort() ? (listeners > 0 ? listeners : workerThreads) : 1;
+        // Every listener accepts on a boss thread of its own
+        int bossThreadCount = Math.max(bossThreads, listenerCount);
         logger.info("Echo HTTP/{} Server. Port: {}, Boss Threads: {}, Worker Threads: {}, SSL Enabled: {}" +
-                ", Sleep Time: {}ms", http2 ? "2.0" : "1.1", port, bossThreads, workerThreads, ssl, sleepTime);
+                ", Delays On: {}, Stream Content: {}, Lean Codec: {}", http2 ? "2.0" : "1.1", port,
+                bossThreadCount, workerThreads, ssl, responseDelay, streamContent,
+                leanCodec && !streamContent && !http2 && webSocketEcho == null && responseCompression == null);
+        logger.info("Transport: {}, Listeners: {}, Flush: {}", activeTransport, listenerCount, flushPolicy);
+        if (workerCpus != null) {
+            logger.info("Worker CPUs: {}", workerCpus);
+        }
+        logger.info("Runtime Config: {}", runtimeConfig);
+        logger.info("Fixed Responses: {}", fixedResponses);
+        logger.info("Connection Limits: {}", connectionLimits);
+        if (accessLog != null) {
+            logger.info("Access Log: {}", accessLog);
+        }
+        if (trafficCapture != null) {
+            logger.info("Traffic Capture: {}", trafficCapture);
+        }
+        if (webSocketEcho != null) {
+            logger.info("WebSocket: {}", webSocketEcho);
+        }
+        if (responseCompression != null) {
+            logger.info("Compression: {}", responseCompression);
+            ServerMetrics.trackCompression(responseCompression);
+        }
+        if (http2) {
+            logger.info("HTTP/2: {}", http2Config);
+        }
         // Print Max Heap Size
         logger.info("Max Heap Size: {}MB", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        logger.info("Allocator: {}", allocatorConfig);
         // Print Netty Version
         Version version = Version.identify(this.getClass().getClassLoader()).values().iterator().next();
         logger.info("Netty Version: {}", version.artifactVersion());
         // Configure the server.
-        EventLoopGroup bossGroup = new NioEventLoopGroup(bossThreads);
-        EventLoopGroup workerGroup = new NioEventLoopGroup(workerThreads);
+        EventLoopGroup bossGroup = activeTransport.newEventLoopGroup(bossThreadCount);
+        EventLoopGroup workerGroup = activeTransport.newEventLoopGroup(workerThreads,
+                workerCpus != null ? new CpuAffinityThreadFactory("worker", workerCpus) : null);
         try {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024);
-            b = http2 ? configureHttp2(b) : configureHttp1_1(b);
+                    .option(ChannelOption.SO_BACKLOG, 1024)
+                    .option(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.ALLOCATOR, allocator);
+            if (allocatorReportInterval > 0) {
+                bossGroup.scheduleAtFixedRate(() -> {
+                    StringBuilder report = new StringBuilder();
+                    AllocatorConfig.writeReport(report, allocator);
+                    logger.info("Allocator Report:\n{}", report);
+                }, allocatorReportInterval, allocatorReportInterval, TimeUnit.SECONDS);
+            }
+            if (webSocketEcho != null && webSocketReportInterval > 0) {
+                bossGroup.scheduleAtFixedRate(() -> logger.info("WebSocket Report: {}", webSocketEcho.report()),
+                        webSocketReportInterval, webSocketReportInterval, TimeUnit.SECONDS);
+            }
+            connectionLimits.configure(b);
+            if (accessLog != null) {
+                accessLog.start();
+                ServerMetrics.trackAccessLog(accessLog);
+            }
+            if (trafficCapture != null) {
+                trafficCapture.start();
+                ServerMetrics.trackTrafficCapture(trafficCapture);
+            }
+            b = http2 ? configureHttp2(b, sslCtx, responseDelay, flushPolicy, fixedResponses, http2Config,
+                    connectionLimits, accessLog, trafficCapture, webSocketEcho, responseCompression) :
+                    configureHttp1_1(b, sslCtx, responseDelay, flushPolicy, fixedResponses, connectionLimits,
+                            accessLog, trafficCapture, webSocketEcho, responseCompression);
 
             // Start the server.
-            // Bind and start to accept incoming connections.
-            ChannelFuture f = b.bind(port).sync();
+            // Bind and start to accept incoming connections. With SO_REUSEPORT every listener is registered on
+            // its own boss event loop and the kernel spreads new connections between them.
+            List<Channel> serverChannels = new ArrayList<>();
+            ServerBootstrap tcpBootstrap = b.clone().channel(activeTransport.serverChannelClass());
+            if (listenerCount > 1) {
+                activeTransport.reusePort(tcpBootstrap);
+            }
+            for (int i = 0; i < listenerCount; i++) {
+                serverChannels.add(tcpBootstrap.bind(port).sync().channel());
+            }
+            if (udsPath != null) {
+                Class<? extends ServerChannel> domainSocketChannelClass =
+                        activeTransport.serverDomainSocketChannelClass();
+                if (domainSocketChannelClass != null) {
+                    deleteStaleSocket(Paths.get(udsPath));
+                    serverChannels.add(b.clone().channel(domainSocketChannelClass)
+                            .childOption(ChannelOption.SO_KEEPALIVE, null)
+                            .bind(new DomainSocketAddress(udsPath)).sync().channel());
+                    logger.info("Listening on Unix domain socket {}", udsPath);
+                } else {
+                    logger.warn("Unix domain sockets are not supported by the {} transport, ignoring {}",
+                            activeTransport, udsPath);
+                }
+            }
 
-            // Wait until the server socket is closed.
-            f.channel().closeFuture().sync();
+            if (adminPort > 0) {
+                AdminServer.start(bossGroup, activeTransport.serverChannelClass(), adminHost, adminPort);
+            }
+
+            // Wait until the server sockets are closed.
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
         } finally {
             // Shut down all event loops to terminate all threads.
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            if (blockingBackend != null) {
+                blockingBackend.shutdown();
+            }
+            if (sslCtx != null) {
+                sslCtx.shutdown();
+            }
+            if (accessLog != null) {
+                accessLog.close();
+            }
+            if (trafficCapture != null) {
+                trafficCapture.close();
+            }
         }
     }
 
-    private ServerBootstrap configureHttp1_1(ServerBootstrap b) throws SSLException, CertificateException {
-        // Configure SSL.
-        final SslContext sslCtx;
-        if (ssl) {
-            SslContextBuilder sslContextBuilder = createSslContextBuilder();
-            sslCtx = sslContextBuilder.build();
-        } else {
-            sslCtx = null;
+    /**
+     * Deletes the socket file a previous run left at the path, which would make binding fail. Anything else at the
+     * path is kept, and the server does not start.
+     */
+    private static void deleteStaleSocket(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        if ((mode & S_IFMT) != S_IFSOCK) {
+            throw new IOException("--uds-path exists and is not a socket: " + path);
         }
+        Files.delete(path);
+    }
+
+    private ServerBootstrap configureHttp1_1(ServerBootstrap b, ServerSslContext sslCtx, ResponseDelay responseDelay,
+                                             FlushPolicy flushPolicy, FixedResponses fixedResponses,
+                                             ConnectionLimits connectionLimits, AccessLog accessLog,
+                                             TrafficCapture trafficCapture, WebSocketEcho webSocketEcho,
+                                             ResponseCompression compression) {
         return b.childOption(ChannelOption.SO_KEEPALIVE, true)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    public void initChannel(SocketChannel ch) {
-                        ChannelPipeline p = ch.pipeline();
-                        if (sslCtx != null) {
-                            p.addLast(sslCtx.newHandler(ch.alloc()));
-                        }
-                        p.addLast(new HttpServerCodec());
-                        p.addLast("aggregator", new HttpObjectAggregator(1048576));
-                        p.addLast(new EchoHttpServerHandler(sleepTime, false));
-                    }
-                });
+                .childHandler(new HttpServerInitializer(sslCtx, responseDelay, flushPolicy, fixedResponses,
+                        connectionLimits, accessLog, trafficCapture, streamContent, leanCodec, webSocketEcho,
+                        compression));
     }
 
-    private ServerBootstrap configureHttp2(ServerBootstrap b) throws SSLException, CertificateException {
-        // Configure SSL.
-        final SslContext sslCtx;
-        if (ssl) {
-            ApplicationProtocolConfig protocolConfig =
-                    new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
-                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
-                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
-                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
-            SslContextBuilder sslContextBuilder = createSslContextBuilder();
-            sslCtx = sslContextBuilder.applicationProtocolConfig(protocolConfig)
-                    .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
-                    .build();
-        } else {
-            sslCtx = null;
+    private ServerBootstrap configureHttp2(ServerBootstrap b, ServerSslContext sslCtx, ResponseDelay responseDelay,
+                                           FlushPolicy flushPolicy, FixedResponses fixedResponses,
+                                           Http2Config http2Config, ConnectionLimits connectionLimits,
+                                           AccessLog accessLog, TrafficCapture trafficCapture,
+                                           WebSocketEcho webSocketEcho, ResponseCompression compression) {
+        return b.childHandler(new Http2ServerInitializer(sslCtx, responseDelay, flushPolicy, fixedResponses,
+                http2Config, connectionLimits, accessLog, trafficCapture, h2AggregateContent, streamContent,
+                webSocketEcho, compression));
+    }
+
+    private ServerSslContext createSslContext() throws SSLException, CertificateException {
+        // The self signed certificate is generated once, only a key store can be reloaded
+        SelfSignedCertificate ssc = keyStoreFile == null ? newSelfSignedCertificate() : null;
+        ServerSslContext sslCtx = new ServerSslContext(() -> {
+            SslContextBuilder sslContextBuilder = createSslContextBuilder(ssc);
+            return (http2 ? SslContexts.configureHttp2(sslContextBuilder) : sslContextBuilder).build();
+        }, tlsTicketKeys);
+        sslCtx.rotateTicketKeys(tlsTicketKeyRotation);
+        if (keyStoreFile != null && keyStoreReloadInterval > 0) {
+            sslCtx.watch(keyStoreFile, keyStoreReloadInterval);
         }
-        return b.childHandler(new Http2ServerInitializer(sslCtx, sleepTime, h2AggregateContent));
+        logger.info("TLS session cache: {}, session timeout: {}s, ticket keys: {}, ticket key rotation: {}s",
+                tlsSessionCacheSize, tlsSessionTimeout, tlsTicketKeys, tlsTicketKeyRotation);
+        return sslCtx;
+    }
+
+    private static SelfSignedCertificate newSelfSignedCertificate() throws CertificateException {
+        logger.info("Creating SSL context using self signed certificate");
+        // An EC key is generated far faster than an RSA one and makes for cheaper handshakes
+        return new SelfSignedCertificate("localhost", "EC", 256);
     }
 
-    private SslContextBuilder createSslContextBuilder() throws CertificateException {
+    private SslContextBuilder createSslContextBuilder(SelfSignedCertificate ssc) {
         final SslContextBuilder sslContextBuilder;
         if (keyStoreFile != null) {
             logger.info("Creating SSL context using the key store {}", keyStoreFile.getAbsolutePath());
             KeyManagerFactory keyManagerFactory = getKeyManagerFactory(keyStoreFile);
             sslContextBuilder = SslContextBuilder.forServer(keyManagerFactory);
         } else {
-            logger.info("Creating SSL context using self signed certificate");
-            SelfSignedCertificate ssc = new SelfSignedCertificate();
             sslContextBuilder = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey());
         }
-        return sslContextBuilder.sslProvider(SslProvider.OPENSSL);
+        return sslContextBuilder.sslProvider(SslProvider.OPENSSL)
+                .sessionCacheSize(tlsSessionCacheSize)
+                .sessionTimeout(tlsSessionTimeout);
     }
 
     private KeyManagerFactory getKeyManagerFactory(File keyStoreFile) {
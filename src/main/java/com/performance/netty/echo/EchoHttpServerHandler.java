@@ -1,96 +1,126 @@
 package com.performance.netty.echo;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http2.HttpConversionUtil;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 /**
- * Handler implementation for the echo server and http/2 echo server with content aggregation.
- * For http/2 echo server with content aggregation, this receives a {@link FullHttpRequest},
- * which has been converted by a {@link io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter} before it arrives here.
- * For further details, check {@link Http2OrHttpHandler} where the pipeline is setup.
+ * Handler implementation for the http/1.1 echo server with content aggregation. It receives a {@link FullHttpRequest}
+ * built by the {@link HttpObjectAggregator}. HTTP/2 streams are aggregated by
+ * {@link EchoHttp2AggregatingServerHandler} instead.
+ * <p>
+ * Requests for a {@link FixedResponses fixed response} get it instead of an echo, sharing its body and headers, and
+ * requests for a {@link BulkPayload bulk payload} get it streamed from the payload file.
  */
-@Sharable
 public class EchoHttpServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
-    private long sleepTime;
-    private boolean h2AggregateContent;
-    private static String remoteHost;
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy.Batcher flushBatcher;
+    private final FixedResponses fixedResponses;
 
-    EchoHttpServerHandler(long sleepTime, boolean h2AggregateContent) {
-        this.sleepTime = sleepTime;
-        this.h2AggregateContent = h2AggregateContent;
+    // HTTP/1.1 responses must be written in request order, so a deferred response holds back the ones after it
+    private final Queue<PendingResponse> pendingResponses = new ArrayDeque<>();
+
+    EchoHttpServerHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy, FixedResponses fixedResponses) {
+        this.responseDelay = responseDelay;
+        this.flushBatcher = flushPolicy.newBatcher();
+        this.fixedResponses = fixedResponses;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
         //    request.headers().set("Backend-IN-time", OffsetDateTime.now(ZoneOffset.UTC));
-        remoteHost = ((InetSocketAddress)ctx.channel().remoteAddress()).getAddress().getHostAddress();
-        if (h2AggregateContent) {
-            String streamId = request.headers().get(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
-            FullHttpResponse response = buildFullHttpResponse(request);
-            response.headers().set(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), streamId);
-            ctx.writeAndFlush(response);
+        long startNanos = System.nanoTime();
+        RuntimeConfig config = RuntimeConfig.current();
+        long delayNanos = responseDelay.nextDelayNanos(config, request.headers().get(ResponseDelay.HEADER_NAME));
+        FixedResponses.Response fixed = config.select(fixedResponses, request.uri());
+        long bulkSize = fixed == null ? fixedResponses.bulkPayload().select(request.uri()) : -1;
+        // Decide whether to close the connection or not
+        boolean keepAlive = config.isKeepAlive(HttpUtil.isKeepAlive(request));
+        // Build the response object
+        FullHttpResponse response;
+        if (bulkSize >= 0) {
+            // Written once it is its turn
+            response = null;
+        } else if (fixed != null) {
+            // Its headers are complete already
+            response = fixed.newHttp1Response(keepAlive);
         } else {
-            // Decide whether to close the connection or not
-            boolean keepAlive = HttpUtil.isKeepAlive(request);
-            // Build the response object
-            FullHttpResponse response = buildFullHttpResponse(request);
-            if (keepAlive) {
-                // Add keep alive header
-                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            }
-            if (sleepTime > 0) {
-                ctx.executor().schedule(() -> {
-                    ChannelFuture f = ctx.writeAndFlush(response);
-                    if (!keepAlive) {
-                        f.addListener(ChannelFutureListener.CLOSE);
-                    }
-                }, sleepTime, TimeUnit.MILLISECONDS);
+            response = buildFullHttpResponse(ctx, request);
+            // Add keep alive header, or tell the client that the connection is closed after the response
+            response.headers().set(HttpHeaderNames.CONNECTION,
+                    keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        }
+        boolean deferred = responseDelay.isDeferred(delayNanos);
+        if (deferred || !pendingResponses.isEmpty()) {
+            PendingResponse pending = new PendingResponse(response, bulkSize, startNanos, keepAlive);
+            pendingResponses.add(pending);
+            if (deferred) {
+                responseDelay.schedule(ctx, startNanos + delayNanos, () -> {
+                    pending.ready = true;
+                    writePendingResponses(ctx);
+                });
             } else {
-                ChannelFuture f = ctx.writeAndFlush(response);
-                if (!keepAlive) {
-                    f.addListener(ChannelFutureListener.CLOSE);
-                }
+                pending.ready = true;
             }
+        } else {
+            writeResponse(ctx, response, bulkSize, startNanos, keepAlive);
+        }
+    }
+
+    /**
+     * Writes a response, or the bulk payload of the given size when there is none. The responses to the requests of
+     * a read are flushed together in {@link #channelReadComplete}, or earlier when the {@link FlushPolicy}
+     * thresholds are reached. Bulk payloads are flushed right away.
+     */
+    private void writeResponse(ChannelHandlerContext ctx, FullHttpResponse response, long bulkSize, long startNanos,
+                               boolean keepAlive) {
+        ChannelFuture f = response != null ?
+                flushBatcher.write(ctx, response, response.content().readableBytes(), true) :
+                fixedResponses.bulkPayload().writeHttp1(ctx, bulkSize, keepAlive);
+        f.addListener(ServerMetrics.processingTimeListener(startNanos));
+        if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Writes the pending responses which are ready, up to the first one which is not.
+     */
+    private void writePendingResponses(ChannelHandlerContext ctx) {
+        PendingResponse pending;
+        while ((pending = pendingResponses.peek()) != null && pending.ready) {
+            pendingResponses.remove();
+            writeResponse(ctx, pending.response, pending.bulkSize, pending.startNanos, pending.keepAlive);
         }
+        flushBatcher.flush(ctx);
     }
 
-    private static FullHttpResponse buildFullHttpResponse(FullHttpRequest request) {
-        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, request.content().copy());
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushBatcher.flush(ctx);
+        super.channelReadComplete(ctx);
+    }
 
+    static FullHttpResponse buildFullHttpResponse(ChannelHandlerContext ctx, FullHttpRequest request) {
+        final ByteBuf content;
         //print request headers to response body as a json if the request body is empty
         if (request.content().readableBytes() == 0) {
-            Map<String, Object> map = new HashMap<String, Object>();
-            Set<String> headerNames = request.headers().names();
-            for (String key : headerNames) {
-                String value = request.headers().get(key);
-                map.put(key, value);
-            }
-            map.put("Remote-address", remoteHost);
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-                String json = objectMapper.writeValueAsString(map);
-                byte[] byteArr = json.getBytes();
-                response.content().writeBytes(byteArr);
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
+            content = HeadersJsonEncoder.encode(ctx.alloc(), request.headers(), remoteHost(ctx));
+        } else {
+            content = request.content().retainedDuplicate();
         }
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, content);
 
         response.headers().set("syy-operation-id", "getNettyEchoResponse");
 
@@ -112,4 +142,26 @@ public class EchoHttpServerHandler extends SimpleChannelInboundHandler<FullHttpR
         return response;
     }
 
+    static String remoteHost(ChannelHandlerContext ctx) {
+        SocketAddress remoteAddress = ctx.channel().remoteAddress();
+        // Unix domain socket peers have no IP address
+        return remoteAddress instanceof InetSocketAddress ?
+                ((InetSocketAddress) remoteAddress).getAddress().getHostAddress() : String.valueOf(remoteAddress);
+    }
+
+    private static final class PendingResponse {
+        // Null for a bulk payload
+        final FullHttpResponse response;
+        final long bulkSize;
+        final long startNanos;
+        final boolean keepAlive;
+        boolean ready;
+
+        PendingResponse(FullHttpResponse response, long bulkSize, long startNanos, boolean keepAlive) {
+            this.response = response;
+            this.bulkSize = bulkSize;
+            this.startNanos = startNanos;
+            this.keepAlive = keepAlive;
+        }
+    }
 }
@@ -0,0 +1,205 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Handler implementation for the http/1.1 echo server without content aggregation. The response head is written as
+ * soon as the request head arrives and every {@link HttpContent} chunk is echoed back as it is read, so request
+ * bodies are never buffered as a whole and have no size limit.
+ * <p>
+ * The response uses the request's content length when it is known and chunked transfer encoding otherwise. The
+ * {@link ConnectionLimits.BackpressureHandler} suspends reading while the channel is not writable, so a slow reader
+ * cannot make the echoed chunks pile up in the outbound buffer, and on behalf of this handler while a delayed
+ * response is pending.
+ * <p>
+ * Requests for a {@link FixedResponses fixed response} or a {@link BulkPayload bulk payload} get it once their body
+ * has been read and discarded.
+ */
+public class EchoHttpStreamingServerHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy.Batcher flushBatcher;
+    private final FixedResponses fixedResponses;
+
+    private boolean keepAlive;
+    private boolean discardContent;
+    // Fixed response to write when the request has been read
+    private FullHttpResponse fixedResponse;
+    // Size of the bulk payload to write when the request has been read, or -1
+    private long bulkSize = -1;
+    private boolean delayPending;
+    private long startNanos;
+    private long delayNanos;
+    // Messages of pipelined requests which were decoded while a delayed response was pending
+    private final Queue<HttpObject> delayedMessages = new ArrayDeque<>();
+    // Owns auto read, looked up once the pipeline is complete
+    private ConnectionLimits.BackpressureHandler backpressure;
+
+    EchoHttpStreamingServerHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                                   FixedResponses fixedResponses) {
+        super(false);
+        this.responseDelay = responseDelay;
+        this.flushBatcher = flushPolicy.newBatcher();
+        this.fixedResponses = fixedResponses;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+        if (delayPending) {
+            delayedMessages.add(msg);
+            return;
+        }
+        if (msg instanceof HttpRequest) {
+            onRequestRead(ctx, (HttpRequest) msg);
+        }
+        if (msg instanceof HttpContent) {
+            onContentRead(ctx, (HttpContent) msg);
+        }
+    }
+
+    private void onRequestRead(ChannelHandlerContext ctx, HttpRequest request) {
+        startNanos = System.nanoTime();
+        RuntimeConfig config = RuntimeConfig.current();
+        delayNanos = responseDelay.nextDelayNanos(config, request.headers().get(ResponseDelay.HEADER_NAME));
+        keepAlive = config.isKeepAlive(HttpUtil.isKeepAlive(request));
+        FixedResponses.Response fixed = config.select(fixedResponses, request.uri());
+        if (fixed != null) {
+            discardContent = true;
+            fixedResponse = fixed.newHttp1Response(keepAlive);
+            return;
+        }
+        bulkSize = fixedResponses.bulkPayload().select(request.uri());
+        if (bulkSize >= 0) {
+            discardContent = true;
+            return;
+        }
+        boolean chunked = HttpUtil.isTransferEncodingChunked(request);
+        long contentLength = HttpUtil.getContentLength(request, 0L);
+        boolean emptyBody = !chunked && contentLength == 0;
+        discardContent = emptyBody;
+
+        HttpResponse response;
+        if (emptyBody) {
+            //print request headers to response body as a json if the request body is empty
+            ByteBuf json = HeadersJsonEncoder.encode(ctx.alloc(), request.headers(),
+                    EchoHttpServerHandler.remoteHost(ctx));
+            response = new DefaultFullHttpResponse(HTTP_1_1, OK, json);
+            HttpUtil.setContentLength(response, json.readableBytes());
+        } else {
+            response = new DefaultHttpResponse(HTTP_1_1, OK);
+            if (chunked) {
+                HttpUtil.setTransferEncodingChunked(response, true);
+            } else {
+                HttpUtil.setContentLength(response, contentLength);
+            }
+        }
+
+        response.headers().set("syy-operation-id", "getNettyEchoResponse");
+        String contentType = request.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType != null ? contentType : "application/json");
+        response.headers().set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE :
+                HttpHeaderValues.CLOSE);
+
+        if (emptyBody) {
+            // The whole response is already built, the (empty) last content is dropped when it arrives
+            complete(ctx, (FullHttpResponse) response);
+        } else {
+            flushBatcher.write(ctx, response, 0, false);
+        }
+    }
+
+    private void onContentRead(ChannelHandlerContext ctx, HttpContent content) {
+        if (discardContent) {
+            content.release();
+            if ((fixedResponse != null || bulkSize >= 0) && content instanceof LastHttpContent) {
+                // Null for a bulk payload
+                FullHttpResponse response = fixedResponse;
+                fixedResponse = null;
+                complete(ctx, response);
+            }
+            return;
+        }
+        // Re-wrap the content so that a FullHttpRequest (e.g. from the h2c upgrade handler) is never written back
+        // as is. The wrappers take over the ownership of the decoded buffer, nothing is copied.
+        if (content instanceof LastHttpContent) {
+            complete(ctx, new DefaultLastHttpContent(content.content()));
+        } else {
+            flushBatcher.write(ctx, new DefaultHttpContent(content.content()), content.content().readableBytes(),
+                    false);
+        }
+    }
+
+    /**
+     * Writes the final part of the response, or the bulk payload when it is {@code null}, after the request's delay
+     * if there is one. Reading stays suspended
+     * while the delay is pending so that the responses to pipelined requests cannot overtake this one.
+     */
+    private void complete(ChannelHandlerContext ctx, HttpContent last) {
+        if (responseDelay.isDeferred(delayNanos)) {
+            delayPending = true;
+            updateAutoRead(ctx);
+            responseDelay.schedule(ctx, System.nanoTime() + delayNanos, () -> {
+                delayPending = false;
+                writeLast(ctx, last);
+                HttpObject msg;
+                while (!delayPending && (msg = delayedMessages.poll()) != null) {
+                    channelRead0(ctx, msg);
+                }
+                flushBatcher.flush(ctx);
+                updateAutoRead(ctx);
+            });
+        } else {
+            writeLast(ctx, last);
+        }
+    }
+
+    private void writeLast(ChannelHandlerContext ctx, HttpContent last) {
+        ChannelFuture f;
+        if (last != null) {
+            // Flushed in channelReadComplete, or by the delay task
+            f = flushBatcher.write(ctx, last, last.content().readableBytes(), true);
+        } else {
+            f = fixedResponses.bulkPayload().writeHttp1(ctx, bulkSize, keepAlive);
+            bulkSize = -1;
+        }
+        f.addListener(ServerMetrics.processingTimeListener(startNanos));
+        if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flushBatcher.flush(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        HttpObject msg;
+        while ((msg = delayedMessages.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void updateAutoRead(ChannelHandlerContext ctx) {
+        if (backpressure == null) {
+            backpressure = ctx.pipeline().get(ConnectionLimits.BackpressureHandler.class);
+        }
+        if (backpressure != null) {
+            backpressure.pauseReads(delayPending);
+        }
+    }
+}
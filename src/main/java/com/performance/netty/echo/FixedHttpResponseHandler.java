@@ -0,0 +1,72 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Handler implementation for the http/1.1 server when every request gets the same {@link FixedResponses fixed
+ * response}. It sits behind a bare {@link io.netty.handler.codec.http.HttpRequestDecoder}: the responses are written
+ * to the socket as the pre-encoded buffers of the {@link FixedResponses.Response}, so nothing is encoded or allocated
+ * per request. Request bodies are discarded as they are decoded.
+ * <p>
+ * Response delays are not supported in this mode, the errors, response size and keep-alive policy of the
+ * {@link RuntimeConfig} are.
+ */
+public class FixedHttpResponseHandler extends ChannelInboundHandlerAdapter {
+
+    private final FixedResponses fixedResponses;
+    private final FlushPolicy.Batcher flushBatcher;
+
+    private FixedResponses.Response response;
+    private boolean keepAlive;
+    private boolean head;
+    private long startNanos;
+
+    FixedHttpResponseHandler(FixedResponses fixedResponses, FlushPolicy flushPolicy) {
+        this.fixedResponses = fixedResponses;
+        this.flushBatcher = flushPolicy.newBatcher();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        try {
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                if (request.decoderResult().isFailure()) {
+                    ctx.close();
+                    return;
+                }
+                startNanos = System.nanoTime();
+                RuntimeConfig config = RuntimeConfig.current();
+                response = config.select(fixedResponses, null);
+                keepAlive = config.isKeepAlive(HttpUtil.isKeepAlive(request));
+                head = HttpMethod.HEAD.equals(request.method());
+                if (HttpUtil.is100ContinueExpected(request)) {
+                    flushBatcher.write(ctx, FixedResponses.Response.encodedContinue(), 0, false);
+                }
+            }
+            if (msg instanceof LastHttpContent) {
+                ChannelFuture f = flushBatcher.write(ctx, response.encodedHttp1(keepAlive, head),
+                        head ? 0 : response.size(), true);
+                f.addListener(ServerMetrics.processingTimeListener(startNanos));
+                if (!keepAlive) {
+                    f.addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        flushBatcher.flush(ctx);
+    }
+}
@@ -0,0 +1,272 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.ReadOnlyHttpHeaders;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.ReadOnlyHttp2Headers;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Responses of a fixed size, served instead of an echo to measure throughput without the cost of echoing payloads.
+ * A request gets one when its path is {@code /fixed/<size>}, for any of the configured sizes, or always when a
+ * size is configured for all requests.
+ * <p>
+ * Everything is built once at startup: the bodies are read-only, unreleasable direct buffers shared by all event
+ * loops, and so are the encoded HTTP/1.1 responses. Handlers only ever write duplicates of them, and
+ * {@link Response#of(ByteBuf)} finds the response a written body belongs to, so that outbound handlers can keep what
+ * they derive from it with the response.
+ */
+final class FixedResponses {
+
+    static final FixedResponses NONE = new FixedResponses(null, null, BulkPayload.NONE);
+
+    private static final String PATH_PREFIX = "/fixed/";
+    private static final AsciiString CONTENT_TYPE = AsciiString.cached("application/octet-stream");
+
+    private final IntObjectMap<Response> bySize = new IntObjectHashMap<>();
+    private final Response forAll;
+    private final BulkPayload bulkPayload;
+
+    FixedResponses(Collection<Integer> sizes, Integer sizeForAll) {
+        this(sizes, sizeForAll, BulkPayload.NONE);
+    }
+
+    /**
+     * @param sizes       the sizes served under {@code /fixed/<size>}
+     * @param sizeForAll  the size of the response to send to every request, or {@code null} to echo by default
+     * @param bulkPayload the payloads of any size served under {@code /bytes/<size>}
+     */
+    FixedResponses(Collection<Integer> sizes, Integer sizeForAll, BulkPayload bulkPayload) {
+        this.bulkPayload = bulkPayload;
+        if (sizes != null) {
+            for (int size : sizes) {
+                bySize.put(size, new Response(size));
+            }
+        }
+        if (sizeForAll != null) {
+            Response response = bySize.get(sizeForAll);
+            if (response == null) {
+                response = new Response(sizeForAll);
+                bySize.put(sizeForAll, response);
+            }
+            forAll = response;
+        } else {
+            forAll = null;
+        }
+    }
+
+    /**
+     * Whether every request gets the same fixed response, so that the request does not even need to be looked at.
+     */
+    boolean isForAll() {
+        return forAll != null;
+    }
+
+    Response forAll() {
+        return forAll;
+    }
+
+    /**
+     * Returns the bulk payloads, which requests get when there is no fixed response for them.
+     */
+    BulkPayload bulkPayload() {
+        return bulkPayload;
+    }
+
+    /**
+     * Returns the fixed response for a request URI, or {@code null} when the request should be echoed.
+     */
+    Response select(CharSequence uri) {
+        if (forAll != null) {
+            return forAll;
+        }
+        if (uri == null || bySize.isEmpty() || !AsciiString.regionMatches(uri, false, 0, PATH_PREFIX, 0,
+                PATH_PREFIX.length())) {
+            return null;
+        }
+        int size = 0;
+        int i = PATH_PREFIX.length();
+        for (; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9' || size > Integer.MAX_VALUE / 10) {
+                break;
+            }
+            size = size * 10 + (c - '0');
+        }
+        if (i == PATH_PREFIX.length() || (i < uri.length() && uri.charAt(i) != '?')) {
+            return null;
+        }
+        return bySize.get(size);
+    }
+
+    @Override
+    public String toString() {
+        String bulk = bulkPayload == BulkPayload.NONE ? "" : ", " + bulkPayload;
+        if (bySize.isEmpty()) {
+            return "none" + bulk;
+        }
+        return (forAll != null ? forAll.size + " bytes for all requests, " : "") + PATH_PREFIX + bySize.keySet() +
+                bulk;
+    }
+
+    static final class Response {
+
+        private static final ByteBuf CONTINUE = unreleasable(
+                Unpooled.copiedBuffer("HTTP/1.1 100 Continue\r\n\r\n", CharsetUtil.US_ASCII));
+
+        private final HttpResponseStatus status;
+        private final int size;
+        private final ByteBuf body;
+        private final HttpHeaders keepAliveHeaders;
+        private final HttpHeaders closeHeaders;
+        private final Http2Headers http2Headers;
+        // Encoded HTTP/1.1 responses, by keep-alive and HEAD
+        private final ByteBuf[][] encoded = new ByteBuf[2][2];
+
+        private Response(int size) {
+            this(OK, size);
+        }
+
+        /**
+         * Builds a response of the given status with a body of random bytes, such as the error responses of the
+         * {@link RuntimeConfig}.
+         */
+        Response(HttpResponseStatus status, int size) {
+            this.status = status;
+            this.size = size;
+            byte[] bytes = new byte[size];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            body = unreleasable(new Body(this, size).writeBytes(bytes));
+            AsciiString contentLength = AsciiString.of(Integer.toString(size));
+            keepAliveHeaders = new ReadOnlyHttpHeaders(false,
+                    HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE,
+                    HttpHeaderNames.CONTENT_LENGTH, contentLength,
+                    HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            closeHeaders = new ReadOnlyHttpHeaders(false,
+                    HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE,
+                    HttpHeaderNames.CONTENT_LENGTH, contentLength,
+                    HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            http2Headers = ReadOnlyHttp2Headers.serverHeaders(false, status.codeAsText(),
+                    HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE,
+                    HttpHeaderNames.CONTENT_LENGTH, contentLength);
+            for (int keepAlive = 0; keepAlive < 2; keepAlive++) {
+                for (int head = 0; head < 2; head++) {
+                    encoded[keepAlive][head] = encode(keepAlive == 1 ? keepAliveHeaders : closeHeaders, head == 1);
+                }
+            }
+        }
+
+        private ByteBuf encode(HttpHeaders headers, boolean head) {
+            StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+            headers.forEach(header -> sb.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n"));
+            sb.append("\r\n");
+            ByteBuf buf = directBuffer(sb.length() + (head ? 0 : size));
+            buf.writeCharSequence(sb, CharsetUtil.US_ASCII);
+            if (!head) {
+                buf.writeBytes(body.duplicate());
+            }
+            return unreleasable(buf);
+        }
+
+        /**
+         * Allocates a buffer whose memory is freed by the garbage collector, since the buffers are never released and
+         * the responses of a replaced {@link RuntimeConfig} snapshot have to go away once no write uses them anymore.
+         */
+        private static ByteBuf directBuffer(int capacity) {
+            return Unpooled.wrappedBuffer(ByteBuffer.allocateDirect(capacity)).clear();
+        }
+
+        private static ByteBuf unreleasable(ByteBuf buf) {
+            return Unpooled.unreleasableBuffer(buf.asReadOnly());
+        }
+
+        /**
+         * Returns the fixed response whose whole body a buffer is a view of, or {@code null} for any other buffer.
+         * Only unwraps the buffer, the content is not read.
+         */
+        static Response of(ByteBuf content) {
+            ByteBuf root = content;
+            for (ByteBuf unwrapped = root.unwrap(); unwrapped != null; unwrapped = root.unwrap()) {
+                root = unwrapped;
+            }
+            if (!(root instanceof Body)) {
+                return null;
+            }
+            Response response = ((Body) root).response;
+            return content.readableBytes() == response.size ? response : null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Returns a view of the body, to be written as is.
+         */
+        ByteBuf body() {
+            return body.duplicate();
+        }
+
+        /**
+         * Returns a view of the whole encoded HTTP/1.1 response, to be written directly to the socket.
+         */
+        ByteBuf encodedHttp1(boolean keepAlive, boolean head) {
+            return encoded[keepAlive ? 1 : 0][head ? 1 : 0].duplicate();
+        }
+
+        /**
+         * Returns a pre-encoded {@code 100 Continue} response.
+         */
+        static ByteBuf encodedContinue() {
+            return CONTINUE.duplicate();
+        }
+
+        /**
+         * Returns the response as a message for the HTTP/1.1 encoder, sharing the body and the read-only headers.
+         */
+        FullHttpResponse newHttp1Response(boolean keepAlive) {
+            return new DefaultFullHttpResponse(HTTP_1_1, status, body(), keepAlive ? keepAliveHeaders : closeHeaders,
+                    EmptyHttpHeaders.INSTANCE);
+        }
+
+        Http2Headers http2Headers() {
+            return http2Headers;
+        }
+
+        /**
+         * The buffer of a body, which tells the response it belongs to. Like {@link #directBuffer(int)}, its memory
+         * is freed by the garbage collector.
+         */
+        private static final class Body extends UnpooledDirectByteBuf {
+
+            private final Response response;
+
+            Body(Response response, int size) {
+                super(UnpooledByteBufAllocator.DEFAULT, ByteBuffer.allocateDirect(size), size);
+                this.response = response;
+                clear();
+            }
+        }
+    }
+}
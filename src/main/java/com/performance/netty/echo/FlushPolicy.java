@@ -0,0 +1,94 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+/**
+ * Decides when the responses written during a read burst are flushed. Responses are only written while the
+ * requests of a read are handled, and flushed together once the read completes, so pipelined HTTP/1.1 requests and
+ * HTTP/2 streams arriving in the same read cost a single write syscall. A flush happens earlier when the unflushed
+ * responses reach a count or byte threshold, which keeps large bursts from piling up in the outbound buffer.
+ * <p>
+ * Optionally a {@link FlushConsolidationHandler} is added in front of the pipeline as well. It also consolidates the
+ * explicit flushes which happen outside of reads, such as the ones of delayed responses.
+ */
+final class FlushPolicy {
+
+    static final FlushPolicy DEFAULT = new FlushPolicy(64, 64 * 1024, 0);
+
+    private final int maxPendingResponses;
+    private final long maxPendingBytes;
+    private final int explicitFlushAfterFlushes;
+
+    /**
+     * @param maxPendingResponses       flush once this many responses are unflushed, 0 for no limit
+     * @param maxPendingBytes           flush once this many body bytes are unflushed, 0 for no limit
+     * @param explicitFlushAfterFlushes flush consolidation limit of the {@link FlushConsolidationHandler}, 0 to not
+     *                                  add it
+     */
+    FlushPolicy(int maxPendingResponses, long maxPendingBytes, int explicitFlushAfterFlushes) {
+        this.maxPendingResponses = maxPendingResponses > 0 ? maxPendingResponses : Integer.MAX_VALUE;
+        this.maxPendingBytes = maxPendingBytes > 0 ? maxPendingBytes : Long.MAX_VALUE;
+        this.explicitFlushAfterFlushes = explicitFlushAfterFlushes;
+    }
+
+    /**
+     * Returns a new {@link FlushConsolidationHandler} to add first to a pipeline, or {@code null} when explicit
+     * flush consolidation is disabled.
+     */
+    FlushConsolidationHandler newConsolidationHandler() {
+        return explicitFlushAfterFlushes > 0 ? new FlushConsolidationHandler(explicitFlushAfterFlushes, true) : null;
+    }
+
+    Batcher newBatcher() {
+        return new Batcher(maxPendingResponses, maxPendingBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "responses=" + (maxPendingResponses == Integer.MAX_VALUE ? "unlimited" : maxPendingResponses) +
+                ", bytes=" + (maxPendingBytes == Long.MAX_VALUE ? "unlimited" : maxPendingBytes) +
+                ", consolidation=" + (explicitFlushAfterFlushes > 0 ? explicitFlushAfterFlushes : "disabled");
+    }
+
+    /**
+     * Unflushed writes of one channel. Handlers write through it while handling a read, and call
+     * {@link #flush(ChannelHandlerContext)} from {@code channelReadComplete}.
+     */
+    static final class Batcher {
+        private final int maxPendingResponses;
+        private final long maxPendingBytes;
+        private int pendingResponses;
+        private long pendingBytes;
+
+        private Batcher(int maxPendingResponses, long maxPendingBytes) {
+            this.maxPendingResponses = maxPendingResponses;
+            this.maxPendingBytes = maxPendingBytes;
+        }
+
+        /**
+         * Writes a message, and flushes if a threshold has been reached.
+         *
+         * @param bytes         the body bytes in the message
+         * @param endOfResponse whether the message completes a response
+         */
+        ChannelFuture write(ChannelHandlerContext ctx, Object msg, long bytes, boolean endOfResponse) {
+            ChannelFuture future = ctx.write(msg);
+            pendingBytes += bytes;
+            if (endOfResponse) {
+                pendingResponses++;
+            }
+            if (pendingResponses >= maxPendingResponses || pendingBytes >= maxPendingBytes) {
+                flush(ctx);
+            }
+            return future;
+        }
+
+        void flush(ChannelHandlerContext ctx) {
+            pendingResponses = 0;
+            pendingBytes = 0;
+            ctx.flush();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes request headers as a flat JSON object straight into a {@link ByteBuf}, without building intermediate maps
+ * or strings.
+ * <p>
+ * The output is identical to serializing a {@link java.util.HashMap} of header name to first header value (plus
+ * a {@code Remote-address} entry) with Jackson, which is what the echo handler used to do. That includes the key
+ * order, which follows {@link java.util.HashMap} bucket order, and Jackson's escaping rules. Non ASCII characters
+ * are written as UTF-8.
+ * <p>
+ * HTTP/2 headers are encoded without their pseudo-headers, except {@code :authority}, which is written as
+ * {@code host} like an HTTP/1.1 client would send it.
+ */
+final class HeadersJsonEncoder {
+
+    private static final String REMOTE_ADDRESS = "Remote-address";
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private static final int HASH_MAP_INITIAL_CAPACITY = 16;
+
+    private static final FastThreadLocal<Scratch> SCRATCH = new FastThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private HeadersJsonEncoder() {
+    }
+
+    /**
+     * Encodes the headers and the remote host into a new buffer obtained from the given allocator.
+     */
+    static ByteBuf encode(ByteBufAllocator alloc, HttpHeaders headers, CharSequence remoteHost) {
+        return encode(alloc, headers.iteratorCharSequence(), remoteHost);
+    }
+
+    /**
+     * Encodes the HTTP/2 headers and the remote host into a new buffer obtained from the given allocator.
+     */
+    static ByteBuf encode(ByteBufAllocator alloc, Http2Headers headers, CharSequence remoteHost) {
+        return encode(alloc, headers.iterator(), remoteHost);
+    }
+
+    /**
+     * Encodes the headers of a request read by the lean codec and the remote host into a new buffer obtained from
+     * the given allocator.
+     */
+    static ByteBuf encode(ByteBufAllocator alloc, LeanHttpRequest request, CharSequence remoteHost) {
+        return encode(alloc, request.headers(), remoteHost);
+    }
+
+    private static ByteBuf encode(ByteBufAllocator alloc, Iterator<Map.Entry<CharSequence, CharSequence>> headers,
+                                  CharSequence remoteHost) {
+        Scratch scratch = SCRATCH.get();
+        try {
+            return encode(alloc, headers, remoteHost, scratch);
+        } finally {
+            scratch.clear();
+        }
+    }
+
+    private static ByteBuf encode(ByteBufAllocator alloc, Iterator<Map.Entry<CharSequence, CharSequence>> headers,
+                                  CharSequence remoteHost, Scratch scratch) {
+        // Collect all header entries, in insertion order.
+        int entryCount = 0;
+        while (headers.hasNext()) {
+            Map.Entry<CharSequence, CharSequence> entry = headers.next();
+            CharSequence name = entry.getKey();
+            if (Http2Headers.PseudoHeaderName.hasPseudoHeaderFormat(name)) {
+                if (!Http2Headers.PseudoHeaderName.AUTHORITY.value().contentEquals(name)) {
+                    continue;
+                }
+                name = HttpHeaderNames.HOST;
+            }
+            scratch.ensureCapacity(entryCount + 2);
+            scratch.names[entryCount] = name;
+            scratch.values[entryCount] = entry.getValue();
+            entryCount++;
+        }
+        scratch.ensureCapacity(entryCount + 2);
+        CharSequence[] names = scratch.names;
+        CharSequence[] values = scratch.values;
+
+        // Keep the first occurrence of each (case sensitive) name, paired with the first value of that
+        // (case insensitive) name, the same as HttpHeaders#names() followed by HttpHeaders#get(name).
+        int keyCount = 0;
+        int remoteAddressKey = -1;
+        int estimatedSize = 2;
+        for (int i = 0; i < entryCount; i++) {
+            CharSequence name = names[i];
+            if (indexOf(names, i, name, false) < i) {
+                continue;
+            }
+            int valueIndex = indexOf(names, i, name, true);
+            scratch.keyIndex[keyCount] = i;
+            scratch.valueIndex[keyCount] = valueIndex;
+            if (AsciiString.contentEquals(REMOTE_ADDRESS, name)) {
+                remoteAddressKey = keyCount;
+            }
+            estimatedSize += name.length() + values[valueIndex].length() + 6;
+            keyCount++;
+        }
+        if (remoteAddressKey < 0) {
+            remoteAddressKey = keyCount;
+            scratch.keyIndex[keyCount] = entryCount;
+            names[entryCount] = REMOTE_ADDRESS;
+            keyCount++;
+            estimatedSize += REMOTE_ADDRESS.length() + 6;
+        }
+        scratch.valueIndex[remoteAddressKey] = entryCount;
+        values[entryCount] = remoteHost;
+        estimatedSize += remoteHost.length();
+
+        // Order the keys the way a HashMap holding them would iterate: by bucket, then by insertion order.
+        int capacity = HASH_MAP_INITIAL_CAPACITY;
+        while (keyCount > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        long[] order = scratch.order;
+        for (int k = 0; k < keyCount; k++) {
+            int h = hashCode(names[scratch.keyIndex[k]]);
+            long bucket = (h ^ (h >>> 16)) & (capacity - 1);
+            order[k] = bucket << 32 | k;
+        }
+        Arrays.sort(order, 0, keyCount);
+
+        ByteBuf out = alloc.buffer(estimatedSize);
+        out.writeByte('{');
+        for (int i = 0; i < keyCount; i++) {
+            int k = (int) order[i];
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            writeString(out, names[scratch.keyIndex[k]]);
+            out.writeByte(':');
+            writeString(out, values[scratch.valueIndex[k]]);
+        }
+        out.writeByte('}');
+        return out;
+    }
+
+    private static int indexOf(CharSequence[] names, int limit, CharSequence name, boolean ignoreCase) {
+        for (int j = 0; j < limit; j++) {
+            if (ignoreCase ? AsciiString.contentEqualsIgnoreCase(names[j], name) :
+                    AsciiString.contentEquals(names[j], name)) {
+                return j;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Same value as {@link String#hashCode()}, without converting to a {@link String} first.
+     */
+    private static int hashCode(CharSequence s) {
+        if (s instanceof String) {
+            return s.hashCode();
+        }
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static void writeString(ByteBuf out, CharSequence s) {
+        out.writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeAscii(out, c);
+            } else if (c < 0x800) {
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else {
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        out.writeByte('"');
+    }
+
+    private static void writeAscii(ByteBuf out, char c) {
+        switch (c) {
+            case '"':
+            case '\\':
+                out.writeByte('\\').writeByte(c);
+                return;
+            case '\b':
+                out.writeByte('\\').writeByte('b');
+                return;
+            case '\t':
+                out.writeByte('\\').writeByte('t');
+                return;
+            case '\n':
+                out.writeByte('\\').writeByte('n');
+                return;
+            case '\f':
+                out.writeByte('\\').writeByte('f');
+                return;
+            case '\r':
+                out.writeByte('\\').writeByte('r');
+                return;
+            default:
+                if (c < 0x20) {
+                    out.writeByte('\\').writeByte('u').writeByte('0').writeByte('0')
+                            .writeByte(HEX[c >> 4]).writeByte(HEX[c & 0xF]);
+                } else {
+                    out.writeByte(c);
+                }
+        }
+    }
+
+    /**
+     * Per-thread working arrays, grown on demand and reused across requests.
+     */
+    private static final class Scratch {
+        CharSequence[] names = new CharSequence[32];
+        CharSequence[] values = new CharSequence[32];
+        int[] keyIndex = new int[32];
+        int[] valueIndex = new int[32];
+        long[] order = new long[32];
+
+        void ensureCapacity(int size) {
+            if (size > names.length) {
+                int newSize = Math.max(size, names.length << 1);
+                names = Arrays.copyOf(names, newSize);
+                values = Arrays.copyOf(values, newSize);
+                keyIndex = Arrays.copyOf(keyIndex, newSize);
+                valueIndex = Arrays.copyOf(valueIndex, newSize);
+                order = Arrays.copyOf(order, newSize);
+            }
+        }
+
+        /**
+         * Drops the references to the last request's headers.
+         */
+        void clear() {
+            Arrays.fill(names, null);
+            Arrays.fill(values, null);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Load generator connection speaking HTTP/1.1 over a kept alive connection. With a pipelining depth above one,
+ * several requests are written before their responses arrive.
+ */
+class Http1LoadHandler extends LoadHandler {
+
+    private final boolean ssl;
+    // Intended send times of the requests in flight, in the order they were sent
+    private final LongQueue inFlight = new LongQueue();
+    private boolean success;
+
+    Http1LoadHandler(LoadWorkload workload, LoadStatistics statistics, double requestsPerSecond, int pipelineDepth,
+                     long durationNanos, boolean ssl) {
+        super(workload, statistics, requestsPerSecond, pipelineDepth, durationNanos);
+        this.ssl = ssl;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (!ssl) {
+            start();
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+            start();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void send(ChannelHandlerContext ctx, long intendedNanos) {
+        inFlight.add(intendedNanos);
+        ctx.write(workload.newHttp1Request());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        try {
+            if (msg instanceof HttpResponse) {
+                success = ((HttpResponse) msg).status().code() < 400;
+            }
+            if (msg instanceof HttpContent) {
+                statistics.recordBytesReceived(((HttpContent) msg).content().readableBytes());
+                if (msg instanceof LastHttpContent) {
+                    complete(inFlight.poll(), success);
+                }
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    protected void abortInFlight() {
+        while (!inFlight.isEmpty()) {
+            statistics.recordResponse(inFlight.poll(), false);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.DefaultHttp2LocalFlowController;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2LocalFlowController;
+import io.netty.handler.codec.http2.Http2Settings;
+
+/**
+ * HTTP/2 connection settings of the server: the SETTINGS sent to clients, the size of the connection flow-control
+ * window and when the consumed parts of the windows are returned to the client.
+ * <p>
+ * The echo handlers hand the bytes they consume back to the flow controller once per read, and the flow controller
+ * only sends a WINDOW_UPDATE once the consumed bytes reach the configured ratio of the window, instead of one per
+ * DATA frame.
+ */
+final class Http2Config {
+
+    static final Http2Config DEFAULT = new Http2Config(0, 0, 0, 0, -1, 0,
+            DefaultHttp2LocalFlowController.DEFAULT_WINDOW_UPDATE_RATIO);
+
+    private final Http2Settings settings = Http2Settings.defaultSettings();
+    private final int connectionWindowSize;
+    // The connection window the codec sets up by itself
+    private final int codecConnectionWindowSize;
+    private final float windowUpdateRatio;
+
+    /**
+     * Settings left at 0 keep their default value.
+     *
+     * @param initialWindowSize    initial flow-control window of the streams
+     * @param connectionWindowSize flow-control window of the whole connection. It is never smaller than the initial
+     *                             window of the streams, which the codec grows it to on its own
+     * @param maxConcurrentStreams streams a client may open at once
+     * @param maxFrameSize         largest frame payload the server accepts
+     * @param headerTableSize      size of the HPACK dynamic table, -1 for the default
+     * @param maxHeaderListSize    largest header list the server accepts
+     * @param windowUpdateRatio    ratio of a window which has to be consumed before it is updated, in (0, 1)
+     * @throws IllegalArgumentException when a setting is out of its range
+     */
+    Http2Config(int initialWindowSize, int connectionWindowSize, long maxConcurrentStreams, int maxFrameSize,
+                long headerTableSize, long maxHeaderListSize, float windowUpdateRatio) {
+        if (initialWindowSize > 0) {
+            settings.initialWindowSize(initialWindowSize);
+        }
+        if (maxConcurrentStreams > 0) {
+            settings.maxConcurrentStreams(maxConcurrentStreams);
+        }
+        if (maxFrameSize > 0) {
+            settings.maxFrameSize(maxFrameSize);
+        }
+        if (headerTableSize >= 0) {
+            settings.headerTableSize(headerTableSize);
+        }
+        if (maxHeaderListSize > 0) {
+            settings.maxHeaderListSize(maxHeaderListSize);
+        }
+        if (windowUpdateRatio <= 0 || windowUpdateRatio >= 1) {
+            throw new IllegalArgumentException("Window update ratio must be between 0 and 1: " + windowUpdateRatio);
+        }
+        this.codecConnectionWindowSize = codecConnectionWindowSize(settings.initialWindowSize());
+        this.connectionWindowSize = Math.max(connectionWindowSize, codecConnectionWindowSize);
+        this.windowUpdateRatio = windowUpdateRatio;
+    }
+
+    /**
+     * Returns the connection window which {@link Http2FrameCodec} sets up for an initial stream window: when the
+     * stream window is larger than the default, the connection window grows by twice the difference.
+     */
+    private static int codecConnectionWindowSize(Integer initialWindowSize) {
+        int delta = initialWindowSize == null ? 0 : initialWindowSize - Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+        if (delta <= 0) {
+            return Http2CodecUtil.DEFAULT_WINDOW_SIZE;
+        }
+        return (int) Math.min((long) Http2CodecUtil.DEFAULT_WINDOW_SIZE + Math.max(delta << 1, delta),
+                Http2CodecUtil.MAX_INITIAL_WINDOW_SIZE);
+    }
+
+    /**
+     * Returns a new server codec with these settings, with its HTTP/2 streams tracked by the {@link ServerMetrics}.
+     */
+    Http2FrameCodec newFrameCodec() {
+        Http2FrameCodec codec = Http2FrameCodecBuilder.forServer()
+                .initialSettings(new Http2Settings().copyFrom(settings))
+                .build();
+        Http2Connection connection = codec.connection();
+        Http2LocalFlowController flowController = connection.local().flowController();
+        if (flowController instanceof DefaultHttp2LocalFlowController) {
+            DefaultHttp2LocalFlowController defaultFlowController = (DefaultHttp2LocalFlowController) flowController;
+            defaultFlowController.windowUpdateRatio(windowUpdateRatio);
+            try {
+                defaultFlowController.windowUpdateRatio(connection.connectionStream(), windowUpdateRatio);
+            } catch (Http2Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return ServerMetrics.trackStreams(codec);
+    }
+
+    /**
+     * Returns the handlers to add after the codec: the given ones, preceded by a handler enlarging the connection
+     * window when it is configured larger than the default.
+     */
+    ChannelHandler[] withHandlers(ChannelHandler... handlers) {
+        if (connectionWindowSize == codecConnectionWindowSize) {
+            return handlers;
+        }
+        ChannelHandler[] withWindowHandler = new ChannelHandler[handlers.length + 1];
+        withWindowHandler[0] = new ConnectionWindowHandler(connectionWindowSize - codecConnectionWindowSize);
+        System.arraycopy(handlers, 0, withWindowHandler, 1, handlers.length);
+        return withWindowHandler;
+    }
+
+    @Override
+    public String toString() {
+        return "settings=" + settings + ", connectionWindow=" + connectionWindowSize +
+                ", windowUpdateRatio=" + windowUpdateRatio;
+    }
+
+    /**
+     * Grows the connection window once the codec is in place, which sends the matching WINDOW_UPDATE, then removes
+     * itself.
+     */
+    private static final class ConnectionWindowHandler extends ChannelHandlerAdapter {
+        private final int increment;
+
+        ConnectionWindowHandler(int increment) {
+            this.increment = increment;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            // A window update without a stream applies to the connection
+            ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(increment));
+            ctx.pipeline().remove(this);
+        }
+    }
+}
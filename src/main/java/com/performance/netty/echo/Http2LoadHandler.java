@@ -0,0 +1,149 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpClientUpgradeHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+/**
+ * Load generator connection speaking HTTP/2, with up to a configured number of concurrent streams. Sits behind its
+ * {@link #connectionHandler()}, which is negotiated with ALPN over TLS or reached by a cleartext upgrade.
+ */
+class Http2LoadHandler extends LoadHandler {
+
+    private final boolean ssl;
+    // Intended send times of the streams in flight
+    private final IntObjectMap<Long> inFlight = new IntObjectHashMap<>();
+    private final Http2ConnectionHandler connectionHandler;
+
+    Http2LoadHandler(LoadWorkload workload, LoadStatistics statistics, double requestsPerSecond, int maxStreams,
+                     long durationNanos, boolean ssl) {
+        super(workload, statistics, requestsPerSecond, maxStreams, durationNanos);
+        this.ssl = ssl;
+        this.connectionHandler = new Http2ConnectionHandlerBuilder()
+                .server(false)
+                .frameListener(newFrameListener())
+                .build();
+    }
+
+    /**
+     * Returns the connection handler to place in front of this handler, directly with TLS, or as the upgrade
+     * target of a cleartext connection.
+     */
+    Http2ConnectionHandler connectionHandler() {
+        return connectionHandler;
+    }
+
+    /**
+     * Turns the response frames into completed requests. Frames of streams we did not open, such as the response
+     * to the upgrade request, are ignored.
+     */
+    private Http2FrameListener newFrameListener() {
+        return new Http2FrameAdapter() {
+            @Override
+            public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                                      boolean endOfStream) {
+                CharSequence status = headers.status();
+                if (status != null && status.length() > 0 && status.charAt(0) >= '4') {
+                    complete(streamId, false);
+                } else if (endOfStream) {
+                    complete(streamId, true);
+                }
+            }
+
+            @Override
+            public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                                      int streamDependency, short weight, boolean exclusive, int padding,
+                                      boolean endOfStream) {
+                onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+            }
+
+            @Override
+            public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                                  boolean endOfStream) {
+                statistics.recordBytesReceived(data.readableBytes());
+                if (endOfStream) {
+                    complete(streamId, true);
+                }
+                // Everything is consumed right away, the flow-controller sends WINDOW_UPDATEs as needed
+                return data.readableBytes() + padding;
+            }
+
+            @Override
+            public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+                complete(streamId, false);
+            }
+        };
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (!ssl) {
+            // Ask for an upgrade, the requests start once it succeeded
+            ctx.writeAndFlush(workload.newUpgradeRequest());
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_SUCCESSFUL) {
+            start();
+        } else if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_REJECTED) {
+            // The server does not speak HTTP/2
+            statistics.recordConnectionFailure();
+            ctx.close();
+        } else if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+            String protocol = ctx.pipeline().get(SslHandler.class).applicationProtocol();
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                start();
+            } else {
+                // The server does not speak HTTP/2
+                statistics.recordConnectionFailure();
+                ctx.close();
+            }
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected boolean canSend() {
+        return connectionHandler.connection().local().canOpenStream();
+    }
+
+    @Override
+    protected void send(ChannelHandlerContext ctx, long intendedNanos) {
+        int streamId = connectionHandler.connection().local().incrementAndGetNextStreamId();
+        inFlight.put(streamId, Long.valueOf(intendedNanos));
+        boolean hasBody = workload.hasBody();
+        connectionHandler.encoder().writeHeaders(ctx, streamId, workload.newHttp2Headers(), 0, !hasBody,
+                ctx.newPromise());
+        if (hasBody) {
+            connectionHandler.encoder().writeData(ctx, streamId, workload.body(), 0, true, ctx.newPromise());
+        }
+    }
+
+    private void complete(int streamId, boolean success) {
+        Long intendedNanos = inFlight.remove(streamId);
+        if (intendedNanos != null) {
+            complete(intendedNanos, success);
+        }
+    }
+
+    @Override
+    protected void abortInFlight() {
+        for (Long intendedNanos : inFlight.values()) {
+            statistics.recordResponse(intendedNanos, false);
+        }
+        inFlight.clear();
+    }
+}
@@ -1,55 +1,132 @@
 package com.performance.netty.echo;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
 import io.netty.handler.codec.http2.*;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Negotiates with the client if HTTP2 or HTTP is going to be used. Once decided, the
  * pipeline is setup with the correct handlers for the selected protocol.
  */
 public class Http2OrHttpHandler extends ApplicationProtocolNegotiationHandler {
 
-    private static final int MAX_CONTENT_LENGTH = 1024 * 100;
-    private final long sleepTime;
+    static final int MAX_CONTENT_LENGTH = 1024 * 100;
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy flushPolicy;
+    private final FixedResponses fixedResponses;
+    private final Http2Config http2Config;
+    private final ConnectionLimits connectionLimits;
+    private final AccessLog accessLog;
+    private final TrafficCapture trafficCapture;
     private final boolean h2AggregateContent;
+    private final boolean streamContent;
+    private final WebSocketEcho webSocketEcho;
+    private final ResponseCompression compression;
 
-    Http2OrHttpHandler(long sleepTime, boolean h2AggregateContent) {
+    Http2OrHttpHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy, FixedResponses fixedResponses,
+                       Http2Config http2Config, ConnectionLimits connectionLimits, AccessLog accessLog,
+                       TrafficCapture trafficCapture, boolean h2AggregateContent, boolean streamContent,
+                       WebSocketEcho webSocketEcho, ResponseCompression compression) {
         super(ApplicationProtocolNames.HTTP_1_1);
-        this.sleepTime = sleepTime;
+        this.responseDelay = responseDelay;
+        this.flushPolicy = flushPolicy;
+        this.fixedResponses = fixedResponses;
+        this.http2Config = http2Config;
+        this.connectionLimits = connectionLimits;
+        this.accessLog = accessLog;
+        this.trafficCapture = trafficCapture;
         this.h2AggregateContent = h2AggregateContent;
+        this.streamContent = streamContent;
+        this.webSocketEcho = webSocketEcho;
+        this.compression = compression;
     }
 
     @Override
     protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
         if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
-
-            if (h2AggregateContent) {
-                DefaultHttp2Connection connection = new DefaultHttp2Connection(true);
-                InboundHttp2ToHttpAdapter listener = new InboundHttp2ToHttpAdapterBuilder(connection)
-                        .propagateSettings(true)
-                        .validateHttpHeaders(false)
-                        .maxContentLength(MAX_CONTENT_LENGTH).build();
-                ctx.pipeline().addLast(new HttpToHttp2ConnectionHandlerBuilder()
-                        .frameListener(listener)
-                        .connection(connection).build());
-                ctx.pipeline().addLast(new EchoHttpServerHandler(sleepTime, true));
-            } else {
-                ctx.pipeline().addLast(Http2FrameCodecBuilder.forServer().build(), new EchoHttp2ServerHandler());
-            }
+            ctx.pipeline().addLast(http2Config.newFrameCodec());
+            ctx.pipeline().addLast(newHttp2Handlers(responseDelay, flushPolicy, fixedResponses, http2Config,
+                    connectionLimits, accessLog, trafficCapture, h2AggregateContent, compression));
             return;
         }
 
         if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
-            ctx.pipeline().addLast(new HttpServerCodec(),
-                    new HttpObjectAggregator(MAX_CONTENT_LENGTH),
-                    new EchoHttpServerHandler(sleepTime, false));
+            ChannelPipeline p = ctx.pipeline();
+            if (fixedResponses.isForAll() && compression == null) {
+                p.addLast(connectionLimits.newBackpressureHandler(), new HttpRequestDecoder());
+                if (accessLog != null) {
+                    p.addLast(accessLog.newHandler());
+                }
+                if (trafficCapture != null) {
+                    p.addLast(trafficCapture.newHandler());
+                }
+                p.addLast(new FixedHttpResponseHandler(fixedResponses, flushPolicy));
+                return;
+            }
+            p.addLast(new HttpServerCodec(), connectionLimits.newBackpressureHandler());
+            if (accessLog != null) {
+                p.addLast(accessLog.newHandler());
+            }
+            if (trafficCapture != null) {
+                p.addLast(trafficCapture.newHandler());
+            }
+            if (webSocketEcho != null) {
+                p.addLast(webSocketEcho.newHandlers(flushPolicy));
+            }
+            p.addLast(streamContent ? new HttpServerExpectContinueHandler() :
+                    new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+            if (compression != null) {
+                p.addLast(compression.newHttp1Handler());
+            }
+            p.addLast(streamContent ? new EchoHttpStreamingServerHandler(responseDelay, flushPolicy, fixedResponses) :
+                    new EchoHttpServerHandler(responseDelay, flushPolicy, fixedResponses));
             return;
         }
 
         throw new IllegalStateException("Unknown protocol: " + protocol);
     }
+
+    /**
+     * Returns the handlers following the {@link Http2FrameCodec}: the backpressure handler, the access log,
+     * traffic capture and compression handlers when they are enabled, and the echo handler.
+     */
+    static ChannelHandler[] newHttp2Handlers(ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                                             FixedResponses fixedResponses, Http2Config http2Config,
+                                             ConnectionLimits connectionLimits, AccessLog accessLog,
+                                             TrafficCapture trafficCapture, boolean h2AggregateContent,
+                                             ResponseCompression compression) {
+        List<ChannelHandler> handlers = new ArrayList<>(5);
+        handlers.add(connectionLimits.newBackpressureHandler());
+        if (accessLog != null) {
+            handlers.add(accessLog.newHandler());
+        }
+        if (trafficCapture != null) {
+            handlers.add(trafficCapture.newHandler());
+        }
+        if (compression != null) {
+            handlers.add(compression.newHttp2Handler());
+        }
+        handlers.add(newHttp2Handler(responseDelay, flushPolicy, fixedResponses, h2AggregateContent));
+        return http2Config.withHandlers(handlers.toArray(new ChannelHandler[0]));
+    }
+
+    /**
+     * Returns the handler echoing the frames of an {@link Http2FrameCodec}, aggregating the request bodies or not.
+     */
+    static ChannelHandler newHttp2Handler(ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                                          FixedResponses fixedResponses, boolean h2AggregateContent) {
+        return h2AggregateContent ?
+                new EchoHttp2AggregatingServerHandler(responseDelay, flushPolicy, fixedResponses, MAX_CONTENT_LENGTH) :
+                new EchoHttp2ServerHandler(responseDelay, flushPolicy, fixedResponses);
+    }
 }
@@ -1,16 +1,14 @@
 package com.performance.netty.echo;
 
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpServerUpgradeHandler;
-import io.netty.handler.codec.http.HttpServerUpgradeHandler.UpgradeCodecFactory;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler.UpgradeCodec;
 import io.netty.handler.codec.http2.Http2CodecUtil;
-import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
 import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
-import io.netty.handler.ssl.SslContext;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.util.AsciiString;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
@@ -20,41 +18,70 @@ import org.slf4j.LoggerFactory;
  * Sets up the Netty pipeline for the example server. Depending on the endpoint config, sets up the
  * pipeline for NPN or cleartext HTTP upgrade to HTTP/2.
  */
-public class Http2ServerInitializer extends ChannelInitializer<SocketChannel> {
+public class Http2ServerInitializer extends ChannelInitializer<Channel> {
 
     private static final Logger logger = LoggerFactory.getLogger(Http2ServerInitializer.class);
+    // Of the requests of the connections which stay on HTTP/1.1
+    private static final int MAX_HTTP_CONTENT_LENGTH = 16 * 1024;
 
-    private final SslContext sslCtx;
-    private final int maxHttpContentLength;
-    private final long sleepTime;
+    private final ServerSslContext sslCtx;
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy flushPolicy;
+    private final FixedResponses fixedResponses;
+    private final Http2Config http2Config;
+    private final ConnectionLimits connectionLimits;
+    private final AccessLog accessLog;
+    private final TrafficCapture trafficCapture;
     private final boolean h2AggregateContent;
+    private final boolean streamContent;
+    private final WebSocketEcho webSocketEcho;
+    private final ResponseCompression compression;
 
-    private static final UpgradeCodecFactory upgradeCodecFactory = protocol -> {
+    /**
+     * @param sslCtx         the TLS context, or {@code null} for a cleartext upgrade
+     * @param accessLog      the access log, or {@code null}
+     * @param trafficCapture the traffic capture, or {@code null}
+     * @param webSocketEcho  the WebSocket endpoint of the connections which stay on HTTP/1.1, or {@code null}
+     * @param compression    the response compression, or {@code null}
+     */
+    Http2ServerInitializer(ServerSslContext sslCtx, ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                           FixedResponses fixedResponses, Http2Config http2Config, ConnectionLimits connectionLimits,
+                           AccessLog accessLog, TrafficCapture trafficCapture, boolean h2AggregateContent,
+                           boolean streamContent, WebSocketEcho webSocketEcho, ResponseCompression compression) {
+        this.sslCtx = sslCtx;
+        this.responseDelay = responseDelay;
+        this.flushPolicy = flushPolicy;
+        this.fixedResponses = fixedResponses;
+        this.http2Config = http2Config;
+        this.connectionLimits = connectionLimits;
+        this.accessLog = accessLog;
+        this.trafficCapture = trafficCapture;
+        this.h2AggregateContent = h2AggregateContent;
+        this.streamContent = streamContent;
+        this.webSocketEcho = webSocketEcho;
+        this.compression = compression;
+    }
+
+    private UpgradeCodec newUpgradeCodec(CharSequence protocol) {
         if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
-            return new Http2ServerUpgradeCodec(
-                    Http2FrameCodecBuilder.forServer().build(), new EchoHttp2ServerHandler());
+            return new Http2ServerUpgradeCodec(http2Config.newFrameCodec(), Http2OrHttpHandler.newHttp2Handlers(
+                    responseDelay, flushPolicy, fixedResponses, http2Config, connectionLimits, accessLog,
+                    trafficCapture, h2AggregateContent, compression));
         } else {
             return null;
         }
-    };
-
-    Http2ServerInitializer(SslContext sslCtx, long sleepTime, boolean h2AggregateContent) {
-        this(sslCtx, sleepTime, h2AggregateContent, 16 * 1024);
-    }
-
-    private Http2ServerInitializer(SslContext sslCtx, long sleepTime, boolean h2AggregateContent,
-                                   int maxHttpContentLength) {
-        if (maxHttpContentLength < 0) {
-            throw new IllegalArgumentException("maxHttpContentLength (expected >= 0): " + maxHttpContentLength);
-        }
-        this.sslCtx = sslCtx;
-        this.maxHttpContentLength = maxHttpContentLength;
-        this.sleepTime = sleepTime;
-        this.h2AggregateContent = h2AggregateContent;
     }
 
     @Override
-    public void initChannel(SocketChannel ch) {
+    public void initChannel(Channel ch) {
+        if (!connectionLimits.admit(ch)) {
+            return;
+        }
+        FlushConsolidationHandler flushConsolidationHandler = flushPolicy.newConsolidationHandler();
+        if (flushConsolidationHandler != null) {
+            ch.pipeline().addLast(flushConsolidationHandler);
+        }
+        ch.pipeline().addLast(ConnectionMetricsHandler.INSTANCE);
         if (sslCtx != null) {
             configureSsl(ch);
         } else {
@@ -65,19 +92,22 @@ public class Http2ServerInitializer extends ChannelInitializer<SocketChannel> {
     /**
      * Configure the pipeline for TLS NPN negotiation to HTTP/2.
      */
-    private void configureSsl(SocketChannel ch) {
-        ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()), new Http2OrHttpHandler(sleepTime, h2AggregateContent));
+    private void configureSsl(Channel ch) {
+        ch.pipeline().addLast(sslCtx.newHandlers(ch.alloc()));
+        ch.pipeline().addLast(new Http2OrHttpHandler(responseDelay, flushPolicy, fixedResponses, http2Config,
+                connectionLimits, accessLog, trafficCapture, h2AggregateContent, streamContent, webSocketEcho,
+                compression));
     }
 
     /**
      * Configure the pipeline for a cleartext upgrade from HTTP to HTTP/2.0
      */
-    private void configureClearText(SocketChannel ch) {
+    private void configureClearText(Channel ch) {
         final ChannelPipeline p = ch.pipeline();
         final HttpServerCodec sourceCodec = new HttpServerCodec();
 
         p.addLast(sourceCodec);
-        p.addLast(new HttpServerUpgradeHandler(sourceCodec, upgradeCodecFactory, Integer.MAX_VALUE));
+        p.addLast(new HttpServerUpgradeHandler(sourceCodec, this::newUpgradeCodec, Integer.MAX_VALUE));
         p.addLast(new SimpleChannelInboundHandler<HttpMessage>() {
             @Override
             protected void channelRead0(ChannelHandlerContext ctx, HttpMessage msg) {
@@ -85,8 +115,32 @@ public class Http2ServerInitializer extends ChannelInitializer<SocketChannel> {
                 logger.debug("Directly talking: {} (no upgrade was attempted)", msg.protocolVersion());
                 ChannelPipeline pipeline = ctx.pipeline();
                 ChannelHandlerContext thisCtx = pipeline.context(this);
-                pipeline.addAfter(thisCtx.name(), null, new EchoHttpServerHandler(sleepTime, false));
-                pipeline.replace(this, null, new HttpObjectAggregator(maxHttpContentLength));
+                if (streamContent) {
+                    pipeline.addAfter(thisCtx.name(), null, new EchoHttpStreamingServerHandler(responseDelay,
+                            flushPolicy, fixedResponses));
+                } else {
+                    pipeline.addAfter(thisCtx.name(), null,
+                            new EchoHttpServerHandler(responseDelay, flushPolicy, fixedResponses));
+                }
+                if (compression != null) {
+                    pipeline.addAfter(thisCtx.name(), null, compression.newHttp1Handler());
+                }
+                if (!streamContent) {
+                    pipeline.addAfter(thisCtx.name(), null, new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH));
+                }
+                if (webSocketEcho != null) {
+                    ChannelHandler[] handlers = webSocketEcho.newHandlers(flushPolicy);
+                    for (int i = handlers.length - 1; i >= 0; i--) {
+                        pipeline.addAfter(thisCtx.name(), null, handlers[i]);
+                    }
+                }
+                if (trafficCapture != null) {
+                    pipeline.addAfter(thisCtx.name(), null, trafficCapture.newHandler());
+                }
+                if (accessLog != null) {
+                    pipeline.addAfter(thisCtx.name(), null, accessLog.newHandler());
+                }
+                pipeline.replace(this, null, connectionLimits.newBackpressureHandler());
                 ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
             }
         });
@@ -0,0 +1,52 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+/**
+ * Bytes of the DATA frames an echo handler consumed during a read. They are handed back to the flow controller of the
+ * {@link io.netty.handler.codec.http2.Http2FrameCodec} once per stream when the read completes, instead of once per
+ * frame. The flow controller then decides whether a WINDOW_UPDATE is due, see {@link Http2Config}.
+ */
+final class Http2WindowUpdates {
+
+    private final IntObjectMap<ConsumedBytes> consumed = new IntObjectHashMap<>();
+
+    void consumed(Http2FrameStream stream, int bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        ConsumedBytes streamBytes = consumed.get(stream.id());
+        if (streamBytes == null) {
+            consumed.put(stream.id(), new ConsumedBytes(stream, bytes));
+        } else {
+            streamBytes.bytes += bytes;
+        }
+    }
+
+    /**
+     * Writes the consumed bytes of every stream to the codec. The caller flushes.
+     */
+    void write(ChannelHandlerContext ctx) {
+        if (consumed.isEmpty()) {
+            return;
+        }
+        for (ConsumedBytes streamBytes : consumed.values()) {
+            ctx.write(new DefaultHttp2WindowUpdateFrame(streamBytes.bytes).stream(streamBytes.stream));
+        }
+        consumed.clear();
+    }
+
+    private static final class ConsumedBytes {
+        final Http2FrameStream stream;
+        int bytes;
+
+        ConsumedBytes(Http2FrameStream stream, int bytes) {
+            this.stream = stream;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+/**
+ * Sets up the Netty pipeline for the HTTP/1.1 echo server, with or without TLS.
+ */
+public class HttpServerInitializer extends ChannelInitializer<Channel> {
+
+    private static final int MAX_CONTENT_LENGTH = 1048576;
+
+    private final ServerSslContext sslCtx;
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy flushPolicy;
+    private final FixedResponses fixedResponses;
+    private final ConnectionLimits connectionLimits;
+    private final AccessLog accessLog;
+    private final TrafficCapture trafficCapture;
+    private final boolean streamContent;
+    private final boolean leanCodec;
+    private final WebSocketEcho webSocketEcho;
+    private final ResponseCompression compression;
+
+    /**
+     * @param sslCtx         the TLS context, or {@code null} for cleartext
+     * @param accessLog      the access log, or {@code null}
+     * @param trafficCapture the traffic capture, or {@code null}
+     * @param leanCodec      whether to decode the requests and encode the echo responses with the lean codec, see
+     *                       {@link LeanHttpRequestDecoder}. Not used when the content is streamed, with WebSocket or
+     *                       with compression
+     * @param webSocketEcho  the WebSocket endpoint, or {@code null}. Not used with fixed responses for all requests
+     * @param compression    the response compression, or {@code null}. Fixed responses for all requests are then
+     *                       encoded by the {@link HttpServerCodec} too
+     */
+    HttpServerInitializer(ServerSslContext sslCtx, ResponseDelay responseDelay, FlushPolicy flushPolicy,
+                          FixedResponses fixedResponses, ConnectionLimits connectionLimits, AccessLog accessLog,
+                          TrafficCapture trafficCapture, boolean streamContent, boolean leanCodec,
+                          WebSocketEcho webSocketEcho, ResponseCompression compression) {
+        this.sslCtx = sslCtx;
+        this.responseDelay = responseDelay;
+        this.flushPolicy = flushPolicy;
+        this.fixedResponses = fixedResponses;
+        this.connectionLimits = connectionLimits;
+        this.accessLog = accessLog;
+        this.trafficCapture = trafficCapture;
+        this.streamContent = streamContent;
+        this.leanCodec = leanCodec && !streamContent && webSocketEcho == null && compression == null;
+        this.webSocketEcho = webSocketEcho;
+        this.compression = compression;
+    }
+
+    @Override
+    public void initChannel(Channel ch) {
+        if (!connectionLimits.admit(ch)) {
+            return;
+        }
+        ChannelPipeline p = ch.pipeline();
+        FlushConsolidationHandler flushConsolidationHandler = flushPolicy.newConsolidationHandler();
+        if (flushConsolidationHandler != null) {
+            p.addLast(flushConsolidationHandler);
+        }
+        p.addLast(ConnectionMetricsHandler.INSTANCE);
+        if (sslCtx != null) {
+            p.addLast(sslCtx.newHandlers(ch.alloc()));
+        }
+        if (fixedResponses.isForAll() && compression == null) {
+            // The responses are pre-encoded, no encoder needed. The requests are answered right away, so only the
+            // writability limits reading
+            p.addLast(connectionLimits.newBackpressureHandler());
+            p.addLast(new HttpRequestDecoder());
+            if (accessLog != null) {
+                p.addLast(accessLog.newHandler());
+            }
+            if (trafficCapture != null) {
+                p.addLast(trafficCapture.newHandler());
+            }
+            p.addLast(new FixedHttpResponseHandler(fixedResponses, flushPolicy));
+            return;
+        }
+        if (leanCodec) {
+            // The responses are written as buffers, which are not counted as in flight, so only the writability
+            // limits reading
+            p.addLast(connectionLimits.newBackpressureHandler());
+            p.addLast(new LeanHttpRequestDecoder(MAX_CONTENT_LENGTH));
+            if (accessLog != null) {
+                p.addLast(accessLog.newHandler());
+            }
+            if (trafficCapture != null) {
+                p.addLast(trafficCapture.newHandler());
+            }
+            p.addLast(new LeanEchoHttpServerHandler(responseDelay, flushPolicy, fixedResponses));
+            return;
+        }
+        p.addLast(new HttpServerCodec());
+        p.addLast(connectionLimits.newBackpressureHandler());
+        if (accessLog != null) {
+            p.addLast(accessLog.newHandler());
+        }
+        if (trafficCapture != null) {
+            p.addLast(trafficCapture.newHandler());
+        }
+        if (webSocketEcho != null) {
+            p.addLast(webSocketEcho.newHandlers(flushPolicy));
+        }
+        if (streamContent) {
+            p.addLast(new HttpServerExpectContinueHandler());
+            if (compression != null) {
+                p.addLast(compression.newHttp1Handler());
+            }
+            p.addLast(new EchoHttpStreamingServerHandler(responseDelay, flushPolicy, fixedResponses));
+        } else {
+            p.addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+            if (compression != null) {
+                p.addLast(compression.newHttp1Handler());
+            }
+            p.addLast(new EchoHttpServerHandler(responseDelay, flushPolicy, fixedResponses));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Handler implementation for the http/1.1 echo server with the lean codec. It receives the {@link LeanHttpRequest}
+ * of the channel from the {@link LeanHttpRequestDecoder}, and answers it with the same response as the
+ * {@link EchoHttpServerHandler}, byte for byte, but encodes it itself: the constant parts of the head are
+ * pre-encoded, and small bodies are copied into the same buffer as the head, so that each response is a single
+ * buffer written to the socket.
+ * <p>
+ * Requests for a {@link FixedResponses fixed response} get its pre-encoded response, and requests for a
+ * {@link BulkPayload bulk payload} get it streamed from the payload file.
+ */
+public class LeanEchoHttpServerHandler extends ChannelInboundHandlerAdapter {
+
+    private static final byte[] STATUS_LINE_AND_OPERATION_ID = ascii("HTTP/1.1 200 OK\r\n" +
+            "syy-operation-id: getNettyEchoResponse\r\n");
+    private static final byte[] CONTENT_TYPE = ascii(HttpHeaderNames.CONTENT_TYPE + ": ");
+    private static final byte[] DEFAULT_CONTENT_TYPE = ascii(HttpHeaderNames.CONTENT_TYPE + ": application/json\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii(HttpHeaderNames.CONTENT_LENGTH + ": ");
+    private static final byte[] KEEP_ALIVE_END_OF_HEAD = ascii("\r\nconnection: keep-alive\r\n\r\n");
+    private static final byte[] CLOSE_END_OF_HEAD = ascii("\r\nconnection: close\r\n\r\n");
+    private static final int MAX_HEAD_SIZE_WITHOUT_CONTENT_TYPE = STATUS_LINE_AND_OPERATION_ID.length +
+            DEFAULT_CONTENT_TYPE.length + CONTENT_LENGTH.length + 10 + KEEP_ALIVE_END_OF_HEAD.length;
+    // Larger bodies are written as a separate component of the response
+    private static final int MAX_COPIED_BODY_SIZE = 2048;
+
+    private final ResponseDelay responseDelay;
+    private final FlushPolicy.Batcher flushBatcher;
+    private final FixedResponses fixedResponses;
+
+    // HTTP/1.1 responses must be written in request order, so a deferred response holds back the ones after it
+    private final Queue<PendingResponse> pendingResponses = new ArrayDeque<>();
+
+    LeanEchoHttpServerHandler(ResponseDelay responseDelay, FlushPolicy flushPolicy, FixedResponses fixedResponses) {
+        this.responseDelay = responseDelay;
+        this.flushBatcher = flushPolicy.newBatcher();
+        this.fixedResponses = fixedResponses;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof LeanHttpRequest)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        LeanHttpRequest request = (LeanHttpRequest) msg;
+        long startNanos = System.nanoTime();
+        RuntimeConfig config = RuntimeConfig.current();
+        long delayNanos = responseDelay.nextDelayNanos(config, request.header(ResponseDelay.HEADER_NAME));
+        FixedResponses.Response fixed = config.select(fixedResponses, request.uri());
+        long bulkSize = fixed == null ? fixedResponses.bulkPayload().select(request.uri()) : -1;
+        boolean keepAlive = config.isKeepAlive(request.isKeepAlive());
+        boolean head = HttpMethod.HEAD.equals(request.method());
+        // The request is reused for the next one, so the response is encoded right away even when it is deferred
+        ByteBuf response;
+        if (bulkSize >= 0) {
+            // Written once it is its turn
+            request.content().release();
+            response = null;
+        } else if (fixed != null) {
+            request.content().release();
+            response = fixed.encodedHttp1(keepAlive, head);
+        } else {
+            response = encodeResponse(ctx, request, keepAlive, head);
+        }
+        boolean deferred = responseDelay.isDeferred(delayNanos);
+        if (deferred || !pendingResponses.isEmpty()) {
+            PendingResponse pending = new PendingResponse(response, bulkSize, startNanos, keepAlive);
+            pendingResponses.add(pending);
+            if (deferred) {
+                responseDelay.schedule(ctx, startNanos + delayNanos, () -> {
+                    pending.ready = true;
+                    writePendingResponses(ctx);
+                });
+            } else {
+                pending.ready = true;
+            }
+        } else {
+            writeResponse(ctx, response, bulkSize, startNanos, keepAlive);
+        }
+    }
+
+    /**
+     * Encodes the echo response to a request, consuming its content.
+     */
+    static ByteBuf encodeResponse(ChannelHandlerContext ctx, LeanHttpRequest request, boolean keepAlive,
+                                  boolean head) {
+        ByteBuf body = request.content();
+        // Print the request headers to the response body as a json if the request body is empty
+        if (!body.isReadable()) {
+            body.release();
+            body = HeadersJsonEncoder.encode(ctx.alloc(), request, EchoHttpServerHandler.remoteHost(ctx));
+        }
+        int bodySize = body.readableBytes();
+        boolean copyBody = !head && bodySize <= MAX_COPIED_BODY_SIZE;
+        int contentType = request.indexOfHeader(HttpHeaderNames.CONTENT_TYPE);
+        int headSize = MAX_HEAD_SIZE_WITHOUT_CONTENT_TYPE + (contentType >= 0 ? 128 : 0);
+        ByteBuf buf = ctx.alloc().buffer(headSize + (copyBody ? bodySize : 0));
+        buf.writeBytes(STATUS_LINE_AND_OPERATION_ID);
+        if (contentType >= 0) {
+            buf.writeBytes(CONTENT_TYPE);
+            request.writeHeaderValue(contentType, buf);
+            buf.writeByte('\r').writeByte('\n');
+        } else {
+            buf.writeBytes(DEFAULT_CONTENT_TYPE);
+        }
+        buf.writeBytes(CONTENT_LENGTH);
+        writeDecimal(buf, bodySize);
+        buf.writeBytes(keepAlive ? KEEP_ALIVE_END_OF_HEAD : CLOSE_END_OF_HEAD);
+        if (head) {
+            // Like the HttpServerCodec, which does not write bodies in responses to HEAD requests
+            body.release();
+            return buf;
+        }
+        if (copyBody) {
+            buf.writeBytes(body);
+            body.release();
+            return buf;
+        }
+        return ctx.alloc().compositeBuffer(2).addComponents(true, buf, body);
+    }
+
+    private static void writeDecimal(ByteBuf buf, int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int index = buf.writerIndex() + digits;
+        buf.ensureWritable(digits);
+        for (int v = value, i = index - 1; i >= buf.writerIndex(); v /= 10, i--) {
+            buf.setByte(i, '0' + v % 10);
+        }
+        buf.writerIndex(index);
+    }
+
+    /**
+     * Writes a response, or the bulk payload of the given size when there is none. The responses to the requests of
+     * a read are flushed together in {@link #channelReadComplete}, or earlier when the {@link FlushPolicy}
+     * thresholds are reached. Bulk payloads are flushed right away.
+     */
+    private void writeResponse(ChannelHandlerContext ctx, ByteBuf response, long bulkSize, long startNanos,
+                               boolean keepAlive) {
+        ChannelFuture f = response != null ?
+                flushBatcher.write(ctx, response, response.readableBytes(), true) :
+                fixedResponses.bulkPayload().writeEncodedHttp1(ctx, bulkSize, keepAlive);
+        f.addListener(ServerMetrics.processingTimeListener(startNanos));
+        if (!keepAlive) {
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Writes the pending responses which are ready, up to the first one which is not.
+     */
+    private void writePendingResponses(ChannelHandlerContext ctx) {
+        PendingResponse pending;
+        while ((pending = pendingResponses.peek()) != null && pending.ready) {
+            pendingResponses.remove();
+            writeResponse(ctx, pending.response, pending.bulkSize, pending.startNanos, pending.keepAlive);
+        }
+        flushBatcher.flush(ctx);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushBatcher.flush(ctx);
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PendingResponse pending;
+        while ((pending = pendingResponses.poll()) != null) {
+            if (pending.response != null) {
+                pending.response.release();
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(CharsetUtil.US_ASCII);
+    }
+
+    private static final class PendingResponse {
+        // Null for a bulk payload
+        final ByteBuf response;
+        final long bulkSize;
+        final long startNanos;
+        final boolean keepAlive;
+        boolean ready;
+
+        PendingResponse(ByteBuf response, long bulkSize, long startNanos, boolean keepAlive) {
+            this.response = response;
+            this.bulkSize = bulkSize;
+            this.startNanos = startNanos;
+            this.keepAlive = keepAlive;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AsciiString;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An HTTP/1.1 request read by the {@link LeanHttpRequestDecoder}. There is a single instance per channel, reused for
+ * every request: it is only valid while the pipeline handles it, and handlers copy what they need later. The request
+ * head is copied once into an array of the instance, and the method, URI and headers are only offsets into it, turned
+ * into {@link AsciiString} slices of the array when asked for. Nothing is validated beyond what is needed to find the
+ * body.
+ * <p>
+ * The content is the aggregated body. Its ownership passes to the handler which consumes the request.
+ */
+final class LeanHttpRequest {
+
+    private static final HttpMethod[] METHODS = {HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT, HttpMethod.HEAD,
+            HttpMethod.DELETE, HttpMethod.PATCH, HttpMethod.OPTIONS, HttpMethod.TRACE, HttpMethod.CONNECT};
+    private static final AsciiString HTTP_1_0 = AsciiString.cached("HTTP/1.0");
+    private static final AsciiString HTTP_1_1 = AsciiString.cached("HTTP/1.1");
+
+    // The request head, from the method to the empty line
+    private byte[] bytes = new byte[1024];
+    private int methodEnd;
+    private int uriStart;
+    private int uriEnd;
+    // Start and end of the name, then of the value, of every header
+    private int[] headers = new int[4 * 32];
+    private int headerCount;
+    private HttpMethod method;
+    private AsciiString uri;
+    private boolean http10;
+    private boolean keepAlive;
+    private boolean expectContinue;
+    private boolean chunked;
+    private long contentLength;
+    private ByteBuf content;
+
+    /**
+     * Parses a request head, which ends with an empty line.
+     *
+     * @return whether it is a request head, with a valid content length if any
+     */
+    boolean parse(ByteBuf in, int index, int length) {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length << 1)];
+        }
+        in.getBytes(index, bytes, 0, length);
+        method = null;
+        uri = null;
+        headerCount = 0;
+        expectContinue = false;
+        chunked = false;
+        contentLength = 0;
+        content = null;
+
+        int lineEnd = lineEnd(0, length);
+        methodEnd = indexOf(0, lineEnd, ' ');
+        uriStart = methodEnd + 1;
+        uriEnd = indexOf(uriStart, lineEnd, ' ');
+        if (methodEnd <= 0 || uriEnd <= uriStart) {
+            return false;
+        }
+        if (regionEquals(uriEnd + 1, lineEnd, HTTP_1_1)) {
+            http10 = false;
+        } else if (regionEquals(uriEnd + 1, lineEnd, HTTP_1_0)) {
+            http10 = true;
+        } else {
+            return false;
+        }
+        boolean connectionClose = false;
+        boolean connectionKeepAlive = false;
+        boolean hasContentLength = false;
+        for (int lineStart = next(lineEnd, length); ; lineStart = next(lineEnd, length)) {
+            lineEnd = lineEnd(lineStart, length);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            int colon = indexOf(lineStart, lineEnd, ':');
+            // Folded lines and empty names are not supported
+            if (colon <= lineStart || isWhitespace(bytes[lineStart])) {
+                return false;
+            }
+            int valueStart = colon + 1;
+            while (valueStart < lineEnd && isWhitespace(bytes[valueStart])) {
+                valueStart++;
+            }
+            int valueEnd = lineEnd;
+            while (valueEnd > valueStart && isWhitespace(bytes[valueEnd - 1])) {
+                valueEnd--;
+            }
+            addHeader(lineStart, colon, valueStart, valueEnd);
+            if (regionEqualsIgnoreCase(lineStart, colon, HttpHeaderNames.CONTENT_LENGTH)) {
+                long value = parseContentLength(valueStart, valueEnd);
+                if (value < 0 || hasContentLength && value != contentLength) {
+                    return false;
+                }
+                hasContentLength = true;
+                contentLength = value;
+            } else if (regionEqualsIgnoreCase(lineStart, colon, HttpHeaderNames.TRANSFER_ENCODING)) {
+                chunked = endsWithIgnoreCase(valueStart, valueEnd, HttpHeaderValues.CHUNKED);
+            } else if (regionEqualsIgnoreCase(lineStart, colon, HttpHeaderNames.CONNECTION)) {
+                connectionClose |= containsToken(valueStart, valueEnd, HttpHeaderValues.CLOSE);
+                connectionKeepAlive |= containsToken(valueStart, valueEnd, HttpHeaderValues.KEEP_ALIVE);
+            } else if (regionEqualsIgnoreCase(lineStart, colon, HttpHeaderNames.EXPECT)) {
+                expectContinue = regionEqualsIgnoreCase(valueStart, valueEnd, HttpHeaderValues.CONTINUE);
+            }
+        }
+        if (chunked) {
+            // The transfer coding wins, RFC 7230 section 3.3.3
+            contentLength = 0;
+        }
+        keepAlive = http10 ? connectionKeepAlive && !connectionClose : !connectionClose;
+        return true;
+    }
+
+    void content(ByteBuf content) {
+        this.content = content;
+    }
+
+    /**
+     * Returns the body, which the consumer of the request must release. Empty when there is no body.
+     */
+    ByteBuf content() {
+        return content;
+    }
+
+    HttpMethod method() {
+        if (method == null) {
+            for (HttpMethod known : METHODS) {
+                if (regionEquals(0, methodEnd, known.asciiName())) {
+                    method = known;
+                    return method;
+                }
+            }
+            method = HttpMethod.valueOf(slice(0, methodEnd).toString());
+        }
+        return method;
+    }
+
+    AsciiString uri() {
+        if (uri == null) {
+            uri = slice(uriStart, uriEnd);
+        }
+        return uri;
+    }
+
+    boolean isHttp10() {
+        return http10;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean isExpectContinue() {
+        return expectContinue;
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    long contentLength() {
+        return contentLength;
+    }
+
+    int headerCount() {
+        return headerCount;
+    }
+
+    AsciiString headerName(int i) {
+        return slice(headers[4 * i], headers[4 * i + 1]);
+    }
+
+    AsciiString headerValue(int i) {
+        return slice(headers[4 * i + 2], headers[4 * i + 3]);
+    }
+
+    /**
+     * Returns the index of the first header with the given name, ignoring case, or -1.
+     */
+    int indexOfHeader(AsciiString name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (regionEqualsIgnoreCase(headers[4 * i], headers[4 * i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the first header with the given name, ignoring case, or {@code null}.
+     */
+    AsciiString header(AsciiString name) {
+        int i = indexOfHeader(name);
+        return i >= 0 ? headerValue(i) : null;
+    }
+
+    /**
+     * Writes the value of a header to a buffer, without making a slice of it first.
+     */
+    void writeHeaderValue(int i, ByteBuf out) {
+        out.writeBytes(bytes, headers[4 * i + 2], headers[4 * i + 3] - headers[4 * i + 2]);
+    }
+
+    /**
+     * Returns the headers in the order they were received, as slices made while iterating, and changed the way the
+     * {@link io.netty.handler.codec.http.HttpObjectAggregator} changes them: without the chunked transfer encoding,
+     * and with a content length when there was none.
+     */
+    Iterator<Map.Entry<CharSequence, CharSequence>> headers() {
+        return new Iterator<Map.Entry<CharSequence, CharSequence>>() {
+            private int next = skip(0);
+            private boolean contentLengthAdded = indexOfHeader(HttpHeaderNames.CONTENT_LENGTH) >= 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < headerCount || !contentLengthAdded;
+            }
+
+            @Override
+            public Map.Entry<CharSequence, CharSequence> next() {
+                if (next < headerCount) {
+                    int i = next;
+                    next = skip(next + 1);
+                    return new AbstractMap.SimpleImmutableEntry<>(headerName(i), headerValue(i));
+                }
+                if (contentLengthAdded) {
+                    throw new NoSuchElementException();
+                }
+                contentLengthAdded = true;
+                return new AbstractMap.SimpleImmutableEntry<>(HttpHeaderNames.CONTENT_LENGTH,
+                        Integer.toString(content.readableBytes()));
+            }
+
+            private int skip(int i) {
+                while (chunked && i < headerCount &&
+                        regionEqualsIgnoreCase(headers[4 * i], headers[4 * i + 1], HttpHeaderNames.TRANSFER_ENCODING)) {
+                    i++;
+                }
+                return i;
+            }
+        };
+    }
+
+    private AsciiString slice(int start, int end) {
+        return new AsciiString(bytes, start, end - start, false);
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headers.length < 4 * (headerCount + 1)) {
+            headers = Arrays.copyOf(headers, headers.length << 1);
+        }
+        int i = 4 * headerCount++;
+        headers[i] = nameStart;
+        headers[i + 1] = nameEnd;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+    }
+
+    /**
+     * Returns the end of the line starting at the index, before its CRLF or LF.
+     */
+    private int lineEnd(int start, int length) {
+        int lf = indexOf(start, length, '\n');
+        return lf > start && bytes[lf - 1] == '\r' ? lf - 1 : lf;
+    }
+
+    /**
+     * Returns the start of the line after the one ending at the index.
+     */
+    private int next(int lineEnd, int length) {
+        return lineEnd < length && bytes[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private int indexOf(int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private long parseContentLength(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private boolean regionEquals(int start, int end, AsciiString s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (bytes[start + i] != s.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int end, AsciiString s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (toLowerCase(bytes[start + i]) != toLowerCase(s.byteAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWithIgnoreCase(int start, int end, AsciiString s) {
+        return end - start >= s.length() && regionEqualsIgnoreCase(end - s.length(), end, s);
+    }
+
+    /**
+     * Whether a comma separated list of tokens contains the given one, ignoring case.
+     */
+    private boolean containsToken(int start, int end, AsciiString token) {
+        while (start < end) {
+            int tokenEnd = indexOf(start, end, ',');
+            int s = start;
+            int e = tokenEnd;
+            while (s < e && isWhitespace(bytes[s])) {
+                s++;
+            }
+            while (e > s && isWhitespace(bytes[e - 1])) {
+                e--;
+            }
+            if (regionEqualsIgnoreCase(s, e, token)) {
+                return true;
+            }
+            start = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+}
@@ -0,0 +1,264 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * Decodes HTTP/1.1 requests into the {@link LeanHttpRequest} of the channel, with their bodies aggregated, taking the
+ * place of the {@link io.netty.handler.codec.http.HttpServerCodec} and the
+ * {@link io.netty.handler.codec.http.HttpObjectAggregator}. Headers are neither validated nor turned into objects,
+ * and bodies are retained slices of the input rather than copies, also when they are chunked.
+ * <p>
+ * Requests which cannot be parsed, or whose head or body is too large, are answered with a pre-encoded error
+ * response and the connection is closed. {@code Expect: 100-continue} is answered with a pre-encoded
+ * {@code 100 Continue}.
+ */
+final class LeanHttpRequestDecoder extends ByteToMessageDecoder {
+
+    // The default limits of the HttpServerCodec, for the request line and the headers
+    private static final int MAX_HEAD_SIZE = 4096 + 8192;
+    private static final int MAX_CHUNK_SIZE_LINE = 1024;
+    // Like the HttpObjectAggregator, chunks are copied together beyond that
+    private static final int MAX_CHUNK_COMPONENTS = 1024;
+
+    private static final ByteBuf BAD_REQUEST = errorResponse("400 Bad Request");
+    private static final ByteBuf TOO_LARGE = errorResponse("413 Request Entity Too Large");
+    private static final ByteBuf HEADERS_TOO_LARGE = errorResponse("431 Request Header Fields Too Large");
+
+    private enum State {
+        HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, FAILED
+    }
+
+    private final LeanHttpRequest request = new LeanHttpRequest();
+    private final int maxContentLength;
+
+    private State state = State.HEAD;
+    // Bytes of the request head searched for its end so far
+    private int scanned;
+    // Bytes of the body or of the current chunk left to read
+    private long remaining;
+    // Chunks read so far
+    private CompositeByteBuf chunks;
+
+    LeanHttpRequestDecoder(int maxContentLength) {
+        this.maxContentLength = maxContentLength;
+    }
+
+    /**
+     * Handles one step of a request at a time, so that the request decoded is handled before the next one reuses it.
+     */
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        switch (state) {
+            case HEAD:
+                decodeHead(ctx, in, out);
+                return;
+            case BODY:
+                if (in.readableBytes() >= remaining) {
+                    request.content(in.readRetainedSlice((int) remaining));
+                    complete(out);
+                }
+                return;
+            case CHUNK_SIZE:
+                decodeChunkSize(ctx, in);
+                return;
+            case CHUNK_DATA:
+                int length = (int) Math.min(remaining, in.readableBytes());
+                chunks.addComponent(true, in.readRetainedSlice(length));
+                remaining -= length;
+                if (remaining == 0) {
+                    state = State.CHUNK_END;
+                }
+                return;
+            case CHUNK_END:
+                // The line break after the data
+                int lineLength = lineLength(in, in.readerIndex(), 2);
+                if (lineLength == 0) {
+                    skipLine(in);
+                    state = State.CHUNK_SIZE;
+                } else if (lineLength != -1) {
+                    fail(ctx, in, BAD_REQUEST);
+                }
+                return;
+            case TRAILERS:
+                // Trailers are discarded, up to the empty line ending them
+                int lf = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+                if (lf < 0) {
+                    if (in.readableBytes() > MAX_HEAD_SIZE) {
+                        fail(ctx, in, HEADERS_TOO_LARGE);
+                    }
+                    return;
+                }
+                boolean empty = lf == in.readerIndex() || lf == in.readerIndex() + 1 && in.getByte(lf - 1) == '\r';
+                in.readerIndex(lf + 1);
+                if (empty) {
+                    request.content(chunks);
+                    chunks = null;
+                    complete(out);
+                }
+                return;
+            default:
+                in.skipBytes(in.readableBytes());
+        }
+    }
+
+    private void decodeHead(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (scanned == 0) {
+            // Empty lines before a request are ignored, RFC 7230 section 3.5
+            while (in.isReadable() && (in.getByte(in.readerIndex()) == '\r' ||
+                    in.getByte(in.readerIndex()) == '\n')) {
+                in.skipBytes(1);
+            }
+        }
+        int headLength = headLength(in);
+        if (headLength < 0 ? in.readableBytes() > MAX_HEAD_SIZE : headLength > MAX_HEAD_SIZE) {
+            fail(ctx, in, HEADERS_TOO_LARGE);
+            return;
+        }
+        if (headLength < 0) {
+            return;
+        }
+        scanned = 0;
+        if (!request.parse(in, in.readerIndex(), headLength)) {
+            fail(ctx, in, BAD_REQUEST);
+            return;
+        }
+        in.skipBytes(headLength);
+        if (request.contentLength() > maxContentLength) {
+            fail(ctx, in, TOO_LARGE);
+            return;
+        }
+        if (request.isExpectContinue() && (request.isChunked() || request.contentLength() > 0)) {
+            ctx.writeAndFlush(FixedResponses.Response.encodedContinue());
+        }
+        if (request.isChunked()) {
+            chunks = ctx.alloc().compositeBuffer(MAX_CHUNK_COMPONENTS);
+            state = State.CHUNK_SIZE;
+        } else if (request.contentLength() > 0) {
+            remaining = request.contentLength();
+            state = State.BODY;
+        } else {
+            request.content(Unpooled.EMPTY_BUFFER);
+            complete(out);
+        }
+    }
+
+    private void decodeChunkSize(ChannelHandlerContext ctx, ByteBuf in) {
+        int lineLength = lineLength(in, in.readerIndex(), MAX_CHUNK_SIZE_LINE);
+        if (lineLength < 0) {
+            if (lineLength == -2) {
+                fail(ctx, in, BAD_REQUEST);
+            }
+            return;
+        }
+        long size = 0;
+        int digits = 0;
+        for (int i = in.readerIndex(); i < in.readerIndex() + lineLength; i++, digits++) {
+            int digit = Character.digit((char) in.getByte(i), 16);
+            if (digit < 0) {
+                // Chunk extensions are ignored
+                break;
+            }
+            size = size << 4 | digit;
+            if (size > maxContentLength) {
+                fail(ctx, in, TOO_LARGE);
+                return;
+            }
+        }
+        if (digits == 0) {
+            fail(ctx, in, BAD_REQUEST);
+            return;
+        }
+        skipLine(in);
+        if (size == 0) {
+            state = State.TRAILERS;
+        } else if (chunks.readableBytes() + size > maxContentLength) {
+            fail(ctx, in, TOO_LARGE);
+        } else {
+            remaining = size;
+            state = State.CHUNK_DATA;
+        }
+    }
+
+    private void complete(List<Object> out) {
+        state = State.HEAD;
+        out.add(request);
+    }
+
+    /**
+     * Returns the length of the request head up to and including the empty line ending it, or -1 when it has not
+     * been read completely. The bytes searched are remembered, so that they are not searched again on the next read.
+     */
+    private int headLength(ByteBuf in) {
+        int start = in.readerIndex();
+        int end = in.writerIndex();
+        int index = start + scanned;
+        while (true) {
+            int lf = in.indexOf(index, end, (byte) '\n');
+            if (lf < 0) {
+                scanned = end - start;
+                return -1;
+            }
+            if (lf + 1 == end || lf + 2 == end && in.getByte(lf + 1) == '\r') {
+                // Search from this line feed again once more has been read
+                scanned = lf - start;
+                return -1;
+            }
+            byte next = in.getByte(lf + 1);
+            if (next == '\n') {
+                return lf + 2 - start;
+            }
+            if (next == '\r' && in.getByte(lf + 2) == '\n') {
+                return lf + 3 - start;
+            }
+            index = lf + 1;
+        }
+    }
+
+    /**
+     * Returns the length of the line at the index, without its CRLF or LF, -1 when it is not complete yet, or -2 when
+     * it is longer than the limit.
+     */
+    private static int lineLength(ByteBuf in, int index, int maxLength) {
+        int lf = in.indexOf(index, Math.min(in.writerIndex(), index + maxLength + 1), (byte) '\n');
+        if (lf < 0) {
+            return in.writerIndex() - index > maxLength ? -2 : -1;
+        }
+        return lf > index && in.getByte(lf - 1) == '\r' ? lf - 1 - index : lf - index;
+    }
+
+    private static void skipLine(ByteBuf in) {
+        in.readerIndex(in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n') + 1);
+    }
+
+    private void fail(ChannelHandlerContext ctx, ByteBuf in, ByteBuf response) {
+        state = State.FAILED;
+        in.skipBytes(in.readableBytes());
+        releaseChunks();
+        ctx.writeAndFlush(response.duplicate()).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void releaseChunks() {
+        if (chunks != null) {
+            chunks.release();
+            chunks = null;
+        }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        releaseChunks();
+    }
+
+    private static ByteBuf errorResponse(String status) {
+        return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer("HTTP/1.1 " + status + "\r\n" +
+                "content-length: 0\r\nconnection: close\r\n\r\n", CharsetUtil.US_ASCII).asReadOnly());
+    }
+}
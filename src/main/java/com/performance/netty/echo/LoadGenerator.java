@@ -0,0 +1,207 @@
+package com.performance.netty.echo;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpClientUpgradeHandler;
+import io.netty.handler.codec.http2.Http2ClientUpgradeCodec;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.NettyRuntime;
+import org.HdrHistogram.Histogram;
+
+import javax.net.ssl.SSLException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the echo server. Started with {@code EchoHttpServer client [options]}.
+ * <p>
+ * With a {@code --rate} requests are sent on a fixed schedule (open loop) and latency is measured from the time
+ * each request was due, see {@link LoadStatistics}. Without it, every connection keeps {@code --pipeline} requests
+ * or {@code --streams} streams in flight (closed loop), which measures throughput rather than latency.
+ */
+public final class LoadGenerator {
+
+    private static final PrintStream consoleOut = System.out;
+
+    private static final PrintStream consoleErr = System.err;
+
+    @Parameter(names = "--url", description = "URL to send requests to, http or https")
+    private String url = "http://localhost:8688/";
+
+    @Parameter(names = "--rate", description = "Total requests per second over all connections. " +
+            "0 runs a closed loop as fast as the server answers")
+    private double rate = 0;
+
+    @Parameter(names = "--connections", description = "Number of connections")
+    private int connections = 16;
+
+    @Parameter(names = "--duration", description = "Test duration in seconds")
+    private int duration = 30;
+
+    @Parameter(names = "--body-size", description = "Request body size in bytes. 0 sends GET requests")
+    private int bodySize = 0;
+
+    @Parameter(names = "--content-type", description = "Content type of the request body")
+    private String contentType = "application/octet-stream";
+
+    @Parameter(names = "--http2", description = "Use HTTP/2 instead of HTTP/1.1. Cleartext connections " +
+            "are upgraded with h2c")
+    private boolean http2 = false;
+
+    @Parameter(names = "--streams", description = "Maximum concurrent HTTP/2 streams per connection")
+    private int streams = 100;
+
+    @Parameter(names = "--pipeline", description = "HTTP/1.1 pipelining depth per connection")
+    private int pipeline = 1;
+
+    @Parameter(names = "--threads", description = "Event loop threads")
+    private int threads = NettyRuntime.availableProcessors();
+
+    @Parameter(names = "--transport", description = "Socket transport: nio, epoll, io_uring or auto")
+    private Transport transport = Transport.AUTO;
+
+    @Parameter(names = {"-h", "--help"}, description = "Display Help", help = true)
+    private boolean help = false;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator loadGenerator = new LoadGenerator();
+        final JCommander jcmdr = new JCommander(loadGenerator);
+        jcmdr.setProgramName(EchoHttpServer.class.getSimpleName() + " client");
+        try {
+            jcmdr.parse(args);
+        } catch (ParameterException ex) {
+            consoleErr.println(ex.getMessage());
+            return;
+        }
+
+        if (loadGenerator.help) {
+            jcmdr.usage();
+            return;
+        }
+
+        loadGenerator.run();
+    }
+
+    private void run() throws SSLException, InterruptedException {
+        URI uri = URI.create(url);
+        boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = uri.getPort() > 0 ? uri.getPort() : ssl ? 443 : 80;
+        final SslContext sslCtx;
+        if (ssl) {
+            sslCtx = http2 ? SslContexts.configureHttp2(SslContexts.forClient()).build() :
+                    SslContexts.forClient().build();
+        } else {
+            sslCtx = null;
+        }
+        LoadWorkload workload = new LoadWorkload(uri, bodySize, contentType);
+        LoadStatistics statistics = new LoadStatistics();
+        double connectionRate = rate / connections;
+        long durationNanos = TimeUnit.SECONDS.toNanos(duration);
+        Transport activeTransport = transport.resolve();
+
+        consoleOut.printf(Locale.ROOT, "Load test of %s for %ds. Protocol: %s, Connections: %d, Rate: %s, " +
+                        "Transport: %s%n", uri, duration, http2 ? "HTTP/2" : "HTTP/1.1", connections,
+                rate > 0 ? rate + " req/s" : "closed loop", activeTransport);
+
+        EventLoopGroup group = activeTransport.newEventLoopGroup(threads);
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(activeTransport.socketChannelClass())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ChannelPipeline p = ch.pipeline();
+                            if (sslCtx != null) {
+                                p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
+                            }
+                            if (http2) {
+                                Http2LoadHandler loadHandler = new Http2LoadHandler(workload, statistics,
+                                        connectionRate, streams, durationNanos, sslCtx != null);
+                                if (sslCtx != null) {
+                                    p.addLast(loadHandler.connectionHandler());
+                                } else {
+                                    HttpClientCodec sourceCodec = new HttpClientCodec();
+                                    p.addLast(sourceCodec, new HttpClientUpgradeHandler(sourceCodec,
+                                            new Http2ClientUpgradeCodec(loadHandler.connectionHandler()),
+                                            64 * 1024));
+                                }
+                                p.addLast(loadHandler);
+                            } else {
+                                p.addLast(new HttpClientCodec(), new Http1LoadHandler(workload, statistics,
+                                        connectionRate, pipeline, durationNanos, sslCtx != null));
+                            }
+                        }
+                    });
+
+            List<ChannelFuture> closeFutures = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                ChannelFuture connectFuture = b.connect(host, port).await();
+                if (!connectFuture.isSuccess()) {
+                    consoleErr.println("Connection failed: " + connectFuture.cause());
+                    statistics.recordConnectionFailure();
+                    continue;
+                }
+                closeFutures.add(connectFuture.channel().closeFuture());
+            }
+
+            // Report every second until all connections are done, and give up on responses a while after the end
+            long startNanos = System.nanoTime();
+            long deadlineNanos = startNanos + durationNanos + TimeUnit.SECONDS.toNanos(10);
+            for (ChannelFuture closeFuture : closeFutures) {
+                while (!closeFuture.await(1, TimeUnit.SECONDS)) {
+                    reportInterval(statistics, startNanos);
+                    if (System.nanoTime() > deadlineNanos) {
+                        closeFuture.channel().close();
+                    }
+                }
+            }
+            reportInterval(statistics, startNanos);
+            reportTotal(statistics, startNanos);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    static void reportInterval(LoadStatistics statistics, long startNanos) {
+        Histogram interval = statistics.nextInterval();
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+        double intervalSeconds = Math.max(interval.getEndTimeStamp() - interval.getStartTimeStamp(), 1) / 1000.0;
+        consoleOut.printf(Locale.ROOT, "[%4ds] requests: %8d, req/s: %10.1f, p50: %8.3fms, p99: %8.3fms, " +
+                        "max: %8.3fms, errors: %d%n", seconds, interval.getTotalCount(),
+                interval.getTotalCount() / intervalSeconds, interval.getValueAtPercentile(50) / 1000.0,
+                interval.getValueAtPercentile(99) / 1000.0, interval.getMaxValue() / 1000.0, statistics.errors());
+    }
+
+    static void reportTotal(LoadStatistics statistics, long startNanos) {
+        Histogram total = statistics.total();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        consoleOut.println();
+        consoleOut.println("Latency distribution in milliseconds, corrected for coordinated omission:");
+        total.outputPercentileDistribution(consoleOut, 1000.0);
+        consoleOut.println();
+        consoleOut.printf(Locale.ROOT, "Requests: %d, Errors: %d, Connection Failures: %d%n", total.getTotalCount(),
+                statistics.errors(), statistics.connectionFailures());
+        consoleOut.printf(Locale.ROOT, "Throughput: %.1f req/s, %.2f MB/s received%n", total.getTotalCount() / seconds,
+                statistics.bytesReceived() / seconds / (1024 * 1024));
+        consoleOut.printf(Locale.ROOT, "Latency: mean %.3fms, p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms%n",
+                total.getMean() / 1000.0, total.getValueAtPercentile(50) / 1000.0,
+                total.getValueAtPercentile(99) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                total.getMaxValue() / 1000.0);
+    }
+}
@@ -0,0 +1,196 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the requests of one load generator connection. Runs entirely on the connection's event loop.
+ * <p>
+ * In open loop mode requests are due at a constant rate, whatever the server does. Due requests wait in a queue
+ * while the connection has no capacity (no free pipeline slot or stream), and their latency still counts from the
+ * time they were due. In closed loop mode a new request is sent as soon as a response completes.
+ */
+abstract class LoadHandler extends ChannelInboundHandlerAdapter {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    protected final LoadWorkload workload;
+    protected final LoadStatistics statistics;
+    private final double requestsPerNano;
+    private final int maxInFlight;
+    private final long durationNanos;
+
+    private final LongQueue due = new LongQueue();
+    private ChannelHandlerContext ctx;
+    private ScheduledFuture<?> ticker;
+    private long startNanos;
+    private long endNanos;
+    private long scheduled;
+    private int inFlight;
+    private boolean started;
+
+    /**
+     * @param requestsPerSecond request rate of this connection, or 0 for closed loop mode
+     * @param maxInFlight       maximum number of requests in flight on this connection
+     */
+    LoadHandler(LoadWorkload workload, LoadStatistics statistics, double requestsPerSecond, int maxInFlight,
+                long durationNanos) {
+        this.workload = workload;
+        this.statistics = statistics;
+        this.requestsPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.maxInFlight = maxInFlight;
+        this.durationNanos = durationNanos;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Starts sending requests, once the connection is ready for them.
+     */
+    protected final void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        startNanos = System.nanoTime();
+        endNanos = startNanos + durationNanos;
+        if (requestsPerNano > 0) {
+            ticker = ctx.executor().scheduleAtFixedRate(this::tick, 0, TICK_NANOS, TimeUnit.NANOSECONDS);
+        } else {
+            for (int i = 0; i < maxInFlight; i++) {
+                due.add(startNanos);
+            }
+            sendDue();
+        }
+    }
+
+    /**
+     * Queues the requests which became due since the last tick.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        long until = Math.min(now, endNanos);
+        long dueCount = (long) ((until - startNanos) * requestsPerNano);
+        for (; scheduled < dueCount; scheduled++) {
+            due.add(startNanos + (long) (scheduled / requestsPerNano));
+        }
+        if (now >= endNanos) {
+            ticker.cancel(false);
+        }
+        sendDue();
+    }
+
+    private void sendDue() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        boolean sent = false;
+        while (inFlight < maxInFlight && !due.isEmpty() && canSend()) {
+            inFlight++;
+            send(ctx, due.poll());
+            sent = true;
+        }
+        if (sent) {
+            ctx.flush();
+        }
+        closeIfDone();
+    }
+
+    /**
+     * Called when the response to a request, intended to be sent at the given time, has been fully read.
+     */
+    protected final void complete(long intendedNanos, boolean success) {
+        statistics.recordResponse(intendedNanos, success);
+        inFlight--;
+        long now = System.nanoTime();
+        if (requestsPerNano == 0 && now < endNanos) {
+            due.add(now);
+        }
+        sendDue();
+    }
+
+    private void closeIfDone() {
+        if (!started) {
+            return;
+        }
+        boolean generating = requestsPerNano > 0 ? !ticker.isDone() : System.nanoTime() < endNanos;
+        if (!generating && inFlight == 0 && due.isEmpty()) {
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+        // Requests which were never answered or never sent count as errors
+        abortInFlight();
+        while (!due.isEmpty()) {
+            statistics.recordResponse(due.poll(), false);
+        }
+        inFlight = 0;
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        statistics.recordConnectionFailure();
+        ctx.close();
+    }
+
+    /**
+     * Whether the connection can take another request right now, on top of the in flight limit.
+     */
+    protected boolean canSend() {
+        return true;
+    }
+
+    /**
+     * Writes a request, without flushing.
+     */
+    protected abstract void send(ChannelHandlerContext ctx, long intendedNanos);
+
+    /**
+     * Records all requests still in flight as failed, when the connection is closed.
+     */
+    protected abstract void abortInFlight();
+
+    /**
+     * FIFO of primitive longs.
+     */
+    static final class LongQueue {
+        private long[] elements = new long[16];
+        private int head;
+        private int size;
+
+        void add(long value) {
+            if (size == elements.length) {
+                long[] grown = Arrays.copyOf(elements, size << 1);
+                // Unwrap the elements which were stored before head
+                System.arraycopy(elements, 0, grown, size, head);
+                elements = grown;
+            }
+            elements[(head + size) & (elements.length - 1)] = value;
+            size++;
+        }
+
+        long poll() {
+            long value = elements[head];
+            head = (head + 1) & (elements.length - 1);
+            size--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.performance.netty.echo;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of a load generator run, recorded concurrently by all connections.
+ * <p>
+ * Latencies are measured from the time a request was supposed to be sent, not from the time it actually was. When
+ * the server or a connection stalls, the requests that should have been sent during the stall are charged with the
+ * time they waited, which avoids coordinated omission.
+ */
+final class LoadStatistics {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder connectionFailures = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private Histogram interval;
+
+    /**
+     * Records a completed request, given the {@link System#nanoTime()} it was intended to be sent at.
+     */
+    void recordResponse(long intendedNanos, boolean success) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos);
+        recorder.recordValue(Math.min(Math.max(micros, 0), HIGHEST_TRACKABLE_MICROS));
+        if (!success) {
+            errors.increment();
+        }
+    }
+
+    void recordBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void recordConnectionFailure() {
+        connectionFailures.increment();
+    }
+
+    /**
+     * Moves everything recorded since the last call into the total, and returns it as an interval histogram.
+     * Only called by the reporting thread.
+     */
+    Histogram nextInterval() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return interval;
+    }
+
+    Histogram total() {
+        return total;
+    }
+
+    long errors() {
+        return errors.sum();
+    }
+
+    long connectionFailures() {
+        return connectionFailures.sum();
+    }
+
+    long bytesReceived() {
+        return bytesReceived.sum();
+    }
+}
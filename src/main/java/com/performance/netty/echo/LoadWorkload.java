@@ -0,0 +1,84 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * The request sent by the load generator. The body is built once and shared by all requests and connections.
+ */
+final class LoadWorkload {
+
+    private final HttpMethod method;
+    private final String scheme;
+    private final String authority;
+    private final String path;
+    private final String contentType;
+    private final ByteBuf body;
+
+    LoadWorkload(URI uri, int bodySize, String contentType) {
+        this.scheme = uri.getScheme();
+        this.authority = uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+        this.path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" :
+                uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+        this.method = bodySize > 0 ? HttpMethod.POST : HttpMethod.GET;
+        this.contentType = contentType;
+        byte[] bytes = new byte[bodySize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        this.body = Unpooled.unreleasableBuffer(Unpooled.directBuffer(bodySize).writeBytes(bytes).asReadOnly());
+    }
+
+    boolean hasBody() {
+        return body.isReadable();
+    }
+
+    /**
+     * Returns a view of the shared body, to be written with a request.
+     */
+    ByteBuf body() {
+        return body.duplicate();
+    }
+
+    FullHttpRequest newHttp1Request() {
+        FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, method, path, body(), false);
+        request.headers().set(HttpHeaderNames.HOST, authority);
+        if (hasBody()) {
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        }
+        HttpUtil.setContentLength(request, body.readableBytes());
+        return request;
+    }
+
+    /**
+     * Returns the bodiless request which carries the h2c upgrade, and is answered on stream 1.
+     */
+    FullHttpRequest newUpgradeRequest() {
+        FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.GET, path, Unpooled.EMPTY_BUFFER);
+        request.headers().set(HttpHeaderNames.HOST, authority);
+        return request;
+    }
+
+    Http2Headers newHttp2Headers() {
+        Http2Headers headers = new DefaultHttp2Headers(false)
+                .method(method.asciiName())
+                .scheme(scheme)
+                .authority(authority)
+                .path(path);
+        if (hasBody()) {
+            headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            headers.setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,139 @@
+package com.performance.netty.echo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * The memory-mapped segment files of a binary log, written by a single thread. A segment starts with a
+ * {@value #HEADER_SIZE} byte header: the magic number of the log, its format version, the record size or 0 when every
+ * record starts with its own size, the time the segment was created and the number of records written to it, updated
+ * by {@link #sync()}. All numbers are big-endian. A new segment is started once the current one is full, and the
+ * oldest segments are deleted beyond the maximum.
+ */
+final class MappedSegments {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedSegments.class);
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_COUNT_OFFSET = 16;
+
+    private final File directory;
+    private final String prefix;
+    private final int magic;
+    private final short version;
+    private final int recordSize;
+    private final long mappedSize;
+    private final int maxSegments;
+
+    private final Deque<File> files = new ArrayDeque<>();
+    private MappedByteBuffer segment;
+    private long records;
+    private int sequence;
+
+    /**
+     * @param directory   directory of the segment files
+     * @param prefix      start of the file names, followed by the creation time and a sequence number
+     * @param recordSize  size of every record, or 0 for records of different sizes
+     * @param segmentSize size of a segment file in bytes, rounded down to whole records of a fixed size
+     * @param maxSegments segment files kept, the oldest ones are deleted
+     */
+    MappedSegments(File directory, String prefix, int magic, short version, int recordSize, long segmentSize,
+                   int maxSegments) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.magic = magic;
+        this.version = version;
+        this.recordSize = recordSize;
+        this.mappedSize = recordSize > 0 ? HEADER_SIZE + (segmentSize - HEADER_SIZE) / recordSize * recordSize :
+                segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Returns the current segment, positioned after its last record. A new segment is started when there is none
+     * yet or when the current one has less than the given number of bytes left.
+     */
+    ByteBuffer reserve(int bytes) throws IOException {
+        if (segment == null || segment.remaining() < bytes) {
+            next();
+        }
+        return segment;
+    }
+
+    /**
+     * Counts records written to the current segment.
+     */
+    void added(int count) {
+        records += count;
+    }
+
+    /**
+     * Updates the record count in the header of the current segment.
+     */
+    void sync() {
+        if (segment != null) {
+            segment.putLong(RECORD_COUNT_OFFSET, records);
+        }
+    }
+
+    /**
+     * Completes the current segment and writes it to the disk.
+     */
+    void close() {
+        if (segment != null) {
+            sync();
+            // The file is unmapped once the buffer is garbage collected
+            segment.force();
+            segment = null;
+        }
+    }
+
+    private void next() throws IOException {
+        close();
+        long now = System.currentTimeMillis();
+        File file = new File(directory, String.format("%s-%d-%04d.bin", prefix, now, sequence++ % 10000));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+        }
+        segment.putInt(magic).putShort(version).putShort((short) recordSize).putLong(now).putLong(0L);
+        segment.position(HEADER_SIZE);
+        records = 0;
+        files.addLast(file);
+        while (files.size() > maxSegments) {
+            File oldest = files.removeFirst();
+            if (!oldest.delete()) {
+                logger.warn("Failed to delete the segment {}", oldest);
+            }
+        }
+    }
+
+    /**
+     * Returns the segment files of a log in a directory in the order they were created, or the file itself when it
+     * is not a directory.
+     *
+     * @throws IOException when the directory cannot be listed
+     */
+    static File[] list(File file, String prefix) throws IOException {
+        if (!file.isDirectory()) {
+            return new File[]{file};
+        }
+        File[] segments = file.listFiles((dir, name) -> name.startsWith(prefix + "-") && name.endsWith(".bin"));
+        if (segments == null) {
+            throw new IOException("Cannot list " + file);
+        }
+        // The names start with the creation time
+        Arrays.sort(segments);
+        return segments;
+    }
+}
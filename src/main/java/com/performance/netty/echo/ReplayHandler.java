@@ -0,0 +1,360 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientUpgradeHandler;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * A connection of the {@link TrafficReplay}. Requests are handed to it by the replay thread, and sent on the
+ * connection's event loop. The connection offers one slot to the replay per request it can have in flight, once it
+ * is ready, and returns the slot of every completed request.
+ */
+abstract class ReplayHandler extends ChannelInboundHandlerAdapter {
+
+    // Hop-by-hop headers of RFC 2616, which HttpHeaderNames only has as deprecated constants
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    protected final TrafficReplay replay;
+    protected final String scheme;
+    protected final String authority;
+    private final int maxInFlight;
+    private ChannelHandlerContext ctx;
+    private boolean ready;
+
+    ReplayHandler(TrafficReplay replay, String scheme, String authority, int maxInFlight) {
+        this.replay = replay;
+        this.scheme = scheme;
+        this.authority = authority;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Offers the slots of the connection to the replay, once it is ready for requests.
+     */
+    protected final void ready() {
+        if (!ready) {
+            ready = true;
+            replay.connectionReady(this, maxInFlight);
+        }
+    }
+
+    /**
+     * Sends a request, from any thread. Its latency counts from the given {@link System#nanoTime()}.
+     */
+    final void send(TrafficReplay.CapturedRequest request, long intendedNanos) {
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive()) {
+                request.release();
+                replay.completed(null, intendedNanos, false);
+                return;
+            }
+            send(ctx, request, intendedNanos);
+            ctx.flush();
+        });
+    }
+
+    /**
+     * Called when the response to a request has been fully read.
+     */
+    protected final void complete(long intendedNanos, boolean success) {
+        replay.completed(ctx.channel().isActive() ? this : null, intendedNanos, success);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        abortInFlight();
+        replay.connectionClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        replay.statistics().recordConnectionFailure();
+        ctx.close();
+    }
+
+    /**
+     * Writes a request, without flushing.
+     */
+    protected abstract void send(ChannelHandlerContext ctx, TrafficReplay.CapturedRequest request,
+                                 long intendedNanos);
+
+    /**
+     * Records all requests still in flight as failed, when the connection is closed.
+     */
+    protected abstract void abortInFlight();
+
+    /**
+     * Replays requests over HTTP/1.1, pipelining up to the given depth.
+     */
+    static final class Http1 extends ReplayHandler {
+        private final boolean ssl;
+        // Intended send times of the requests in flight, in the order they were sent
+        private final LoadHandler.LongQueue inFlight = new LoadHandler.LongQueue();
+        private boolean success;
+
+        Http1(TrafficReplay replay, String scheme, String authority, int pipelineDepth, boolean ssl) {
+            super(replay, scheme, authority, pipelineDepth);
+            this.ssl = ssl;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (!ssl) {
+                ready();
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+                ready();
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        protected void send(ChannelHandlerContext ctx, TrafficReplay.CapturedRequest request, long intendedNanos) {
+            inFlight.add(intendedNanos);
+            FullHttpRequest http1Request = new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.valueOf(request.method),
+                    request.path, request.body, false);
+            for (Map.Entry<CharSequence, CharSequence> header : request.headers) {
+                if (!isHopByHop(header.getKey())) {
+                    http1Request.headers().add(header.getKey(), header.getValue());
+                }
+            }
+            http1Request.headers().set(HttpHeaderNames.HOST, authority);
+            if (request.body.isReadable() || request.hasContentLength()) {
+                http1Request.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, request.body.readableBytes());
+            }
+            ctx.write(http1Request);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof HttpResponse) {
+                    success = ((HttpResponse) msg).status().code() < 400;
+                }
+                if (msg instanceof HttpContent) {
+                    replay.statistics().recordBytesReceived(((HttpContent) msg).content().readableBytes());
+                    if (msg instanceof LastHttpContent && !inFlight.isEmpty()) {
+                        complete(inFlight.poll(), success);
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        protected void abortInFlight() {
+            while (!inFlight.isEmpty()) {
+                replay.completed(null, inFlight.poll(), false);
+            }
+        }
+    }
+
+    /**
+     * Replays requests over HTTP/2, with up to the given number of streams. Sits behind its
+     * {@link #connectionHandler()}, which is negotiated with ALPN over TLS or reached by a cleartext upgrade.
+     * Requests beyond the streams the server allows wait for a stream to close.
+     */
+    static final class Http2 extends ReplayHandler {
+        private final boolean ssl;
+        private final Http2ConnectionHandler connectionHandler;
+        // Intended send times of the streams in flight
+        private final IntObjectMap<Long> inFlight = new IntObjectHashMap<>();
+        // Requests waiting for a stream, and their intended send times
+        private final Queue<TrafficReplay.CapturedRequest> waiting = new ArrayDeque<>();
+        private final LoadHandler.LongQueue waitingSince = new LoadHandler.LongQueue();
+
+        Http2(TrafficReplay replay, String scheme, String authority, int maxStreams, boolean ssl) {
+            super(replay, scheme, authority, maxStreams);
+            this.ssl = ssl;
+            this.connectionHandler = new Http2ConnectionHandlerBuilder()
+                    .server(false)
+                    .frameListener(new Http2FrameAdapter() {
+                        @Override
+                        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                                                  int padding, boolean endOfStream) {
+                            CharSequence status = headers.status();
+                            if (status != null && status.length() > 0 && status.charAt(0) >= '4') {
+                                complete(ctx, streamId, false);
+                            } else if (endOfStream) {
+                                complete(ctx, streamId, true);
+                            }
+                        }
+
+                        @Override
+                        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                                                  int streamDependency, short weight, boolean exclusive,
+                                                  int padding, boolean endOfStream) {
+                            onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+                        }
+
+                        @Override
+                        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                                              boolean endOfStream) {
+                            replay.statistics().recordBytesReceived(data.readableBytes());
+                            if (endOfStream) {
+                                complete(ctx, streamId, true);
+                            }
+                            return data.readableBytes() + padding;
+                        }
+
+                        @Override
+                        public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+                            complete(ctx, streamId, false);
+                        }
+                    })
+                    .build();
+        }
+
+        /**
+         * Returns the connection handler to place in front of this handler, directly with TLS, or as the upgrade
+         * target of a cleartext connection.
+         */
+        Http2ConnectionHandler connectionHandler() {
+            return connectionHandler;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (!ssl) {
+                // Ask for an upgrade, the requests start once it succeeded
+                FullHttpRequest upgrade = new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.GET, "/");
+                upgrade.headers().set(HttpHeaderNames.HOST, authority);
+                ctx.writeAndFlush(upgrade);
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_SUCCESSFUL) {
+                ready();
+            } else if (evt == HttpClientUpgradeHandler.UpgradeEvent.UPGRADE_REJECTED) {
+                // The server does not speak HTTP/2
+                replay.statistics().recordConnectionFailure();
+                ctx.close();
+            } else if (evt instanceof SslHandshakeCompletionEvent &&
+                    ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+                String protocol = ctx.pipeline().get(SslHandler.class).applicationProtocol();
+                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                    ready();
+                } else {
+                    replay.statistics().recordConnectionFailure();
+                    ctx.close();
+                }
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        protected void send(ChannelHandlerContext ctx, TrafficReplay.CapturedRequest request, long intendedNanos) {
+            if (!connectionHandler.connection().local().canOpenStream()) {
+                waiting.add(request);
+                waitingSince.add(intendedNanos);
+                return;
+            }
+            int streamId = connectionHandler.connection().local().incrementAndGetNextStreamId();
+            inFlight.put(streamId, Long.valueOf(intendedNanos));
+            Http2Headers headers = new DefaultHttp2Headers(false)
+                    .method(request.method)
+                    .scheme(scheme)
+                    .authority(authority)
+                    .path(request.path);
+            for (Map.Entry<CharSequence, CharSequence> header : request.headers) {
+                CharSequence name = header.getKey();
+                if (!isHopByHop(name) && !HttpHeaderNames.HOST.contentEqualsIgnoreCase(name) &&
+                        !HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+                    headers.add(AsciiString.of(name).toLowerCase(), header.getValue());
+                }
+            }
+            boolean hasBody = request.body.isReadable();
+            if (hasBody || request.hasContentLength()) {
+                headers.setInt(HttpHeaderNames.CONTENT_LENGTH, request.body.readableBytes());
+            }
+            connectionHandler.encoder().writeHeaders(ctx, streamId, headers, 0, !hasBody, ctx.newPromise());
+            if (hasBody) {
+                connectionHandler.encoder().writeData(ctx, streamId, request.body, 0, true, ctx.newPromise());
+            } else {
+                request.release();
+            }
+        }
+
+        private void complete(ChannelHandlerContext ctx, int streamId, boolean success) {
+            Long intendedNanos = inFlight.remove(streamId);
+            if (intendedNanos == null) {
+                return;
+            }
+            complete(intendedNanos, success);
+            TrafficReplay.CapturedRequest next = waiting.poll();
+            if (next != null) {
+                send(ctx, next, waitingSince.poll());
+                ctx.flush();
+            }
+        }
+
+        @Override
+        protected void abortInFlight() {
+            for (Long intendedNanos : inFlight.values()) {
+                replay.completed(null, intendedNanos, false);
+            }
+            inFlight.clear();
+            TrafficReplay.CapturedRequest next;
+            while ((next = waiting.poll()) != null) {
+                next.release();
+                replay.completed(null, waitingSince.poll(), false);
+            }
+        }
+    }
+
+    /**
+     * Whether a header only applies to the connection it was captured on.
+     */
+    static boolean isHopByHop(CharSequence name) {
+        return HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(name) ||
+                KEEP_ALIVE.contentEqualsIgnoreCase(name) ||
+                PROXY_CONNECTION.contentEqualsIgnoreCase(name) ||
+                HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name) ||
+                HttpHeaderNames.UPGRADE.contentEqualsIgnoreCase(name) ||
+                HttpHeaderNames.TE.contentEqualsIgnoreCase(name) ||
+                HttpHeaderNames.EXPECT.contentEqualsIgnoreCase(name) ||
+                AsciiString.contentEqualsIgnoreCase("http2-settings", name);
+    }
+}
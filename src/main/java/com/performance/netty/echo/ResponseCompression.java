@@ -0,0 +1,626 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliEncoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with the content coding the client prefers among the ones it accepts: {@code br} when
+ * brotli4j is on the classpath, {@code gzip} and {@code deflate}. Only complete responses are compressed, HTTP/1.1
+ * {@link FullHttpResponse}s and HTTP/2 responses whose headers are written right before their only data frame, so
+ * streamed echoes and bulk payloads, including the ones sent with {@code sendfile}, go out as they are.
+ * <p>
+ * The compressed bodies of the {@link FixedResponses}, which are sent again and again, are cached by each event loop,
+ * keyed by the identity of the response and the coding, so that they are compressed once per event loop. A lookup
+ * takes no lock and never reads the body. Echoed bodies are compressed for every response and never cached. The
+ * least recently used responses are dropped once the cache of an event loop holds more than its size. Bodies which do
+ * not get smaller, like the random bytes of the fixed responses, are sent as they are, and cached as such.
+ */
+final class ResponseCompression {
+
+    enum Encoding {
+        // In the order of preference when the client accepts several with the same quality
+        BR("br"), GZIP("gzip"), DEFLATE("deflate"), IDENTITY("identity");
+
+        final AsciiString name;
+
+        Encoding(String name) {
+            this.name = AsciiString.cached(name);
+        }
+    }
+
+    private static final Encoding[] ENCODINGS = Encoding.values();
+    private static final AsciiString X_GZIP = AsciiString.cached("x-gzip");
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    // Cached for the bodies which do not get smaller
+    private static final ByteBuf INCOMPRESSIBLE = Unpooled.EMPTY_BUFFER;
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final int level;
+    private final int minSize;
+    private final long cacheSize;
+    private final boolean brotli;
+    private final FastThreadLocal<Codecs> codecs = new FastThreadLocal<Codecs>() {
+        @Override
+        protected Codecs initialValue() {
+            return new Codecs(level);
+        }
+
+        @Override
+        protected void onRemoval(Codecs value) {
+            value.end();
+        }
+    };
+
+    // The caches of all event loops, summed up by the metrics
+    private final Set<Cache> allCaches = ConcurrentHashMap.newKeySet();
+    private final FastThreadLocal<Cache> caches = new FastThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            Cache cache = new Cache();
+            allCaches.add(cache);
+            return cache;
+        }
+
+        @Override
+        protected void onRemoval(Cache value) {
+            allCaches.remove(value);
+            value.clear();
+        }
+    };
+
+    /**
+     * @param level     the compression level of gzip and deflate, 1 to 9
+     * @param minSize   the smallest body compressed, in bytes
+     * @param cacheSize the bytes of compressed fixed bodies kept by each event loop, 0 to compress every body
+     */
+    ResponseCompression(int level, int minSize, long cacheSize) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+        this.minSize = Math.max(minSize, 1);
+        this.cacheSize = cacheSize;
+        this.brotli = Brotli.isAvailable();
+    }
+
+    ChannelDuplexHandler newHttp1Handler() {
+        return new Http1Handler();
+    }
+
+    ChannelDuplexHandler newHttp2Handler() {
+        return new Http2Handler();
+    }
+
+    /**
+     * Returns the coding of the highest quality in an {@code Accept-Encoding} header, {@link Encoding#IDENTITY} when
+     * there is none to use. The header is parsed in place, without allocating.
+     */
+    Encoding select(CharSequence acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        Encoding best = Encoding.IDENTITY;
+        float bestQuality = 0;
+        float wildcardQuality = -1;
+        // Bits of the codings listed explicitly, which the wildcard does not stand for
+        int listed = 0;
+        int length = acceptEncoding.length();
+        for (int start = 0; start < length; ) {
+            int end = indexOf(acceptEncoding, ',', start, length);
+            int semicolon = indexOf(acceptEncoding, ';', start, end);
+            float quality = semicolon < end ? quality(acceptEncoding, semicolon + 1, end) : 1;
+            int nameStart = skipWhitespace(acceptEncoding, start, semicolon);
+            int nameEnd = trimWhitespace(acceptEncoding, nameStart, semicolon);
+            start = end + 1;
+            if (nameEnd - nameStart == 1 && acceptEncoding.charAt(nameStart) == '*') {
+                wildcardQuality = quality;
+                continue;
+            }
+            Encoding encoding = encoding(acceptEncoding, nameStart, nameEnd - nameStart);
+            if (encoding == null) {
+                continue;
+            }
+            listed |= 1 << encoding.ordinal();
+            if (quality > bestQuality || quality > 0 && quality == bestQuality && encoding.ordinal() < best.ordinal()) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        if (wildcardQuality > bestQuality) {
+            for (Encoding encoding : ENCODINGS) {
+                if ((listed & 1 << encoding.ordinal()) == 0 && (encoding != Encoding.BR || brotli)) {
+                    return encoding;
+                }
+            }
+        }
+        return best;
+    }
+
+    private Encoding encoding(CharSequence header, int start, int length) {
+        if (matches(header, start, length, Encoding.BR.name)) {
+            return brotli ? Encoding.BR : null;
+        }
+        if (matches(header, start, length, Encoding.GZIP.name) || matches(header, start, length, X_GZIP)) {
+            return Encoding.GZIP;
+        }
+        if (matches(header, start, length, Encoding.DEFLATE.name)) {
+            return Encoding.DEFLATE;
+        }
+        return null;
+    }
+
+    private static boolean matches(CharSequence header, int start, int length, AsciiString name) {
+        return length == name.length() && AsciiString.regionMatches(header, true, start, name, 0, length);
+    }
+
+    /**
+     * Returns the value of a {@code q} parameter, a number with up to three decimals, 0 when it is not a number and
+     * 1 for any other parameter.
+     */
+    private static float quality(CharSequence header, int start, int end) {
+        int i = skipWhitespace(header, start, end);
+        end = trimWhitespace(header, i, end);
+        if (i == end || (header.charAt(i) | 0x20) != 'q') {
+            return 1;
+        }
+        i = skipWhitespace(header, i + 1, end);
+        if (i == end || header.charAt(i) != '=') {
+            return 1;
+        }
+        i = skipWhitespace(header, i + 1, end);
+        float quality = 0;
+        float scale = 0;
+        boolean digits = false;
+        for (; i < end; i++) {
+            char c = header.charAt(i);
+            if (c == '.' && scale == 0) {
+                scale = 1;
+            } else if (c >= '0' && c <= '9') {
+                if (scale == 0) {
+                    quality = quality * 10 + (c - '0');
+                } else {
+                    scale /= 10;
+                    quality += (c - '0') * scale;
+                }
+                digits = true;
+            } else {
+                return 0;
+            }
+        }
+        return digits ? quality : 0;
+    }
+
+    /**
+     * Returns the index of a character between two indexes, or the end when it does not occur.
+     */
+    private static int indexOf(CharSequence header, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (header.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipWhitespace(CharSequence header, int start, int end) {
+        while (start < end && isWhitespace(header.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimWhitespace(CharSequence header, int start, int end) {
+        while (end > start && isWhitespace(header.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private boolean isCompressible(ByteBuf body) {
+        return body.readableBytes() >= minSize;
+    }
+
+    /**
+     * Returns the body compressed with the given coding, or {@code null} when it does not get smaller. The
+     * compressed body of a fixed response comes from the cache of the event loop when it was compressed before. The
+     * body is not released, the caller owns the returned buffer.
+     *
+     */
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf body, Encoding encoding) {
+        ServerMetrics.LoopMetrics metrics = ServerMetrics.current();
+        int length = body.readableBytes();
+        FixedResponses.Response fixed = cacheSize > 0 ? FixedResponses.Response.of(body) : null;
+        Cache cache = fixed != null ? caches.get() : null;
+        if (cache != null) {
+            ByteBuf cached = cache.get(fixed, encoding);
+            if (cached != null) {
+                metrics.compressionHit(length, cached == INCOMPRESSIBLE ? length : cached.readableBytes());
+                return cached == INCOMPRESSIBLE ? null : cached.retainedDuplicate();
+            }
+        }
+        Codecs codecs = this.codecs.get();
+        long startNanos = cpuTimeNanos();
+        ByteBuf compressed = encoding == Encoding.BR ? codecs.brotli(body) :
+                codecs.deflate(alloc, body, encoding == Encoding.GZIP);
+        if (compressed.readableBytes() >= length) {
+            compressed.release();
+            compressed = INCOMPRESSIBLE;
+        }
+        metrics.compressionMiss(cpuTimeNanos() - startNanos, length,
+                compressed == INCOMPRESSIBLE ? length : compressed.readableBytes());
+        // Bodies larger than a quarter of the cache would push out too much of it
+        if (cache != null && compressed.readableBytes() <= cacheSize / 4) {
+            ByteBuf entry = compressed;
+            if (compressed != INCOMPRESSIBLE) {
+                // Cached bodies may live long, so they are not taken from the pool
+                entry = Unpooled.directBuffer(compressed.readableBytes()).writeBytes(compressed);
+                compressed.release();
+                compressed = entry.retainedDuplicate();
+            }
+            cache.put(fixed, encoding, entry);
+        }
+        return compressed == INCOMPRESSIBLE ? null : compressed;
+    }
+
+    /**
+     * Returns the bytes an entry counts for in the cache, with a rough overhead so that the entries of the bodies
+     * which do not get smaller are bounded too.
+     */
+    private static long cost(ByteBuf entry) {
+        return entry.readableBytes() + ENTRY_OVERHEAD;
+    }
+
+    private static long cpuTimeNanos() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    long cachedBytes() {
+        long bytes = 0;
+        for (Cache cache : allCaches) {
+            bytes += cache.bytes;
+        }
+        return bytes;
+    }
+
+    int cachedEntries() {
+        int entries = 0;
+        for (Cache cache : allCaches) {
+            entries += cache.entries;
+        }
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "encodings=" + (brotli ? "br,gzip,deflate" : "gzip,deflate") + ", level=" + level + ", minSize=" +
+                minSize + ", cacheSize=" + cacheSize;
+    }
+
+    /**
+     * The compressed bodies of the fixed responses an event loop has sent, by coding. Only its event loop uses it, so
+     * that it needs no lock, the sizes are only read by the metrics.
+     */
+    private final class Cache {
+        // Access ordered, so that the least recently used response comes first. The responses do not override
+        // equals, so that they are looked up by identity
+        private final LinkedHashMap<FixedResponses.Response, ByteBuf[]> bodies = new LinkedHashMap<>(16, 0.75f, true);
+        private volatile long bytes;
+        private volatile int entries;
+
+        ByteBuf get(FixedResponses.Response response, Encoding encoding) {
+            ByteBuf[] compressed = bodies.get(response);
+            return compressed != null ? compressed[encoding.ordinal()] : null;
+        }
+
+        void put(FixedResponses.Response response, Encoding encoding, ByteBuf entry) {
+            ByteBuf[] compressed = bodies.get(response);
+            if (compressed == null) {
+                compressed = new ByteBuf[ENCODINGS.length];
+                bodies.put(response, compressed);
+            }
+            long bytes = this.bytes + cost(entry);
+            int entries = this.entries + 1;
+            ByteBuf previous = compressed[encoding.ordinal()];
+            if (previous != null) {
+                bytes -= cost(previous);
+                entries--;
+                previous.release();
+            }
+            compressed[encoding.ordinal()] = entry;
+            Iterator<ByteBuf[]> eldest = bodies.values().iterator();
+            while (bytes > cacheSize && eldest.hasNext()) {
+                for (ByteBuf dropped : eldest.next()) {
+                    if (dropped != null) {
+                        bytes -= cost(dropped);
+                        entries--;
+                        dropped.release();
+                    }
+                }
+                eldest.remove();
+            }
+            this.bytes = bytes;
+            this.entries = entries;
+        }
+
+        void clear() {
+            for (ByteBuf[] compressed : bodies.values()) {
+                for (ByteBuf entry : compressed) {
+                    if (entry != null) {
+                        entry.release();
+                    }
+                }
+            }
+            bodies.clear();
+            bytes = 0;
+            entries = 0;
+        }
+    }
+
+    /**
+     * The compressors of an event loop, reused for every body.
+     */
+    private static final class Codecs {
+        private final Deflater gzip;
+        private final Deflater zlib;
+        private final CRC32 crc32 = new CRC32();
+        private EmbeddedChannel brotli;
+
+        Codecs(int level) {
+            gzip = new Deflater(level, true);
+            zlib = new Deflater(level, false);
+        }
+
+        int crc32(ByteBuf body) {
+            crc32.reset();
+            for (ByteBuffer buffer : body.nioBuffers()) {
+                crc32.update(buffer);
+            }
+            return (int) crc32.getValue();
+        }
+
+        /**
+         * Compresses a body in the gzip format, RFC 1952, or in the zlib format, RFC 1950, which is what HTTP calls
+         * deflate.
+         */
+        ByteBuf deflate(ByteBufAllocator alloc, ByteBuf body, boolean gzip) {
+            Deflater deflater = gzip ? this.gzip : zlib;
+            deflater.reset();
+            int length = body.readableBytes();
+            if (body.hasArray()) {
+                deflater.setInput(body.array(), body.arrayOffset() + body.readerIndex(), length);
+            } else {
+                deflater.setInput(ByteBufUtil.getBytes(body));
+            }
+            deflater.finish();
+            // Written into the backing array directly
+            ByteBuf out = alloc.heapBuffer(length / 2 + 64);
+            if (gzip) {
+                out.writeBytes(GZIP_HEADER);
+            }
+            while (!deflater.finished()) {
+                if (!out.isWritable()) {
+                    out.ensureWritable(out.capacity());
+                }
+                out.writerIndex(out.writerIndex() + deflater.deflate(out.array(),
+                        out.arrayOffset() + out.writerIndex(), out.writableBytes()));
+            }
+            if (gzip) {
+                out.writeIntLE(crc32(body)).writeIntLE(length);
+            }
+            return out;
+        }
+
+        ByteBuf brotli(ByteBuf body) {
+            if (brotli == null) {
+                brotli = new EmbeddedChannel(new BrotliEncoder());
+            }
+            // The encoder compresses every buffer written on its own
+            brotli.writeOutbound(body.retainedDuplicate());
+            return brotli.readOutbound();
+        }
+
+        void end() {
+            gzip.end();
+            zlib.end();
+            if (brotli != null) {
+                brotli.finishAndReleaseAll();
+            }
+        }
+    }
+
+    /**
+     * Compresses the {@link FullHttpResponse}s of an HTTP/1.1 connection, matching them with the requests in order.
+     */
+    private final class Http1Handler extends ChannelDuplexHandler {
+
+        // The codings of the requests whose responses have not been written yet
+        private final Queue<Encoding> encodings = new ArrayDeque<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest) {
+                encodings.add(select(((HttpRequest) msg).headers().get(HttpHeaderNames.ACCEPT_ENCODING)));
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                // Interim responses come before the final one of the same request
+                boolean interim = response.status().codeClass() == HttpStatusClass.INFORMATIONAL &&
+                        !HttpResponseStatus.SWITCHING_PROTOCOLS.equals(response.status());
+                Encoding encoding = interim ? null : encodings.poll();
+                if (encoding != null && encoding != Encoding.IDENTITY && msg instanceof FullHttpResponse &&
+                        isCompressible(((FullHttpResponse) msg).content()) &&
+                        !response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+                    msg = compress(ctx, (FullHttpResponse) msg, encoding);
+                }
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        private FullHttpResponse compress(ChannelHandlerContext ctx, FullHttpResponse response, Encoding encoding) {
+            ByteBuf compressed = ResponseCompression.this.compress(ctx.alloc(), response.content(), encoding);
+            if (compressed == null) {
+                return response;
+            }
+            // Fixed responses share read-only headers
+            HttpHeaders headers = new DefaultHttpHeaders(false).set(response.headers())
+                    .set(HttpHeaderNames.CONTENT_ENCODING, encoding.name)
+                    .set(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes())
+                    .add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            FullHttpResponse compressedResponse = new DefaultFullHttpResponse(response.protocolVersion(),
+                    response.status(), compressed, headers, response.trailingHeaders());
+            response.release();
+            return compressedResponse;
+        }
+    }
+
+    /**
+     * Compresses the responses of an HTTP/2 connection whose headers frame is written right before the data frame
+     * ending the stream. The headers frame is held back until the next write to see whether it is one.
+     */
+    private final class Http2Handler extends ChannelDuplexHandler {
+
+        // The codings of the requests by stream, until their response starts
+        private final IntObjectMap<Encoding> encodings = new IntObjectHashMap<>();
+        private Http2HeadersFrame heldHeaders;
+        private ChannelPromise heldPromise;
+        private Encoding heldEncoding;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) msg;
+                int streamId = headersFrame.stream().id();
+                // Trailers do not count
+                if (!encodings.containsKey(streamId)) {
+                    encodings.put(streamId, select(headersFrame.headers().get(HttpHeaderNames.ACCEPT_ENCODING)));
+                }
+            } else if (msg instanceof Http2ResetFrame) {
+                encodings.remove(((Http2ResetFrame) msg).stream().id());
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (heldHeaders != null) {
+                Http2HeadersFrame headersFrame = heldHeaders;
+                ChannelPromise headersPromise = heldPromise;
+                heldHeaders = null;
+                heldPromise = null;
+                if (msg instanceof Http2DataFrame && ((Http2DataFrame) msg).isEndStream() &&
+                        ((Http2DataFrame) msg).stream().id() == headersFrame.stream().id() &&
+                        isCompressible(((Http2DataFrame) msg).content())) {
+                    if (writeCompressed(ctx, headersFrame, headersPromise, (Http2DataFrame) msg, promise)) {
+                        return;
+                    }
+                }
+                ctx.write(headersFrame, headersPromise);
+            }
+            if (msg instanceof Http2HeadersFrame && ((Http2HeadersFrame) msg).stream() != null) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) msg;
+                Encoding encoding = encodings.remove(headersFrame.stream().id());
+                if (encoding != null && encoding != Encoding.IDENTITY && !headersFrame.isEndStream() &&
+                        !headersFrame.headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+                    heldHeaders = headersFrame;
+                    heldPromise = promise;
+                    heldEncoding = encoding;
+                    return;
+                }
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        /**
+         * Writes the response compressed, unless the body does not get smaller.
+         */
+        private boolean writeCompressed(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame,
+                                        ChannelPromise headersPromise, Http2DataFrame data, ChannelPromise promise) {
+            ByteBuf compressed = compress(ctx.alloc(), data.content(), heldEncoding);
+            if (compressed == null) {
+                return false;
+            }
+            // Fixed responses share read-only headers
+            Http2Headers headers = new DefaultHttp2Headers(false);
+            for (Map.Entry<CharSequence, CharSequence> header : headersFrame.headers()) {
+                headers.add(header.getKey(), header.getValue());
+            }
+            headers.set(HttpHeaderNames.CONTENT_ENCODING, heldEncoding.name)
+                    .setInt(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes())
+                    .add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            ctx.write(new DefaultHttp2HeadersFrame(headers).stream(headersFrame.stream()), headersPromise);
+            ctx.write(new DefaultHttp2DataFrame(compressed, true).stream(data.stream()), promise);
+            data.release();
+            return true;
+        }
+
+        private void writeHeldHeaders(ChannelHandlerContext ctx) {
+            if (heldHeaders != null) {
+                ctx.write(heldHeaders, heldPromise);
+                heldHeaders = null;
+                heldPromise = null;
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            writeHeldHeaders(ctx);
+            super.flush(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            writeHeldHeaders(ctx);
+        }
+    }
+}
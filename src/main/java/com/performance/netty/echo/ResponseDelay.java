@@ -0,0 +1,94 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AsciiString;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long each response is held back, to simulate a slow backend. The delay is drawn from the
+ * {@link DelayDistribution} of the {@link RuntimeConfig}, unless the request carries an {@code X-Echo-Delay} header
+ * with a distribution spec of its own, such as {@code X-Echo-Delay: 150} or {@code X-Echo-Delay: exponential:20}.
+ * Invalid header values are ignored, and the delays drawn from a header are capped, so that clients cannot park
+ * responses for longer than the server allows.
+ * <p>
+ * Delayed responses are held in the {@link DelayTimer} of the connection's event loop, or, when a
+ * {@link BlockingBackend} is configured, every response is handed to it, even when it is not delayed.
+ */
+final class ResponseDelay {
+
+    static final AsciiString HEADER_NAME = AsciiString.cached("x-echo-delay");
+
+    static final long DEFAULT_MAX_HEADER_DELAY_MILLIS = 60_000;
+
+    static final ResponseDelay NONE = new ResponseDelay(null, DEFAULT_MAX_HEADER_DELAY_MILLIS);
+
+    private final BlockingBackend blockingBackend;
+    private final long maxHeaderDelayNanos;
+
+    /**
+     * @param blockingBackend      the backend blocking for the delays, or {@code null} to delay responses on the event
+     *                             loops
+     * @param maxHeaderDelayMillis the longest delay a request can ask for with the header
+     */
+    ResponseDelay(BlockingBackend blockingBackend, long maxHeaderDelayMillis) {
+        if (maxHeaderDelayMillis < 0) {
+            throw new IllegalArgumentException("maxHeaderDelayMillis must not be negative: " + maxHeaderDelayMillis);
+        }
+        this.blockingBackend = blockingBackend;
+        this.maxHeaderDelayNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(maxHeaderDelayMillis),
+                DelayDistribution.MAX_DELAY_NANOS);
+    }
+
+    /**
+     * Returns the delay of a request in nanoseconds, 0 when it should not be delayed.
+     *
+     * @param config      the runtime config read for the request
+     * @param headerValue the value of the request's {@link #HEADER_NAME} header, may be {@code null}
+     */
+    long nextDelayNanos(RuntimeConfig config, CharSequence headerValue) {
+        DelayDistribution requestDistribution = config.delay();
+        long maxDelayNanos = DelayDistribution.MAX_DELAY_NANOS;
+        if (headerValue != null) {
+            try {
+                requestDistribution = DelayDistribution.parse(headerValue.toString());
+                maxDelayNanos = maxHeaderDelayNanos;
+            } catch (IllegalArgumentException e) {
+                // Keep the default
+            }
+        }
+        return requestDistribution == null ? 0 :
+                Math.min(Math.max(requestDistribution.nextDelayNanos(ThreadLocalRandom.current()), 0),
+                        maxDelayNanos);
+    }
+
+    /**
+     * Whether a response with the given delay has to be written by a task passed to {@link #schedule}.
+     */
+    boolean isDeferred(long delayNanos) {
+        return delayNanos > 0 || blockingBackend != null;
+    }
+
+    /**
+     * Runs the task on the channel's event loop once the {@link System#nanoTime()} deadline has passed, and records
+     * the actual delay. Tasks may run in any order, and with a blocking backend even later than their deadline.
+     */
+    void schedule(ChannelHandlerContext ctx, long deadlineNanos, Runnable task) {
+        long scheduledNanos = System.nanoTime();
+        Runnable recordingTask = () -> {
+            ServerMetrics.current().recordDelay(scheduledNanos);
+            task.run();
+        };
+        if (blockingBackend != null) {
+            blockingBackend.execute(ctx, deadlineNanos - scheduledNanos, recordingTask);
+        } else {
+            DelayTimer.schedule(ctx.executor(), deadlineNanos, recordingTask);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return blockingBackend == null ? "event loops" : "blocking backend: " + blockingBackend;
+    }
+}
@@ -0,0 +1,305 @@
+package com.performance.netty.echo;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The settings of the echo which can be changed while the server runs, through the {@link AdminServer}: the response
+ * delay, the size of the responses, the injected errors and the keep-alive policy. A snapshot is immutable, and a
+ * change swaps in a new one atomically, so handlers read the current one once per request without taking a lock, and
+ * a request never sees half of a change. The responses of the configured size and the error responses are built
+ * along with the snapshot, not per request.
+ * <p>
+ * Changes are given as parameters:
+ * <ul>
+ * <li>{@code delay} - a {@link DelayDistribution} spec, or {@code none}</li>
+ * <li>{@code response-size} - size in bytes of the response sent instead of an echo, or {@code echo}</li>
+ * <li>{@code error-rate} - fraction of the requests answered with an error, between 0 and 1</li>
+ * <li>{@code error-statuses} - comma separated status codes of the errors, picked at random</li>
+ * <li>{@code keep-alive} - {@code client} to keep connections open as the client asks, or {@code close} to close
+ * HTTP/1.1 connections after every response</li>
+ * </ul>
+ */
+final class RuntimeConfig {
+
+    enum KeepAlive {
+        CLIENT, CLOSE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Every response is kept in five buffers: the body, and encoded with and without it for either keep-alive
+    static final int MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private static final AtomicReference<RuntimeConfig> current = new AtomicReference<>(
+            new RuntimeConfig(null, -1, 0, Collections.singletonList(500), KeepAlive.CLIENT));
+
+    private final DelayDistribution delay;
+    private final int responseSize;
+    // Null to echo
+    private final FixedResponses.Response response;
+    private final double errorRate;
+    private final List<Integer> errorStatuses;
+    private final FixedResponses.Response[] errors;
+    private final KeepAlive keepAlive;
+
+    /**
+     * @param delay         the delay distribution, or {@code null} to only delay requests with a header
+     * @param responseSize  the size of the response sent instead of an echo, or -1 to echo
+     * @param errorRate     the fraction of the requests answered with an error
+     * @param errorStatuses the status codes of the errors
+     * @param keepAlive     the keep-alive policy
+     * @throws IllegalArgumentException when a setting is out of range
+     */
+    RuntimeConfig(DelayDistribution delay, int responseSize, double errorRate, List<Integer> errorStatuses,
+                  KeepAlive keepAlive) {
+        this(delay, checkResponseSize(responseSize), newResponse(responseSize), checkErrorRate(errorRate),
+                copyErrorStatuses(errorStatuses), newErrors(errorStatuses), keepAlive);
+    }
+
+    private RuntimeConfig(DelayDistribution delay, int responseSize, FixedResponses.Response response,
+                          double errorRate, List<Integer> errorStatuses, FixedResponses.Response[] errors,
+                          KeepAlive keepAlive) {
+        this.delay = delay;
+        this.responseSize = responseSize;
+        this.response = response;
+        this.errorRate = errorRate;
+        this.errorStatuses = errorStatuses;
+        this.errors = errors;
+        this.keepAlive = keepAlive;
+    }
+
+    private static int checkResponseSize(int responseSize) {
+        if (responseSize < -1 || responseSize > MAX_RESPONSE_SIZE) {
+            throw new IllegalArgumentException("response-size must be echo or between 0 and " + MAX_RESPONSE_SIZE);
+        }
+        return responseSize;
+    }
+
+    private static double checkErrorRate(double errorRate) {
+        if (!(errorRate >= 0 && errorRate <= 1)) {
+            throw new IllegalArgumentException("error-rate must be between 0 and 1: " + errorRate);
+        }
+        return errorRate;
+    }
+
+    private static List<Integer> copyErrorStatuses(List<Integer> errorStatuses) {
+        if (errorStatuses.isEmpty()) {
+            throw new IllegalArgumentException("error-statuses must not be empty");
+        }
+        for (int status : errorStatuses) {
+            if (status < 400 || status > 599) {
+                throw new IllegalArgumentException("error-statuses must be between 400 and 599: " + status);
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(errorStatuses));
+    }
+
+    private static FixedResponses.Response newResponse(int responseSize) {
+        return responseSize >= 0 ? new FixedResponses.Response(HttpResponseStatus.OK, checkResponseSize(responseSize))
+                : null;
+    }
+
+    private static FixedResponses.Response[] newErrors(List<Integer> errorStatuses) {
+        FixedResponses.Response[] errors = new FixedResponses.Response[copyErrorStatuses(errorStatuses).size()];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new FixedResponses.Response(HttpResponseStatus.valueOf(errorStatuses.get(i)), 0);
+        }
+        return errors;
+    }
+
+    /**
+     * Returns the current snapshot.
+     */
+    static RuntimeConfig current() {
+        return current.get();
+    }
+
+    /**
+     * Replaces the current snapshot, with the settings given at startup.
+     */
+    static void set(RuntimeConfig config) {
+        current.set(config);
+    }
+
+    /**
+     * Applies changes to the current snapshot and swaps in the result. Settings which are not given are kept. The
+     * changes are parsed and their responses built once, only the swap is retried when another update came first.
+     *
+     * @param changes the new values by setting name, the last one counts when a setting is given more than once
+     * @return the new snapshot
+     * @throws IllegalArgumentException when a setting is unknown or a value is invalid, nothing is changed then
+     */
+    static RuntimeConfig update(Map<String, List<String>> changes) {
+        Changes parsed = new Changes(changes, current.get());
+        while (true) {
+            RuntimeConfig config = current.get();
+            RuntimeConfig updated = parsed.applyTo(config);
+            if (current.compareAndSet(config, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Changed settings, with the responses they need. The responses of the snapshot the changes were parsed against
+     * are reused when their settings do not change.
+     */
+    private static final class Changes {
+        private boolean delayChanged;
+        private DelayDistribution delay;
+        private boolean responseChanged;
+        private int responseSize;
+        private FixedResponses.Response response;
+        private Double errorRate;
+        private List<Integer> errorStatuses;
+        private FixedResponses.Response[] errors;
+        private KeepAlive keepAlive;
+
+        Changes(Map<String, List<String>> changes, RuntimeConfig config) {
+            for (Map.Entry<String, List<String>> change : changes.entrySet()) {
+                String value = change.getValue().get(change.getValue().size() - 1).trim();
+                switch (change.getKey()) {
+                    case "delay":
+                        delayChanged = true;
+                        delay = "none".equalsIgnoreCase(value) ? null : DelayDistribution.parse(value);
+                        break;
+                    case "response-size":
+                        responseChanged = true;
+                        responseSize = checkResponseSize("echo".equalsIgnoreCase(value) ? -1 :
+                                parseInt(change.getKey(), value));
+                        break;
+                    case "error-rate":
+                        try {
+                            errorRate = checkErrorRate(Double.parseDouble(value));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("error-rate is not a number: " + value);
+                        }
+                        break;
+                    case "error-statuses":
+                        List<Integer> statuses = new ArrayList<>();
+                        for (String status : value.split(",")) {
+                            statuses.add(parseInt(change.getKey(), status.trim()));
+                        }
+                        errorStatuses = copyErrorStatuses(statuses);
+                        break;
+                    case "keep-alive":
+                        try {
+                            keepAlive = KeepAlive.valueOf(value.toUpperCase(Locale.ROOT));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("keep-alive must be client or close: " + value);
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown setting: " + change.getKey());
+                }
+            }
+            // Built only once everything is valid
+            if (responseChanged) {
+                response = responseSize == config.responseSize ? config.response : newResponse(responseSize);
+            }
+            if (errorStatuses != null) {
+                errors = errorStatuses.equals(config.errorStatuses) ? config.errors : newErrors(errorStatuses);
+            }
+        }
+
+        RuntimeConfig applyTo(RuntimeConfig config) {
+            return new RuntimeConfig(delayChanged ? delay : config.delay,
+                    responseChanged ? responseSize : config.responseSize,
+                    responseChanged ? response : config.response,
+                    errorRate != null ? errorRate : config.errorRate,
+                    errorStatuses != null ? errorStatuses : config.errorStatuses,
+                    errorStatuses != null ? errors : config.errors,
+                    keepAlive != null ? keepAlive : config.keepAlive);
+        }
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not an integer: " + value);
+        }
+    }
+
+    /**
+     * Returns the delay distribution, or {@code null} to only delay requests with a header.
+     */
+    DelayDistribution delay() {
+        return delay;
+    }
+
+    /**
+     * Returns the response to send to a request instead of an echo, or {@code null} when it should be echoed or get
+     * a bulk payload. In order, a request gets an injected error, the response for its {@code /fixed/<size>} path,
+     * no response for its {@code /bytes/<size>} path, and otherwise the response of the configured size.
+     *
+     * @param uri the request URI, may be {@code null} when there is a fixed response for all requests
+     */
+    FixedResponses.Response select(FixedResponses fixedResponses, CharSequence uri) {
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            ServerMetrics.current().errorInjected();
+            return errors[errors.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(errors.length)];
+        }
+        if (response == null) {
+            return fixedResponses.select(uri);
+        }
+        if (fixedResponses.isForAll()) {
+            return response;
+        }
+        FixedResponses.Response fixed = fixedResponses.select(uri);
+        return fixed != null || fixedResponses.bulkPayload().select(uri) >= 0 ? fixed : response;
+    }
+
+    /**
+     * Whether an HTTP/1.1 connection is kept open after the response.
+     *
+     * @param requested whether the client asked to keep it open
+     */
+    boolean isKeepAlive(boolean requested) {
+        return requested && keepAlive == KeepAlive.CLIENT;
+    }
+
+    /**
+     * Writes the settings, one {@code name=value} line each, in the format of the changes.
+     */
+    void write(StringBuilder out) {
+        for (Map.Entry<String, String> setting : settings().entrySet()) {
+            out.append(setting.getKey()).append('=').append(setting.getValue()).append('\n');
+        }
+    }
+
+    private Map<String, String> settings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("delay", delay == null ? "none" : delay.toString());
+        settings.put("response-size", responseSize < 0 ? "echo" : Integer.toString(responseSize));
+        settings.put("error-rate", Double.toString(errorRate));
+        StringBuilder statuses = new StringBuilder();
+        for (int status : errorStatuses) {
+            statuses.append(statuses.length() == 0 ? "" : ",").append(status);
+        }
+        settings.put("error-statuses", statuses.toString());
+        settings.put("keep-alive", keepAlive.toString());
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> setting : settings().entrySet()) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(setting.getKey()).append('=').append(setting.getValue());
+        }
+        return sb.toString();
+    }
+}
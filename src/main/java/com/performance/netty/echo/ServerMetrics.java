@@ -0,0 +1,552 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Server side metrics. Every event loop records into its own {@link LoopMetrics}, which only that event loop
+ * writes to, so recording never takes a lock. The per loop values are merged when the metrics are scraped.
+ */
+final class ServerMetrics {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] QUANTILES = {0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 0.9999, 1.0};
+
+    private static final List<LoopMetrics> loops = new CopyOnWriteArrayList<>();
+
+    private static final FastThreadLocal<LoopMetrics> current = new FastThreadLocal<LoopMetrics>() {
+        @Override
+        protected LoopMetrics initialValue() {
+            LoopMetrics loopMetrics = new LoopMetrics();
+            loops.add(loopMetrics);
+            return loopMetrics;
+        }
+    };
+
+    // Cumulative histograms, only accessed while scraping
+    private static final Histogram processingTime = newHistogram();
+    private static final Histogram delayTime = newHistogram();
+    private static final Histogram handshakeTime = newHistogram();
+
+    private static volatile BlockingBackend blockingBackend;
+    private static volatile ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    private static volatile AccessLog accessLog;
+    private static volatile TrafficCapture trafficCapture;
+    private static volatile ResponseCompression compression;
+
+    /**
+     * Keeps the active HTTP/2 stream count up to date for a connection.
+     */
+    private static final Http2Connection.Listener streamListener = new Http2ConnectionAdapter() {
+        @Override
+        public void onStreamActive(Http2Stream stream) {
+            current().streamOpened();
+        }
+
+        @Override
+        public void onStreamClosed(Http2Stream stream) {
+            current().streamClosed();
+        }
+    };
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the calling event loop.
+     */
+    static LoopMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Returns a listener recording the processing time of a request, to be added to the write future of the last
+     * part of its response.
+     */
+    static ChannelFutureListener processingTimeListener(long startNanos) {
+        return future -> current().recordProcessingTime(startNanos);
+    }
+
+    static <T extends Http2ConnectionHandler> T trackStreams(T handler) {
+        handler.connection().addListener(streamListener);
+        return handler;
+    }
+
+    /**
+     * Exposes the number of responses held by the blocking backend.
+     */
+    static void trackBlockingBackend(BlockingBackend backend) {
+        blockingBackend = backend;
+    }
+
+    /**
+     * Exposes the memory usage of the allocator of the server channels.
+     */
+    static void trackAllocator(ByteBufAllocator serverAllocator) {
+        allocator = serverAllocator;
+    }
+
+    /**
+     * Exposes the records written to and dropped by the access log.
+     */
+    static void trackAccessLog(AccessLog log) {
+        accessLog = log;
+    }
+
+    /**
+     * Exposes the requests captured and dropped by the traffic capture.
+     */
+    static void trackTrafficCapture(TrafficCapture capture) {
+        trafficCapture = capture;
+    }
+
+    /**
+     * Exposes the size of the cache of compressed responses.
+     */
+    static void trackCompression(ResponseCompression responseCompression) {
+        compression = responseCompression;
+    }
+
+    static ByteBufAllocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Returns the sum of a counter over all event loops.
+     */
+    static long sum(AtomicLongFieldUpdater<LoopMetrics> counter) {
+        long sum = 0;
+        for (LoopMetrics loop : loops) {
+            sum += counter.get(loop);
+        }
+        return sum;
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    static synchronized void writePrometheus(StringBuilder out) {
+        long bytesIn = 0;
+        long bytesOut = 0;
+        long connectionsOpened = 0;
+        long connectionsClosed = 0;
+        long connectionsRejected = 0;
+        long connectionsPaused = 0;
+        long connectionsResumed = 0;
+        long streamsOpened = 0;
+        long streamsClosed = 0;
+        long fullHandshakes = 0;
+        long resumedHandshakes = 0;
+        long failedHandshakes = 0;
+        long webSocketsOpened = 0;
+        long webSocketsClosed = 0;
+        long webSocketFrames = 0;
+        long webSocketBytes = 0;
+        long errorsInjected = 0;
+        collectHistograms();
+        for (LoopMetrics loop : loops) {
+            bytesIn += LoopMetrics.BYTES_IN.get(loop);
+            bytesOut += LoopMetrics.BYTES_OUT.get(loop);
+            connectionsOpened += LoopMetrics.CONNECTIONS_OPENED.get(loop);
+            connectionsClosed += LoopMetrics.CONNECTIONS_CLOSED.get(loop);
+            connectionsRejected += LoopMetrics.CONNECTIONS_REJECTED.get(loop);
+            connectionsPaused += LoopMetrics.CONNECTIONS_PAUSED.get(loop);
+            connectionsResumed += LoopMetrics.CONNECTIONS_RESUMED.get(loop);
+            streamsOpened += LoopMetrics.STREAMS_OPENED.get(loop);
+            streamsClosed += LoopMetrics.STREAMS_CLOSED.get(loop);
+            fullHandshakes += LoopMetrics.FULL_HANDSHAKES.get(loop);
+            resumedHandshakes += LoopMetrics.RESUMED_HANDSHAKES.get(loop);
+            failedHandshakes += LoopMetrics.FAILED_HANDSHAKES.get(loop);
+            webSocketsOpened += LoopMetrics.WEBSOCKETS_OPENED.get(loop);
+            webSocketsClosed += LoopMetrics.WEBSOCKETS_CLOSED.get(loop);
+            webSocketFrames += LoopMetrics.WEBSOCKET_FRAMES.get(loop);
+            webSocketBytes += LoopMetrics.WEBSOCKET_BYTES.get(loop);
+            errorsInjected += LoopMetrics.ERRORS_INJECTED.get(loop);
+        }
+
+        writeSummary(out, "echo_processing_time_seconds",
+                "Time from reading a request to writing the complete response, including any delay",
+                processingTime);
+        writeSummary(out, "echo_delay_seconds", "Time responses actually spent delayed", delayTime);
+        writeMetric(out, "echo_injected_errors_total", "counter",
+                "Requests answered with an error by the error-rate of the runtime config", errorsInjected);
+        writeMetric(out, "echo_received_bytes_total", "counter", "Bytes read from client connections", bytesIn);
+        writeMetric(out, "echo_sent_bytes_total", "counter", "Bytes written to client connections", bytesOut);
+        writeMetric(out, "echo_connections_total", "counter", "Accepted client connections", connectionsOpened);
+        writeMetric(out, "echo_connections_active", "gauge", "Open client connections",
+                connectionsOpened - connectionsClosed);
+        writeMetric(out, "echo_connections_rejected_total", "counter",
+                "Connections closed right away because the maximum number of connections was reached",
+                connectionsRejected);
+        writeMetric(out, "echo_connections_paused_total", "counter",
+                "Times a connection stopped being read from, because it was not writable or had too many requests " +
+                        "in flight", connectionsPaused);
+        writeMetric(out, "echo_connections_paused", "gauge", "Connections currently not read from",
+                connectionsPaused - connectionsResumed);
+        writeMetric(out, "echo_http2_streams_total", "counter", "HTTP/2 streams opened", streamsOpened);
+        writeMetric(out, "echo_http2_streams_active", "gauge", "Active HTTP/2 streams", streamsOpened - streamsClosed);
+        writeSummary(out, "echo_tls_handshake_time_seconds",
+                "Time from accepting a connection to completing its TLS handshake", handshakeTime);
+        writeMetric(out, "echo_tls_full_handshakes_total", "counter", "TLS handshakes establishing a new session",
+                fullHandshakes);
+        writeMetric(out, "echo_tls_resumed_handshakes_total", "counter",
+                "TLS handshakes resuming a cached session or a session ticket", resumedHandshakes);
+        writeMetric(out, "echo_tls_failed_handshakes_total", "counter", "Failed TLS handshakes", failedHandshakes);
+        writeMetric(out, "echo_websocket_connections_total", "counter", "Connections upgraded to WebSocket",
+                webSocketsOpened);
+        writeMetric(out, "echo_websocket_connections_active", "gauge", "Open WebSocket connections",
+                webSocketsOpened - webSocketsClosed);
+        writeMetric(out, "echo_websocket_frames_total", "counter",
+                "WebSocket text, binary and continuation frames echoed", webSocketFrames);
+        writeMetric(out, "echo_websocket_bytes_total", "counter", "Payload bytes of the WebSocket frames echoed",
+                webSocketBytes);
+        BlockingBackend backend = blockingBackend;
+        if (backend != null) {
+            writeMetric(out, "echo_blocking_backend_pending", "gauge",
+                    "Responses held by the blocking backend, blocked or queued for a thread", backend.pending());
+        }
+        AccessLog log = accessLog;
+        if (log != null) {
+            writeMetric(out, "echo_access_log_records_total", "counter", "Requests recorded in the access log",
+                    log.records());
+            writeMetric(out, "echo_access_log_dropped_total", "counter",
+                    "Access log records dropped because the buffer of their event loop was full", log.dropped());
+        }
+        TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            writeMetric(out, "echo_capture_requests_total", "counter", "Requests captured", capture.records());
+            writeMetric(out, "echo_capture_bytes_total", "counter", "Bytes of captured requests", capture.bytes());
+            writeMetric(out, "echo_capture_dropped_total", "counter",
+                    "Requests not captured because they did not fit into the buffer of their event loop",
+                    capture.dropped());
+        }
+        ResponseCompression responseCompression = compression;
+        if (responseCompression != null) {
+            writeMetric(out, "echo_compression_cache_hits_total", "counter",
+                    "Response bodies whose compressed form was found in the cache",
+                    sum(LoopMetrics.COMPRESSION_HITS));
+            writeMetric(out, "echo_compression_cache_misses_total", "counter", "Response bodies compressed",
+                    sum(LoopMetrics.COMPRESSION_MISSES));
+            writeMetric(out, "echo_compression_cpu_seconds_total", "counter",
+                    "CPU time of the event loops spent compressing response bodies",
+                    toSeconds(TimeUnit.NANOSECONDS.toMicros(sum(LoopMetrics.COMPRESSION_NANOS))));
+            writeMetric(out, "echo_compression_input_bytes_total", "counter",
+                    "Bytes of the response bodies before compression", sum(LoopMetrics.COMPRESSION_BYTES_IN));
+            writeMetric(out, "echo_compression_output_bytes_total", "counter",
+                    "Bytes of the response bodies after compression", sum(LoopMetrics.COMPRESSION_BYTES_OUT));
+            writeMetric(out, "echo_compression_cache_bytes", "gauge",
+                    "Bytes of the compressed bodies in the cache, with an overhead per entry",
+                    responseCompression.cachedBytes());
+            writeMetric(out, "echo_compression_cache_entries", "gauge", "Compressed bodies in the cache",
+                    responseCompression.cachedEntries());
+        }
+        writeAllocatorMetrics(out);
+    }
+
+    /**
+     * Writes a short summary of the live traffic, one {@code name=value} line each, for the runtime config endpoint.
+     */
+    static synchronized void writeStats(StringBuilder out) {
+        collectHistograms();
+        out.append("connections-active=").append(sum(LoopMetrics.CONNECTIONS_OPENED) -
+                sum(LoopMetrics.CONNECTIONS_CLOSED)).append('\n');
+        out.append("http2-streams-active=").append(sum(LoopMetrics.STREAMS_OPENED) -
+                sum(LoopMetrics.STREAMS_CLOSED)).append('\n');
+        out.append("websocket-connections-active=").append(sum(LoopMetrics.WEBSOCKETS_OPENED) -
+                sum(LoopMetrics.WEBSOCKETS_CLOSED)).append('\n');
+        out.append("requests=").append(processingTime.getTotalCount()).append('\n');
+        out.append("injected-errors=").append(sum(LoopMetrics.ERRORS_INJECTED)).append('\n');
+        out.append("received-bytes=").append(sum(LoopMetrics.BYTES_IN)).append('\n');
+        out.append("sent-bytes=").append(sum(LoopMetrics.BYTES_OUT)).append('\n');
+        if (compression != null) {
+            long hits = sum(LoopMetrics.COMPRESSION_HITS);
+            long lookups = hits + sum(LoopMetrics.COMPRESSION_MISSES);
+            out.append("compression-cache-hit-rate=").append(String.format(Locale.ROOT, "%.3f",
+                    lookups == 0 ? 0 : (double) hits / lookups)).append('\n');
+        }
+        out.append("processing-time-p50=").append(toSeconds(processingTime.getValueAtPercentile(50))).append("s\n");
+        out.append("processing-time-p99=").append(toSeconds(processingTime.getValueAtPercentile(99))).append("s\n");
+    }
+
+    /**
+     * Adds what the event loops recorded since the last call to the histograms of the whole server.
+     */
+    private static void collectHistograms() {
+        for (LoopMetrics loop : loops) {
+            processingTime.add(loop.processingTime.getIntervalHistogram());
+            delayTime.add(loop.delayTime.getIntervalHistogram());
+            handshakeTime.add(loop.handshakeTime.getIntervalHistogram());
+        }
+    }
+
+    private static void writeAllocatorMetrics(StringBuilder out) {
+        ByteBufAllocator alloc = allocator;
+        if (!(alloc instanceof ByteBufAllocatorMetricProvider)) {
+            return;
+        }
+        ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) alloc).metric();
+        writeMetric(out, "echo_allocator_used_direct_bytes", "gauge", "Direct memory used by the buffer allocator",
+                metric.usedDirectMemory());
+        writeMetric(out, "echo_allocator_used_heap_bytes", "gauge", "Heap memory used by the buffer allocator",
+                metric.usedHeapMemory());
+        if (metric instanceof PooledByteBufAllocatorMetric) {
+            PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+            writeMetric(out, "echo_allocator_direct_arenas", "gauge", "Direct arenas of the pooled allocator",
+                    pooled.numDirectArenas());
+            writeMetric(out, "echo_allocator_heap_arenas", "gauge", "Heap arenas of the pooled allocator",
+                    pooled.numHeapArenas());
+            writeMetric(out, "echo_allocator_thread_local_caches", "gauge",
+                    "Thread local caches of the pooled allocator", pooled.numThreadLocalCaches());
+            writeMetric(out, "echo_allocator_chunk_size_bytes", "gauge", "Chunk size of the pooled allocator",
+                    pooled.chunkSize());
+        }
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String help, Histogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            long micros = histogram.getTotalCount() == 0 ? 0 : histogram.getValueAtPercentile(quantile * 100);
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(toSeconds(micros)).append('\n');
+        }
+        // HdrHistogram does not keep an exact sum, the mean is exact to the histogram precision
+        out.append(name).append("_sum ")
+                .append(toSeconds((long) (histogram.getMean() * histogram.getTotalCount()))).append('\n');
+        out.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    private static void writeMetric(StringBuilder out, String name, String type, String help, long value) {
+        writeMetric(out, name, type, help, Long.toString(value));
+    }
+
+    private static void writeMetric(StringBuilder out, String name, String type, String help, String value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String toSeconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    /**
+     * Metrics recorded by a single event loop. The counters are only written by the owning thread, so they are
+     * updated with ordered (lazy) stores instead of atomic read-modify-write operations.
+     */
+    static final class LoopMetrics {
+
+        static final AtomicLongFieldUpdater<LoopMetrics> BYTES_IN =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "bytesIn");
+        static final AtomicLongFieldUpdater<LoopMetrics> BYTES_OUT =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "bytesOut");
+        static final AtomicLongFieldUpdater<LoopMetrics> CONNECTIONS_OPENED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "connectionsOpened");
+        static final AtomicLongFieldUpdater<LoopMetrics> CONNECTIONS_CLOSED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "connectionsClosed");
+        static final AtomicLongFieldUpdater<LoopMetrics> CONNECTIONS_REJECTED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "connectionsRejected");
+        static final AtomicLongFieldUpdater<LoopMetrics> CONNECTIONS_PAUSED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "connectionsPaused");
+        static final AtomicLongFieldUpdater<LoopMetrics> CONNECTIONS_RESUMED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "connectionsResumed");
+        static final AtomicLongFieldUpdater<LoopMetrics> STREAMS_OPENED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "streamsOpened");
+        static final AtomicLongFieldUpdater<LoopMetrics> STREAMS_CLOSED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "streamsClosed");
+        static final AtomicLongFieldUpdater<LoopMetrics> FULL_HANDSHAKES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "fullHandshakes");
+        static final AtomicLongFieldUpdater<LoopMetrics> RESUMED_HANDSHAKES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "resumedHandshakes");
+        static final AtomicLongFieldUpdater<LoopMetrics> FAILED_HANDSHAKES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "failedHandshakes");
+        static final AtomicLongFieldUpdater<LoopMetrics> WEBSOCKETS_OPENED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "webSocketsOpened");
+        static final AtomicLongFieldUpdater<LoopMetrics> WEBSOCKETS_CLOSED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "webSocketsClosed");
+        static final AtomicLongFieldUpdater<LoopMetrics> WEBSOCKET_FRAMES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "webSocketFrames");
+        static final AtomicLongFieldUpdater<LoopMetrics> WEBSOCKET_BYTES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "webSocketBytes");
+        static final AtomicLongFieldUpdater<LoopMetrics> ERRORS_INJECTED =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "errorsInjected");
+        static final AtomicLongFieldUpdater<LoopMetrics> COMPRESSION_HITS =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "compressionHits");
+        static final AtomicLongFieldUpdater<LoopMetrics> COMPRESSION_MISSES =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "compressionMisses");
+        static final AtomicLongFieldUpdater<LoopMetrics> COMPRESSION_NANOS =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "compressionNanos");
+        static final AtomicLongFieldUpdater<LoopMetrics> COMPRESSION_BYTES_IN =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "compressionBytesIn");
+        static final AtomicLongFieldUpdater<LoopMetrics> COMPRESSION_BYTES_OUT =
+                AtomicLongFieldUpdater.newUpdater(LoopMetrics.class, "compressionBytesOut");
+
+        private final SingleWriterRecorder processingTime =
+                new SingleWriterRecorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final SingleWriterRecorder delayTime =
+                new SingleWriterRecorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private final SingleWriterRecorder handshakeTime =
+                new SingleWriterRecorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+        private volatile long bytesIn;
+        private volatile long bytesOut;
+        private volatile long connectionsOpened;
+        private volatile long connectionsClosed;
+        private volatile long connectionsRejected;
+        private volatile long connectionsPaused;
+        private volatile long connectionsResumed;
+        private volatile long streamsOpened;
+        private volatile long streamsClosed;
+        private volatile long fullHandshakes;
+        private volatile long resumedHandshakes;
+        private volatile long failedHandshakes;
+        private volatile long webSocketsOpened;
+        private volatile long webSocketsClosed;
+        private volatile long webSocketFrames;
+        private volatile long webSocketBytes;
+        private volatile long errorsInjected;
+        private volatile long compressionHits;
+        private volatile long compressionMisses;
+        private volatile long compressionNanos;
+        private volatile long compressionBytesIn;
+        private volatile long compressionBytesOut;
+
+        private LoopMetrics() {
+        }
+
+        /**
+         * Records the processing time of a request which started at the given {@link System#nanoTime()}.
+         */
+        void recordProcessingTime(long startNanos) {
+            record(processingTime, startNanos);
+        }
+
+        /**
+         * Records the time a delayed response waited, given the {@link System#nanoTime()} it was scheduled at.
+         */
+        void recordDelay(long scheduledNanos) {
+            record(delayTime, scheduledNanos);
+        }
+
+        /**
+         * Records a completed TLS handshake of a connection which became active at the given
+         * {@link System#nanoTime()}.
+         */
+        void recordHandshake(long startNanos, boolean resumed) {
+            record(handshakeTime, startNanos);
+            if (resumed) {
+                RESUMED_HANDSHAKES.lazySet(this, resumedHandshakes + 1);
+            } else {
+                FULL_HANDSHAKES.lazySet(this, fullHandshakes + 1);
+            }
+        }
+
+        void handshakeFailed() {
+            FAILED_HANDSHAKES.lazySet(this, failedHandshakes + 1);
+        }
+
+        private static void record(SingleWriterRecorder recorder, long startNanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+            recorder.recordValue(Math.min(micros, HIGHEST_TRACKABLE_MICROS));
+        }
+
+        void addBytesIn(long bytes) {
+            BYTES_IN.lazySet(this, bytesIn + bytes);
+        }
+
+        void addBytesOut(long bytes) {
+            BYTES_OUT.lazySet(this, bytesOut + bytes);
+        }
+
+        void connectionOpened() {
+            CONNECTIONS_OPENED.lazySet(this, connectionsOpened + 1);
+        }
+
+        void connectionClosed() {
+            CONNECTIONS_CLOSED.lazySet(this, connectionsClosed + 1);
+        }
+
+        void connectionRejected() {
+            CONNECTIONS_REJECTED.lazySet(this, connectionsRejected + 1);
+        }
+
+        void connectionPaused() {
+            CONNECTIONS_PAUSED.lazySet(this, connectionsPaused + 1);
+        }
+
+        void connectionResumed() {
+            CONNECTIONS_RESUMED.lazySet(this, connectionsResumed + 1);
+        }
+
+        void streamOpened() {
+            STREAMS_OPENED.lazySet(this, streamsOpened + 1);
+        }
+
+        void streamClosed() {
+            STREAMS_CLOSED.lazySet(this, streamsClosed + 1);
+        }
+
+        void webSocketOpened() {
+            WEBSOCKETS_OPENED.lazySet(this, webSocketsOpened + 1);
+        }
+
+        void webSocketClosed() {
+            WEBSOCKETS_CLOSED.lazySet(this, webSocketsClosed + 1);
+        }
+
+        /**
+         * Records an echoed WebSocket data frame with the given payload size.
+         */
+        void webSocketFrame(long bytes) {
+            WEBSOCKET_FRAMES.lazySet(this, webSocketFrames + 1);
+            WEBSOCKET_BYTES.lazySet(this, webSocketBytes + bytes);
+        }
+
+        void errorInjected() {
+            ERRORS_INJECTED.lazySet(this, errorsInjected + 1);
+        }
+
+        /**
+         * Records a response body whose compressed form was taken from the cache.
+         */
+        void compressionHit(long bytesIn, long bytesOut) {
+            COMPRESSION_HITS.lazySet(this, compressionHits + 1);
+            addCompressionBytes(bytesIn, bytesOut);
+        }
+
+        /**
+         * Records a response body compressed in the given CPU time.
+         */
+        void compressionMiss(long nanos, long bytesIn, long bytesOut) {
+            COMPRESSION_MISSES.lazySet(this, compressionMisses + 1);
+            COMPRESSION_NANOS.lazySet(this, compressionNanos + nanos);
+            addCompressionBytes(bytesIn, bytesOut);
+        }
+
+        private void addCompressionBytes(long bytesIn, long bytesOut) {
+            COMPRESSION_BYTES_IN.lazySet(this, compressionBytesIn + bytesIn);
+            COMPRESSION_BYTES_OUT.lazySet(this, compressionBytesOut + bytesOut);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TLS context of the server, which new connections take their {@link io.netty.handler.ssl.SslHandler} from.
+ * <p>
+ * Clients can resume their sessions instead of doing a full handshake, either from the session cache of the context
+ * or with a session ticket. The ticket keys are generated by the server and rotated periodically, keeping the
+ * previous keys to decrypt the tickets issued before a rotation.
+ * <p>
+ * When the key store file changes on disk, a new context is built from it and swapped in. Connections which are
+ * already open keep the context they were accepted with. The ticket keys are carried over to the new context, so
+ * clients holding a ticket can still resume.
+ */
+final class ServerSslContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerSslContext.class);
+
+    /**
+     * Builds the TLS context from its source, once at startup and again on every reload.
+     */
+    interface Factory {
+        SslContext build() throws SSLException, CertificateException;
+    }
+
+    private final Factory factory;
+    private final int ticketKeyCount;
+    private final SecureRandom random = new SecureRandom();
+    // Newest first, the first key encrypts new tickets. Only accessed under the lock of this instance
+    private final Deque<OpenSslSessionTicketKey> ticketKeys = new ArrayDeque<>();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tls-context", true));
+    private volatile SslContext context;
+
+    /**
+     * @param factory        builds the context
+     * @param ticketKeyCount session ticket keys kept, the current one and the previous ones still accepted
+     */
+    ServerSslContext(Factory factory, int ticketKeyCount) throws SSLException, CertificateException {
+        if (ticketKeyCount < 1) {
+            throw new IllegalArgumentException("ticketKeyCount (expected >= 1): " + ticketKeyCount);
+        }
+        this.factory = factory;
+        this.ticketKeyCount = ticketKeyCount;
+        this.context = factory.build();
+        rotateTicketKeys();
+    }
+
+    /**
+     * Returns the handlers to add to a new connection: the TLS handler and the handler recording its handshake.
+     */
+    ChannelHandler[] newHandlers(ByteBufAllocator alloc) {
+        return new ChannelHandler[]{context.newHandler(alloc), new TlsHandshakeMetricsHandler()};
+    }
+
+    /**
+     * Rotates the session ticket keys at the given interval, 0 to never rotate them.
+     */
+    void rotateTicketKeys(long intervalSeconds) {
+        if (intervalSeconds > 0) {
+            executor.scheduleAtFixedRate(this::rotateTicketKeys, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Checks the key store file for changes at the given interval and reloads the context when it changed.
+     */
+    void watch(File keyStoreFile, long intervalSeconds) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            private long lastModified = keyStoreFile.lastModified();
+            private long length = keyStoreFile.length();
+
+            @Override
+            public void run() {
+                long modified = keyStoreFile.lastModified();
+                long newLength = keyStoreFile.length();
+                if (modified == lastModified && newLength == length) {
+                    return;
+                }
+                lastModified = modified;
+                length = newLength;
+                reload(keyStoreFile);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void reload(File keyStoreFile) {
+        SslContext newContext;
+        try {
+            newContext = factory.build();
+        } catch (Exception e) {
+            logger.warn("Failed to reload the key store {}, keeping the current SSL context", keyStoreFile, e);
+            return;
+        }
+        synchronized (this) {
+            setTicketKeys(newContext);
+            context = newContext;
+        }
+        logger.info("Reloaded the SSL context from the key store {}", keyStoreFile);
+    }
+
+    private synchronized void rotateTicketKeys() {
+        ticketKeys.addFirst(newTicketKey());
+        while (ticketKeys.size() > ticketKeyCount) {
+            ticketKeys.removeLast();
+        }
+        setTicketKeys(context);
+    }
+
+    private void setTicketKeys(SslContext sslContext) {
+        SSLSessionContext sessionContext = sslContext.sessionContext();
+        if (sessionContext instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) sessionContext)
+                    .setTicketKeys(ticketKeys.toArray(new OpenSslSessionTicketKey[0]));
+        }
+    }
+
+    private OpenSslSessionTicketKey newTicketKey() {
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
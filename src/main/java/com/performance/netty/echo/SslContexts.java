@@ -0,0 +1,41 @@
+package com.performance.netty.echo;
+
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+/**
+ * TLS settings shared by the echo server and the load generator, so that both ends negotiate the same way.
+ */
+final class SslContexts {
+
+    private SslContexts() {
+    }
+
+    /**
+     * Enables ALPN with HTTP/2 preferred over HTTP/1.1, and restricts the ciphers to the ones allowed for HTTP/2.
+     */
+    static SslContextBuilder configureHttp2(SslContextBuilder sslContextBuilder) {
+        ApplicationProtocolConfig protocolConfig =
+                new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
+        return sslContextBuilder.applicationProtocolConfig(protocolConfig)
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+    }
+
+    /**
+     * Client side builder. Server certificates are not verified, the echo server normally runs with a self signed
+     * certificate.
+     */
+    static SslContextBuilder forClient() {
+        return SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .sslProvider(SslProvider.OPENSSL);
+    }
+}
@@ -0,0 +1,50 @@
+package com.performance.netty.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.internal.tcnative.SSL;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Records the TLS handshake of a connection: its time, counted from the connection becoming active, and whether the
+ * client resumed an earlier session or did a full handshake. Added right after the {@link SslHandler}, it removes
+ * itself once the handshake completed.
+ */
+final class TlsHandshakeMetricsHandler extends ChannelInboundHandlerAdapter {
+
+    private long startNanos;
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        startNanos = System.nanoTime();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent) {
+            ServerMetrics.LoopMetrics metrics = ServerMetrics.current();
+            if (((SslHandshakeCompletionEvent) evt).isSuccess()) {
+                SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+                metrics.recordHandshake(startNanos, sslHandler != null && isSessionReused(sslHandler.engine()));
+            } else {
+                metrics.handshakeFailed();
+            }
+            ctx.pipeline().remove(this);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    private static boolean isSessionReused(SSLEngine engine) {
+        if (!(engine instanceof ReferenceCountedOpenSslEngine)) {
+            return false;
+        }
+        // The engine is already freed when the client closed the connection right after the handshake
+        long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+        return ssl != 0 && SSL.isSessionReused(ssl);
+    }
+}
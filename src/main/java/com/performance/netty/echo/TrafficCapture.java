@@ -0,0 +1,505 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the requests reaching the server, so that the same traffic can be sent again with the {@code replay}
+ * command, see {@link TrafficReplay}. Like the {@link AccessLog}, the event loops never write to a file or take a
+ * lock: a request is copied to a ring buffer of its event loop once it has been read completely, and a single
+ * background thread drains the rings into memory-mapped segment files. Requests which do not fit into the free space
+ * of their ring are dropped and counted.
+ * <p>
+ * The segments, see {@link MappedSegments}, have the magic {@code ECAP} and records of different sizes. All numbers
+ * are big-endian:
+ * <pre>
+ *  0 int   size of the record, a multiple of 8 including the padding at its end
+ *  4 byte  protocol: 1 HTTP/1.0, 2 HTTP/1.1, 3 HTTP/2
+ *  5 byte  reserved
+ *  6 short method length
+ *  8 long  time the request headers were read, microseconds since the epoch
+ * 16 int   path length
+ * 20 int   headers length
+ * 24 int   body length
+ * 28 int   reserved
+ * 32       method, path, headers as "name: value\r\n" lines, body, padding
+ * </pre>
+ * The HTTP/2 pseudo-headers other than the method and path are not captured, except the authority which is recorded
+ * as a {@code host} header. Trailers are not captured.
+ */
+final class TrafficCapture {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficCapture.class);
+
+    static final int MAGIC = 0x45434150;
+    static final short VERSION = 1;
+    static final int RECORD_HEADER_SIZE = 32;
+    static final String SEGMENT_PREFIX = "capture";
+
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File directory;
+    private final int ringCapacity;
+    private final long segmentSize;
+    private final int maxSegments;
+    // Only accessed by the drain thread
+    private final MappedSegments segments;
+    // The wall clock time of the capture, advanced with the monotonic clock
+    private final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long startNanos = System.nanoTime();
+
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Ring> current = new FastThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(ringCapacity);
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    private final Thread drainThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param directory    directory of the segment files
+     * @param ringCapacity bytes buffered for every event loop, a power of two. Larger requests are not captured
+     * @param segmentSize  size of a segment file in bytes, at least the ring capacity
+     * @param maxSegments  segment files kept, the oldest ones are deleted
+     * @throws IllegalArgumentException when a size is invalid
+     */
+    TrafficCapture(File directory, int ringCapacity, long segmentSize, int maxSegments) {
+        if (ringCapacity < RECORD_HEADER_SIZE || Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("ringCapacity (expected a power of two >= " + RECORD_HEADER_SIZE +
+                    "): " + ringCapacity);
+        }
+        long minSegmentSize = MappedSegments.HEADER_SIZE + (long) ringCapacity;
+        if (segmentSize < minSegmentSize || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize (expected >= " + minSegmentSize + " and <= " +
+                    Integer.MAX_VALUE + "): " + segmentSize);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments (expected >= 1): " + maxSegments);
+        }
+        this.directory = directory;
+        this.ringCapacity = ringCapacity;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.segments = new MappedSegments(directory, SEGMENT_PREFIX, MAGIC, VERSION, 0, segmentSize, maxSegments);
+        this.drainThread = new Thread(this::drainLoop, "traffic-capture");
+        this.drainThread.setDaemon(true);
+    }
+
+    /**
+     * Starts draining the rings into the segment files.
+     *
+     * @throws IOException when the directory cannot be created
+     */
+    void start() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the capture directory " + directory);
+        }
+        drainThread.start();
+    }
+
+    /**
+     * Stops the drain thread once it has written out the requests buffered so far.
+     */
+    void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainThread);
+        drainThread.join();
+    }
+
+    /**
+     * Returns a new handler capturing the requests of a connection, added after the HTTP/1.1 decoder or the HTTP/2
+     * frame codec.
+     */
+    Handler newHandler() {
+        return new Handler(this);
+    }
+
+    long records() {
+        long records = 0;
+        for (Ring ring : rings) {
+            records += ring.records;
+        }
+        return records;
+    }
+
+    long bytes() {
+        long bytes = 0;
+        for (Ring ring : rings) {
+            bytes += ring.tail;
+        }
+        return bytes;
+    }
+
+    long dropped() {
+        long dropped = 0;
+        for (Ring ring : rings) {
+            dropped += ring.dropped;
+        }
+        return dropped;
+    }
+
+    private long nowMicros() {
+        return startMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "directory=" + directory + ", ringCapacity=" + ringCapacity + ", segmentSize=" + segmentSize +
+                ", maxSegments=" + maxSegments;
+    }
+
+    private void drainLoop() {
+        try {
+            while (running) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                }
+            }
+            drain();
+            segments.close();
+        } catch (IOException e) {
+            logger.error("Failed to write the traffic capture, no more requests are captured", e);
+            running = false;
+        }
+    }
+
+    /**
+     * Copies the records of all rings to the segment. A record may wrap around the end of its ring.
+     *
+     * @return the number of records copied
+     */
+    private int drain() throws IOException {
+        int drained = 0;
+        for (Ring ring : rings) {
+            long head = ring.head;
+            long tail = ring.tail;
+            while (head < tail) {
+                int index = (int) (head & (ring.capacity - 1));
+                ring.view.clear();
+                int size = ring.view.getInt(index);
+                ByteBuffer segment = segments.reserve(size);
+                int first = Math.min(size, ring.capacity - index);
+                ring.view.position(index);
+                ring.view.limit(index + first);
+                segment.put(ring.view);
+                if (first < size) {
+                    ring.view.clear();
+                    ring.view.limit(size - first);
+                    segment.put(ring.view);
+                }
+                segments.added(1);
+                head += size;
+                drained++;
+            }
+            Ring.HEAD.lazySet(ring, head);
+        }
+        if (drained > 0) {
+            segments.sync();
+        }
+        return drained;
+    }
+
+    /**
+     * Ring of records with a single producer, the event loop, and a single consumer, the drain thread. Records are
+     * aligned to 8 bytes, so that the size at their start never wraps around the end. The producer only moves the
+     * tail and the consumer only the head, both with ordered stores.
+     */
+    private static final class Ring {
+        static final AtomicLongFieldUpdater<Ring> HEAD = AtomicLongFieldUpdater.newUpdater(Ring.class, "head");
+        static final AtomicLongFieldUpdater<Ring> TAIL = AtomicLongFieldUpdater.newUpdater(Ring.class, "tail");
+        static final AtomicLongFieldUpdater<Ring> RECORDS = AtomicLongFieldUpdater.newUpdater(Ring.class, "records");
+        static final AtomicLongFieldUpdater<Ring> DROPPED = AtomicLongFieldUpdater.newUpdater(Ring.class, "dropped");
+        static final ByteBuf PADDING = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[7]));
+
+        final int capacity;
+        // Used by the event loop only
+        final ByteBuffer buffer;
+        final ByteBuf recordHeader = Unpooled.buffer(RECORD_HEADER_SIZE, RECORD_HEADER_SIZE);
+        // Used by the drain thread only
+        final ByteBuffer view;
+        // Byte positions in the ring
+        volatile long head;
+        volatile long tail;
+        volatile long records;
+        volatile long dropped;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.view = buffer.duplicate();
+        }
+
+        void add(Request request) {
+            int unpadded = RECORD_HEADER_SIZE + request.head.readableBytes() + request.bodyLength;
+            int size = (unpadded + 7) & ~7;
+            long t = tail;
+            if (request.truncated || size > capacity - (t - head)) {
+                DROPPED.lazySet(this, dropped + 1);
+                return;
+            }
+            recordHeader.clear()
+                    .writeInt(size)
+                    .writeByte(request.protocol)
+                    .writeByte(0)
+                    .writeShort(request.methodLength)
+                    .writeLong(request.timeMicros)
+                    .writeInt(request.pathLength)
+                    .writeInt(request.head.readableBytes() - request.methodLength - request.pathLength)
+                    .writeInt(request.bodyLength)
+                    .writeInt(0);
+            long position = put(t, recordHeader);
+            position = put(position, request.head);
+            if (request.body != null) {
+                position = put(position, request.body);
+            }
+            put(position, PADDING.slice(0, size - unpadded));
+            RECORDS.lazySet(this, records + 1);
+            TAIL.lazySet(this, t + size);
+        }
+
+        private long put(long position, ByteBuf src) {
+            int index = src.readerIndex();
+            int remaining = src.readableBytes();
+            while (remaining > 0) {
+                int offset = (int) (position & (capacity - 1));
+                int length = Math.min(remaining, capacity - offset);
+                buffer.limit(offset + length).position(offset);
+                src.getBytes(index, buffer);
+                index += length;
+                remaining -= length;
+                position += length;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Follows the requests of a connection, and adds each of them to the ring of its event loop once it has been
+     * read completely. The request bodies are retained until then rather than copied. Requests of reset streams are
+     * not captured.
+     */
+    static final class Handler extends ChannelInboundHandlerAdapter {
+
+        private final TrafficCapture capture;
+        // The HTTP/1.1 request being read
+        private Request http1Request;
+        // HTTP/2 streams whose request is being read, created on the first one
+        private IntObjectMap<Request> http2Requests;
+
+        private Handler(TrafficCapture capture) {
+            this.capture = capture;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof LeanHttpRequest) {
+                // Complete already, with its body aggregated
+                LeanHttpRequest request = (LeanHttpRequest) msg;
+                Request captured = new Request(ctx, request.isHttp10() ? AccessLog.PROTOCOL_HTTP_1_0 :
+                        AccessLog.PROTOCOL_HTTP_1_1, capture.nowMicros(), request.method().asciiName(), request.uri());
+                for (int i = 0; i < request.headerCount(); i++) {
+                    captured.addHeader(request.headerName(i), request.headerValue(i));
+                }
+                captured.addContent(request.content(), capture.ringCapacity);
+                complete(captured);
+            }
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                if (http1Request != null) {
+                    http1Request.release();
+                }
+                byte protocol = HttpVersion.HTTP_1_0.equals(request.protocolVersion()) ?
+                        AccessLog.PROTOCOL_HTTP_1_0 : AccessLog.PROTOCOL_HTTP_1_1;
+                http1Request = new Request(ctx, protocol, capture.nowMicros(), request.method().asciiName(),
+                        request.uri());
+                Iterator<Map.Entry<CharSequence, CharSequence>> headers = request.headers().iteratorCharSequence();
+                while (headers.hasNext()) {
+                    Map.Entry<CharSequence, CharSequence> header = headers.next();
+                    http1Request.addHeader(header.getKey(), header.getValue());
+                }
+            }
+            if (msg instanceof HttpContent) {
+                if (http1Request != null) {
+                    http1Request.addContent(((HttpContent) msg).content(), capture.ringCapacity);
+                    if (msg instanceof LastHttpContent) {
+                        complete(http1Request);
+                        http1Request = null;
+                    }
+                }
+            } else if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame headersFrame = (Http2HeadersFrame) msg;
+                if (http2Requests == null) {
+                    http2Requests = new IntObjectHashMap<>();
+                }
+                int streamId = headersFrame.stream().id();
+                Request request = http2Requests.get(streamId);
+                // Trailers complete the request created for the headers
+                if (request == null) {
+                    request = newHttp2Request(ctx, headersFrame.headers());
+                    http2Requests.put(streamId, request);
+                }
+                if (headersFrame.isEndStream()) {
+                    complete(http2Requests.remove(streamId));
+                }
+            } else if (msg instanceof Http2DataFrame) {
+                Http2DataFrame data = (Http2DataFrame) msg;
+                Request request = http2Request(data);
+                if (request != null) {
+                    request.addContent(data.content(), capture.ringCapacity);
+                    if (data.isEndStream()) {
+                        complete(http2Requests.remove(data.stream().id()));
+                    }
+                }
+            } else if (msg instanceof Http2ResetFrame) {
+                Request request = http2Request((Http2ResetFrame) msg);
+                if (request != null) {
+                    http2Requests.remove(((Http2ResetFrame) msg).stream().id());
+                    request.release();
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private Request newHttp2Request(ChannelHandlerContext ctx, Http2Headers headers) {
+            CharSequence method = headers.method();
+            CharSequence path = headers.path();
+            Request request = new Request(ctx, AccessLog.PROTOCOL_HTTP_2, capture.nowMicros(),
+                    method != null ? method : "", path != null ? path : "");
+            if (headers.authority() != null) {
+                request.addHeader(HttpHeaderNames.HOST, headers.authority());
+            }
+            for (Map.Entry<CharSequence, CharSequence> header : headers) {
+                CharSequence name = header.getKey();
+                if (name.length() == 0 || name.charAt(0) != ':') {
+                    request.addHeader(name, header.getValue());
+                }
+            }
+            return request;
+        }
+
+        private Request http2Request(Http2StreamFrame frame) {
+            return http2Requests == null || frame.stream() == null ? null : http2Requests.get(frame.stream().id());
+        }
+
+        private void complete(Request request) {
+            try {
+                capture.current.get().add(request);
+            } finally {
+                request.release();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (http1Request != null) {
+                http1Request.release();
+                http1Request = null;
+            }
+            if (http2Requests != null) {
+                for (Request request : http2Requests.values()) {
+                    request.release();
+                }
+                http2Requests.clear();
+            }
+            super.channelInactive(ctx);
+        }
+    }
+
+    /**
+     * A request being read: its method, path and headers encoded already, and the parts of its body retained.
+     */
+    private static final class Request {
+        final byte protocol;
+        final long timeMicros;
+        final ByteBuf head;
+        final int methodLength;
+        final int pathLength;
+        // A single buffer until a second part arrives, or null
+        ByteBuf body;
+        int bodyLength;
+        // Whether the body was too large to be captured
+        boolean truncated;
+
+        Request(ChannelHandlerContext ctx, byte protocol, long timeMicros, CharSequence method, CharSequence path) {
+            this.protocol = protocol;
+            this.timeMicros = timeMicros;
+            this.head = ctx.alloc().heapBuffer(256);
+            this.methodLength = ByteBufUtil.writeAscii(head, method);
+            this.pathLength = ByteBufUtil.writeAscii(head, path);
+        }
+
+        void addHeader(CharSequence name, CharSequence value) {
+            ByteBufUtil.writeAscii(head, name);
+            head.writeByte(':').writeByte(' ');
+            ByteBufUtil.writeAscii(head, value);
+            head.writeByte('\r').writeByte('\n');
+        }
+
+        void addContent(ByteBuf content, int maxRecordSize) {
+            int length = content.readableBytes();
+            if (length == 0 || truncated) {
+                return;
+            }
+            if ((long) RECORD_HEADER_SIZE + head.readableBytes() + bodyLength + length > maxRecordSize) {
+                truncated = true;
+                releaseBody();
+                return;
+            }
+            bodyLength += length;
+            if (body == null) {
+                body = content.retainedSlice();
+            } else if (body instanceof CompositeByteBuf) {
+                ((CompositeByteBuf) body).addComponent(true, content.retainedSlice());
+            } else {
+                body = body.alloc().compositeBuffer().addComponents(true, body, content.retainedSlice());
+            }
+        }
+
+        private void releaseBody() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+
+        void release() {
+            head.release();
+            releaseBody();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.performance.netty.echo;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpClientUpgradeHandler;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http2.Http2ClientUpgradeCodec;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.AsciiString;
+import io.netty.util.NettyRuntime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the requests of a {@link TrafficCapture} again. Started with
+ * {@code EchoHttpServer replay [options] <files or directories>}, the segments are read in the order they were
+ * created, and their requests are sent with the time between them in the capture divided by the {@code --speed}, or
+ * as fast as the connections take them with a speed of 0.
+ * <p>
+ * The requests are spread over a pool of connections opened up front, each of them taking up to {@code --pipeline}
+ * HTTP/1.1 requests or {@code --streams} HTTP/2 streams at once. A request due while all connections are busy waits
+ * for the next free one, and its latency still counts from the time it was due, see {@link LoadStatistics}. The
+ * request bodies are sent straight from the memory-mapped segments.
+ */
+public final class TrafficReplay {
+
+    private static final PrintStream consoleOut = System.out;
+
+    private static final PrintStream consoleErr = System.err;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'").withZone(ZoneOffset.UTC);
+
+    @Parameter(description = "Segment files or directories of segment files")
+    private List<String> paths = new ArrayList<>();
+
+    @Parameter(names = "--url", description = "URL of the server to send the requests to, http or https. Only " +
+            "its scheme and authority are used")
+    private String url = "http://localhost:8688/";
+
+    @Parameter(names = "--speed", description = "Replay speed relative to the capture: 2 sends the requests twice " +
+            "as fast, 0 as fast as the connections take them")
+    private double speed = 1;
+
+    @Parameter(names = "--connections", description = "Number of connections")
+    private int connections = 16;
+
+    @Parameter(names = "--http2", description = "Use HTTP/2 instead of HTTP/1.1, whatever protocol the requests " +
+            "were captured with. Cleartext connections are upgraded with h2c")
+    private boolean http2 = false;
+
+    @Parameter(names = "--streams", description = "Maximum concurrent HTTP/2 streams per connection")
+    private int streams = 100;
+
+    @Parameter(names = "--pipeline", description = "HTTP/1.1 pipelining depth per connection")
+    private int pipeline = 1;
+
+    @Parameter(names = "--threads", description = "Event loop threads")
+    private int threads = NettyRuntime.availableProcessors();
+
+    @Parameter(names = "--transport", description = "Socket transport: nio, epoll, io_uring or auto")
+    private Transport transport = Transport.AUTO;
+
+    @Parameter(names = "--print", description = "Print the captured requests instead of sending them")
+    private boolean print = false;
+
+    @Parameter(names = {"-h", "--help"}, description = "Display Help", help = true)
+    private boolean help = false;
+
+    private final LoadStatistics statistics = new LoadStatistics();
+    // One entry per request a connection can take, the same connection is in the queue several times
+    private final BlockingQueue<ReplayHandler> slots = new LinkedBlockingQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicLong outstanding = new AtomicLong();
+    private long startNanos;
+    private long nextReportNanos;
+
+    public static void main(String[] args) throws Exception {
+        TrafficReplay replay = new TrafficReplay();
+        final JCommander jcmdr = new JCommander(replay);
+        jcmdr.setProgramName(EchoHttpServer.class.getSimpleName() + " replay");
+        try {
+            jcmdr.parse(args);
+        } catch (ParameterException ex) {
+            consoleErr.println(ex.getMessage());
+            return;
+        }
+
+        if (replay.help || replay.paths.isEmpty()) {
+            jcmdr.usage();
+            return;
+        }
+
+        replay.run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        List<File> segments = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.exists()) {
+                consoleErr.println("No such file or directory: " + file);
+                continue;
+            }
+            for (File segment : MappedSegments.list(file, TrafficCapture.SEGMENT_PREFIX)) {
+                segments.add(segment);
+            }
+        }
+        if (print) {
+            StringBuilder line = new StringBuilder(128);
+            forEachRequest(segments, request -> {
+                line.setLength(0);
+                TIME_FORMAT.formatTo(Instant.EPOCH.plus(request.timeMicros, ChronoUnit.MICROS), line);
+                line.append(' ').append(AccessLogDecoder.protocolName(request.protocol))
+                        .append(' ').append(request.method)
+                        .append(' ').append(request.path)
+                        .append(' ').append(request.headers.size()).append(" headers")
+                        .append(' ').append(request.body.readableBytes()).append(" bytes");
+                consoleOut.println(line);
+                request.release();
+            });
+            consoleOut.flush();
+            return;
+        }
+
+        URI uri = URI.create(url);
+        boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = uri.getPort() > 0 ? uri.getPort() : ssl ? 443 : 80;
+        String authority = uri.getPort() > 0 ? host + ":" + port : host;
+        String scheme = ssl ? "https" : "http";
+        final SslContext sslCtx;
+        if (ssl) {
+            sslCtx = http2 ? SslContexts.configureHttp2(SslContexts.forClient()).build() :
+                    SslContexts.forClient().build();
+        } else {
+            sslCtx = null;
+        }
+        Transport activeTransport = transport.resolve();
+
+        consoleOut.printf(Locale.ROOT, "Replay of %d segments to %s at %s. Protocol: %s, Connections: %d, " +
+                        "Transport: %s%n", segments.size(), uri, speed > 0 ? speed + "x speed" : "maximum rate",
+                http2 ? "HTTP/2" : "HTTP/1.1", connections, activeTransport);
+
+        EventLoopGroup group = activeTransport.newEventLoopGroup(threads);
+        List<Channel> channels = new ArrayList<>(connections);
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(activeTransport.socketChannelClass())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ChannelPipeline p = ch.pipeline();
+                            if (sslCtx != null) {
+                                p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
+                            }
+                            if (http2) {
+                                ReplayHandler.Http2 handler = new ReplayHandler.Http2(TrafficReplay.this, scheme,
+                                        authority, streams, sslCtx != null);
+                                if (sslCtx != null) {
+                                    p.addLast(handler.connectionHandler());
+                                } else {
+                                    HttpClientCodec sourceCodec = new HttpClientCodec();
+                                    p.addLast(sourceCodec, new HttpClientUpgradeHandler(sourceCodec,
+                                            new Http2ClientUpgradeCodec(handler.connectionHandler()),
+                                            64 * 1024));
+                                }
+                                p.addLast(handler);
+                            } else {
+                                p.addLast(new HttpClientCodec(), new ReplayHandler.Http1(TrafficReplay.this, scheme,
+                                        authority, pipeline, sslCtx != null));
+                            }
+                        }
+                    });
+
+            for (int i = 0; i < connections; i++) {
+                ChannelFuture connectFuture = b.connect(host, port).await();
+                if (!connectFuture.isSuccess()) {
+                    consoleErr.println("Connection failed: " + connectFuture.cause());
+                    statistics.recordConnectionFailure();
+                    continue;
+                }
+                openConnections.incrementAndGet();
+                channels.add(connectFuture.channel());
+            }
+
+            startNanos = System.nanoTime();
+            nextReportNanos = startNanos + TimeUnit.SECONDS.toNanos(1);
+            long[] firstMicros = {-1};
+            forEachRequest(segments, request -> {
+                long intendedNanos = 0;
+                if (speed > 0) {
+                    if (firstMicros[0] < 0) {
+                        firstMicros[0] = request.timeMicros;
+                    }
+                    intendedNanos = startNanos + (long) ((request.timeMicros - firstMicros[0]) * 1000 / speed);
+                    waitUntil(intendedNanos);
+                }
+                ReplayHandler connection = nextSlot();
+                if (connection == null) {
+                    request.release();
+                    throw new IOException("All connections are closed");
+                }
+                outstanding.incrementAndGet();
+                connection.send(request, speed > 0 ? intendedNanos : System.nanoTime());
+            });
+
+            // Give up on responses a while after the last request
+            long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (outstanding.get() > 0 && openConnections.get() > 0 && System.nanoTime() < deadlineNanos) {
+                waitUntil(Math.min(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10), deadlineNanos));
+            }
+            for (Channel channel : channels) {
+                channel.close().await();
+            }
+            LoadGenerator.reportInterval(statistics, startNanos);
+            LoadGenerator.reportTotal(statistics, startNanos);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Waits until the given {@link System#nanoTime()}, reporting the progress every second.
+     */
+    private void waitUntil(long deadlineNanos) {
+        long now;
+        while ((now = System.nanoTime()) < deadlineNanos) {
+            reportIfDue(now);
+            LockSupport.parkNanos(Math.min(deadlineNanos, nextReportNanos) - now);
+        }
+        reportIfDue(now);
+    }
+
+    /**
+     * Returns a connection which can take another request, waiting for one as long as any connection is open.
+     */
+    private ReplayHandler nextSlot() throws InterruptedException {
+        ReplayHandler connection;
+        while ((connection = slots.poll(10, TimeUnit.MILLISECONDS)) == null) {
+            if (openConnections.get() == 0) {
+                return null;
+            }
+            reportIfDue(System.nanoTime());
+        }
+        return connection;
+    }
+
+    private void reportIfDue(long now) {
+        if (now >= nextReportNanos) {
+            nextReportNanos = now + TimeUnit.SECONDS.toNanos(1);
+            LoadGenerator.reportInterval(statistics, startNanos);
+        }
+    }
+
+    LoadStatistics statistics() {
+        return statistics;
+    }
+
+    /**
+     * Called by a connection which is ready for requests.
+     */
+    void connectionReady(ReplayHandler connection, int maxInFlight) {
+        for (int i = 0; i < maxInFlight; i++) {
+            slots.add(connection);
+        }
+    }
+
+    /**
+     * Called when a request is done, with the connection taking the next request or null when it is closed.
+     */
+    void completed(ReplayHandler connection, long intendedNanos, boolean success) {
+        statistics.recordResponse(intendedNanos, success);
+        outstanding.decrementAndGet();
+        if (connection != null) {
+            slots.add(connection);
+        }
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * Reads the requests of the segments in order. The bodies are slices of the mapped segments, to be released
+     * once sent.
+     */
+    private static void forEachRequest(List<File> segments, RequestConsumer consumer)
+            throws IOException, InterruptedException {
+        for (File segment : segments) {
+            ByteBuf buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(segment, "r"); FileChannel channel = raf.getChannel()) {
+                buffer = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+            try {
+                if (buffer.readableBytes() < MappedSegments.HEADER_SIZE ||
+                        buffer.getInt(0) != TrafficCapture.MAGIC) {
+                    throw new IOException(segment + " is not a capture segment");
+                }
+                if (buffer.getShort(4) != TrafficCapture.VERSION) {
+                    throw new IOException("Unsupported capture version " + buffer.getShort(4) + " of " + segment);
+                }
+                long records = buffer.getLong(MappedSegments.RECORD_COUNT_OFFSET);
+                buffer.readerIndex(MappedSegments.HEADER_SIZE);
+                for (long i = 0; i < records; i++) {
+                    CapturedRequest request = CapturedRequest.read(buffer);
+                    if (request == null) {
+                        consoleErr.println(segment + " is truncated");
+                        break;
+                    }
+                    consumer.accept(request);
+                }
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    private interface RequestConsumer {
+        void accept(CapturedRequest request) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A request read from a capture segment.
+     */
+    static final class CapturedRequest {
+        final byte protocol;
+        final long timeMicros;
+        final String method;
+        final String path;
+        final List<Map.Entry<CharSequence, CharSequence>> headers;
+        final ByteBuf body;
+
+        private CapturedRequest(byte protocol, long timeMicros, String method, String path,
+                                List<Map.Entry<CharSequence, CharSequence>> headers, ByteBuf body) {
+            this.protocol = protocol;
+            this.timeMicros = timeMicros;
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Reads the record at the reader index of a segment, or returns null when it is incomplete.
+         */
+        static CapturedRequest read(ByteBuf segment) {
+            int start = segment.readerIndex();
+            if (segment.readableBytes() < TrafficCapture.RECORD_HEADER_SIZE) {
+                return null;
+            }
+            int size = segment.getInt(start);
+            int methodLength = segment.getUnsignedShort(start + 6);
+            int pathLength = segment.getInt(start + 16);
+            int headersLength = segment.getInt(start + 20);
+            int bodyLength = segment.getInt(start + 24);
+            if (size < TrafficCapture.RECORD_HEADER_SIZE || size > segment.readableBytes() || pathLength < 0 ||
+                    headersLength < 0 || bodyLength < 0 || (long) TrafficCapture.RECORD_HEADER_SIZE +
+                    methodLength + pathLength + headersLength + bodyLength > size) {
+                return null;
+            }
+            int index = start + TrafficCapture.RECORD_HEADER_SIZE;
+            String method = segment.toString(index, methodLength, StandardCharsets.US_ASCII);
+            index += methodLength;
+            String path = segment.toString(index, pathLength, StandardCharsets.US_ASCII);
+            index += pathLength;
+            List<Map.Entry<CharSequence, CharSequence>> headers = new ArrayList<>();
+            for (String line : segment.toString(index, headersLength, StandardCharsets.US_ASCII).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.add(new AbstractMap.SimpleImmutableEntry<>(new AsciiString(line.substring(0, colon)),
+                            new AsciiString(line.substring(colon + 1).trim())));
+                }
+            }
+            index += headersLength;
+            ByteBuf body = bodyLength > 0 ? segment.retainedSlice(index, bodyLength) : Unpooled.EMPTY_BUFFER;
+            segment.readerIndex(start + size);
+            return new CapturedRequest(segment.getByte(start + 4), segment.getLong(start + 8), method, path,
+                    headers, body);
+        }
+
+        boolean hasContentLength() {
+            for (Map.Entry<CharSequence, CharSequence> header : headers) {
+                if (HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(header.getKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            body.release();
+        }
+    }
+}
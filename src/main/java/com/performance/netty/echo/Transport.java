@@ -0,0 +1,222 @@
+package com.performance.netty.echo;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Socket transports the server and the load generator can run on. The native transports are only usable on Linux
+ * when their JNI libraries can be loaded; use {@link #resolve()} to fall back to NIO when they are not.
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return null;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new NioEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+    },
+
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return Epoll.unavailabilityCause();
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        boolean supportsReusePort() {
+            return true;
+        }
+
+        @Override
+        ServerBootstrap reusePort(ServerBootstrap b) {
+            return b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+            return EpollServerDomainSocketChannel.class;
+        }
+    },
+
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return IOUring.unavailabilityCause();
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return new IOUringEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelClass() {
+            return IOUringSocketChannel.class;
+        }
+
+        @Override
+        boolean supportsReusePort() {
+            return true;
+        }
+
+        @Override
+        ServerBootstrap reusePort(ServerBootstrap b) {
+            return b.option(IOUringChannelOption.SO_REUSEPORT, true);
+        }
+    },
+
+    /**
+     * Picks the best native transport available on this host, in the order epoll, io_uring, NIO.
+     */
+    AUTO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        Throwable unavailabilityCause() {
+            return null;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+            return resolve().newEventLoopGroup(threads, threadFactory);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return resolve().serverChannelClass();
+        }
+
+        @Override
+        Class<? extends Channel> socketChannelClass() {
+            return resolve().socketChannelClass();
+        }
+
+        @Override
+        Transport resolve() {
+            if (EPOLL.isAvailable()) {
+                return EPOLL;
+            }
+            if (IO_URING.isAvailable()) {
+                return IO_URING;
+            }
+            return NIO;
+        }
+    };
+
+    abstract boolean isAvailable();
+
+    abstract Throwable unavailabilityCause();
+
+    /**
+     * Creates an event loop group with threads from the given factory, or Netty's default threads when it is
+     * {@code null}.
+     */
+    abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+    EventLoopGroup newEventLoopGroup(int threads) {
+        return newEventLoopGroup(threads, null);
+    }
+
+    abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * Returns the channel used for outgoing connections, as opened by the load generator.
+     */
+    abstract Class<? extends Channel> socketChannelClass();
+
+    /**
+     * Whether several listeners can be bound to the same port so that the kernel balances accepts between them.
+     */
+    boolean supportsReusePort() {
+        return false;
+    }
+
+    ServerBootstrap reusePort(ServerBootstrap b) {
+        throw new UnsupportedOperationException(name() + " does not support SO_REUSEPORT");
+    }
+
+    /**
+     * Returns the server channel used for Unix domain socket listeners, or {@code null} when not supported.
+     */
+    Class<? extends ServerChannel> serverDomainSocketChannelClass() {
+        return null;
+    }
+
+    /**
+     * Returns the transport to actually use: this one if it is available, otherwise NIO.
+     */
+    Transport resolve() {
+        return isAvailable() ? this : NIO;
+    }
+}
@@ -0,0 +1,296 @@
+package com.performance.netty.echo;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CorruptedWebSocketFrameException;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketDecoderConfig;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketHandshakeException;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket echo endpoint of the HTTP/1.1 pipelines. Upgrade requests for its path get the WebSocket handshake, and
+ * the connection then echoes frames: text, binary and continuation frames are written back as they are read, the
+ * frame and its buffer reused as they are, pings are answered and a close frame is echoed before closing. Other
+ * requests go on to the HTTP echo.
+ * <p>
+ * WebSocket connections are expected to be many and mostly idle, so they hold as little as possible between frames.
+ * The HTTP handlers after the echo are removed once a connection is upgraded, and permessage-deflate is negotiated
+ * without context takeover in either direction, so no zlib stream, of some 300KB with the default window, is kept
+ * between messages. Connections without a frame in either direction for the idle timeout are closed with a
+ * {@code 1001} close frame.
+ */
+final class WebSocketEcho {
+
+    private static final int COMPRESSION_LEVEL = 6;
+
+    private final String path;
+    private final boolean compression;
+    private final int maxFrameSize;
+    private final long idleTimeoutSeconds;
+    private final WebSocketDecoderConfig decoderConfig;
+
+    // Totals of the last report, only accessed by the reporting thread
+    private long reportNanos = System.nanoTime();
+    private long reportFrames;
+    private long reportBytes;
+
+    /**
+     * @param path               path of the upgrade requests, with or without a query string
+     * @param compression        whether to accept permessage-deflate
+     * @param maxFrameSize       largest frame payload accepted, larger frames close the connection
+     * @param idleTimeoutSeconds seconds without a frame before closing a connection, 0 to keep it open
+     */
+    WebSocketEcho(String path, boolean compression, int maxFrameSize, long idleTimeoutSeconds) {
+        this.path = path;
+        this.compression = compression;
+        this.maxFrameSize = maxFrameSize;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        this.decoderConfig = WebSocketDecoderConfig.newBuilder()
+                .maxFramePayloadLength(maxFrameSize)
+                .allowExtensions(compression)
+                .build();
+    }
+
+    /**
+     * Returns the new handlers to add after the HTTP/1.1 codec, before the ones handling HTTP requests.
+     */
+    ChannelHandler[] newHandlers(FlushPolicy flushPolicy) {
+        UpgradeHandler upgradeHandler = new UpgradeHandler(flushPolicy);
+        return compression ?
+                new ChannelHandler[]{new WebSocketServerExtensionHandler(new NoContextTakeover()), upgradeHandler} :
+                new ChannelHandler[]{upgradeHandler};
+    }
+
+    /**
+     * Returns the WebSocket connections open, and the data frames and their payload bytes echoed per second since
+     * the previous report.
+     */
+    String report() {
+        long nanos = System.nanoTime();
+        long frames = ServerMetrics.sum(ServerMetrics.LoopMetrics.WEBSOCKET_FRAMES);
+        long bytes = ServerMetrics.sum(ServerMetrics.LoopMetrics.WEBSOCKET_BYTES);
+        long connections = ServerMetrics.sum(ServerMetrics.LoopMetrics.WEBSOCKETS_OPENED) -
+                ServerMetrics.sum(ServerMetrics.LoopMetrics.WEBSOCKETS_CLOSED);
+        double seconds = Math.max(nanos - reportNanos, 1) / 1e9;
+        String report = String.format(Locale.ROOT, "connections=%d, frames/s=%.0f, bytes/s=%.0f", connections,
+                (frames - reportFrames) / seconds, (bytes - reportBytes) / seconds);
+        reportNanos = nanos;
+        reportFrames = frames;
+        reportBytes = bytes;
+        return report;
+    }
+
+    @Override
+    public String toString() {
+        return "path=" + path + ", compression=" + compression + ", maxFrameSize=" + maxFrameSize +
+                ", idleTimeout=" + (idleTimeoutSeconds > 0 ? idleTimeoutSeconds + "s" : "none");
+    }
+
+    private boolean isUpgrade(HttpRequest request) {
+        String uri = request.uri();
+        return uri.startsWith(path) && (uri.length() == path.length() || uri.charAt(path.length()) == '?') &&
+                request.headers().containsValue(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true);
+    }
+
+    /**
+     * Answers the upgrade requests for the path with the handshake, and then replaces itself and the HTTP handlers
+     * after it with the {@link FrameHandler}. The request is collected up to its end first, its body ignored, so the
+     * handshake happens right here whether the requests are aggregated or not. The pipeline is changed right after
+     * the handshake response is written, when the frame codec is in place already, so no frame can reach the HTTP
+     * handlers.
+     */
+    private final class UpgradeHandler extends ChannelInboundHandlerAdapter {
+
+        private final FlushPolicy flushPolicy;
+        // Upgrade request waiting for its end
+        private HttpRequest upgradeRequest;
+
+        UpgradeHandler(FlushPolicy flushPolicy) {
+            this.flushPolicy = flushPolicy;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (upgradeRequest != null) {
+                ReferenceCountUtil.release(msg);
+                if (msg instanceof LastHttpContent) {
+                    HttpRequest request = upgradeRequest;
+                    upgradeRequest = null;
+                    handshake(ctx, new DefaultFullHttpRequest(request.protocolVersion(), request.method(),
+                            request.uri(), Unpooled.EMPTY_BUFFER, request.headers(), EmptyHttpHeaders.INSTANCE));
+                }
+                return;
+            }
+            if (!(msg instanceof HttpRequest) || !isUpgrade((HttpRequest) msg)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            if (msg instanceof FullHttpRequest) {
+                try {
+                    handshake(ctx, (FullHttpRequest) msg);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            } else {
+                upgradeRequest = (HttpRequest) msg;
+            }
+        }
+
+        private void handshake(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String location = (ctx.pipeline().get(SslHandler.class) != null ? "wss://" : "ws://") +
+                    request.headers().get(HttpHeaderNames.HOST) + path;
+            WebSocketServerHandshaker handshaker =
+                    new WebSocketServerHandshakerFactory(location, null, decoderConfig).newHandshaker(request);
+            if (handshaker == null) {
+                WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel())
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            try {
+                handshaker.handshake(ctx.channel(), request).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            } catch (WebSocketHandshakeException e) {
+                FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(),
+                        HttpResponseStatus.BAD_REQUEST, Unpooled.EMPTY_BUFFER);
+                HttpUtil.setContentLength(response, 0);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ChannelPipeline p = ctx.pipeline();
+            while (p.lastContext() != ctx) {
+                p.removeLast();
+            }
+            if (idleTimeoutSeconds > 0) {
+                p.addLast(new IdleStateHandler(0, 0, idleTimeoutSeconds, TimeUnit.SECONDS));
+            }
+            p.addLast(new FrameHandler(flushPolicy));
+            p.remove(this);
+        }
+    }
+
+    /**
+     * Echoes the frames of an upgraded connection. The frames read are written back as they are, their buffers
+     * handed over rather than copied, and flushed together once the read completes, like HTTP responses.
+     */
+    private static final class FrameHandler extends ChannelInboundHandlerAdapter {
+
+        private final FlushPolicy.Batcher flushBatcher;
+
+        FrameHandler(FlushPolicy flushPolicy) {
+            this.flushBatcher = flushPolicy.newBatcher();
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            ServerMetrics.current().webSocketOpened();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame ||
+                    msg instanceof ContinuationWebSocketFrame) {
+                WebSocketFrame frame = (WebSocketFrame) msg;
+                int bytes = frame.content().readableBytes();
+                ServerMetrics.current().webSocketFrame(bytes);
+                flushBatcher.write(ctx, frame, bytes, frame.isFinalFragment());
+            } else if (msg instanceof PingWebSocketFrame) {
+                flushBatcher.write(ctx, new PongWebSocketFrame(((PingWebSocketFrame) msg).content()), 0, true);
+            } else if (msg instanceof CloseWebSocketFrame) {
+                // Echoing the close frame completes the closing handshake
+                ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                // Pongs
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            flushBatcher.flush(ctx);
+            super.channelReadComplete(ctx);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                ctx.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.ENDPOINT_UNAVAILABLE))
+                        .addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            ServerMetrics.current().webSocketClosed();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            // The decoder answered invalid frames with a close frame already
+            if (!(cause instanceof CorruptedWebSocketFrameException)) {
+                super.exceptionCaught(ctx, cause);
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * Negotiates permessage-deflate as if the client had offered {@code server_no_context_takeover} and
+     * {@code client_no_context_takeover}, which RFC 7692 lets the server add to its response. Both ends then reset
+     * their compression context after every message, and the zlib streams are released in between.
+     */
+    private static final class NoContextTakeover implements WebSocketServerExtensionHandshaker {
+
+        private final PerMessageDeflateServerExtensionHandshaker handshaker =
+                new PerMessageDeflateServerExtensionHandshaker(COMPRESSION_LEVEL,
+                        ZlibCodecFactory.isSupportingWindowSizeAndMemLevel(),
+                        PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE, true, true);
+
+        @Override
+        public WebSocketServerExtension handshakeExtension(WebSocketExtensionData extensionData) {
+            Map<String, String> parameters = new HashMap<>(extensionData.parameters());
+            parameters.put("server_no_context_takeover", null);
+            parameters.put("client_no_context_takeover", null);
+            return handshaker.handshakeExtension(new WebSocketExtensionData(extensionData.name(), parameters));
+        }
+    }
+}